@@ -0,0 +1,138 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.activity;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import androidx.annotation.NonNull;
+import com.theta360.pluginlibrary.values.ThetaModel;
+import java.util.LinkedHashSet;
+
+/**
+ * DatabaseUpdateNotifier
+ * (Collects the files to register in the database and sends them in one broadcast when the
+ * window has passed since the first file, or when maxCount files are pending)
+ */
+public class DatabaseUpdateNotifier {
+    public static final long DEFAULT_WINDOW_MILLIS = 500;
+    public static final int DEFAULT_MAX_COUNT = 50;
+
+    private final Context mContext;
+    private final long mWindowMillis;
+    private final int mMaxCount;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LinkedHashSet<String> mTargets = new LinkedHashSet<>();
+    private int mBroadcastCount;
+    private int mTargetCount;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param context Context sending the broadcasts
+     * @param windowMillis Time to wait for more files after the first one
+     * @param maxCount Number of files sent without waiting for the window
+     */
+    public DatabaseUpdateNotifier(@NonNull Context context, long windowMillis, int maxCount) {
+        if (windowMillis < 0 || maxCount <= 0) {
+            throw new IllegalArgumentException("Invalid window");
+        }
+        mContext = context.getApplicationContext();
+        mWindowMillis = windowMillis;
+        mMaxCount = maxCount;
+    }
+
+    /**
+     * Add a file to the next broadcast. A file already pending is not added twice
+     *
+     * @param target File path
+     */
+    public void add(@NonNull String target) {
+        boolean isFull;
+        synchronized (this) {
+            if (!mTargets.add(target)) {
+                return;
+            }
+            isFull = mTargets.size() >= mMaxCount;
+            if (!isFull && mTargets.size() == 1) {
+                mHandler.postDelayed(mFlushRunnable, mWindowMillis);
+            }
+        }
+        if (isFull) {
+            flush();
+        }
+    }
+
+    /**
+     * Send the pending files now
+     */
+    public void flush() {
+        String[] targets;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            if (mTargets.isEmpty()) {
+                return;
+            }
+            targets = mTargets.toArray(new String[mTargets.size()]);
+            mTargets.clear();
+            mTargetCount += targets.length;
+        }
+
+        if (ThetaModel.isXModel()) {
+            // X models take one file per broadcast
+            for (String target : targets) {
+                Intent intent = new Intent(Constants.ACTION_DATABASE_UPDATE);
+                intent.putExtra(Constants.TARGET, target);
+                mContext.sendBroadcast(intent);
+            }
+            synchronized (this) {
+                mBroadcastCount += targets.length;
+            }
+        } else {
+            Intent intent = new Intent(Constants.ACTION_DATABASE_UPDATE);
+            intent.putExtra(Constants.TARGETS, targets);
+            mContext.sendBroadcast(intent);
+            synchronized (this) {
+                mBroadcastCount++;
+            }
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return mTargets.size();
+    }
+
+    /**
+     * @return Number of broadcasts sent
+     */
+    public synchronized int getBroadcastCount() {
+        return mBroadcastCount;
+    }
+
+    /**
+     * @return Number of files sent
+     */
+    public synchronized int getTargetCount() {
+        return mTargetCount;
+    }
+}
@@ -0,0 +1,280 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.activity;
+
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import androidx.annotation.NonNull;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * IndicatorDispatcher
+ * (Sends LED, OLED and brightness broadcasts from a background thread. Each target keeps the
+ * last sent state, an update equal to it is dropped, and a target is sent at most once per
+ * interval with the latest state)
+ */
+public class IndicatorDispatcher {
+    public static final long DEFAULT_MIN_INTERVAL_MILLIS = 100;
+
+    /**
+     * BitmapState
+     * (Bitmap compared by pixels)
+     */
+    static class BitmapState {
+        private final Bitmap mBitmap;
+        private final int mPeriod;
+
+        BitmapState(@NonNull Bitmap bitmap, int period) {
+            mBitmap = bitmap;
+            mPeriod = period;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BitmapState)) {
+                return false;
+            }
+            BitmapState other = (BitmapState) o;
+            return mPeriod == other.mPeriod
+                    && (mBitmap == other.mBitmap || mBitmap.sameAs(other.mBitmap));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mBitmap.getWidth() + mBitmap.getHeight() + mPeriod;
+        }
+    }
+
+    private class Channel implements Runnable {
+        private Object mSentState;
+        private long mSentMillis;
+        private Object mPendingState;
+        private Intent mPendingIntent;
+
+        @Override
+        public void run() {
+            if (mPendingIntent != null) {
+                send(this, mPendingState, mPendingIntent);
+                mPendingState = null;
+                mPendingIntent = null;
+            }
+        }
+    }
+
+    private final Context mContext;
+    private final long mMinIntervalMillis;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final HashMap<String, Channel> mChannels = new HashMap<>();
+    private boolean isReleased = false;
+
+    private int mSentCount;
+    private int mDuplicateCount;
+    private int mReplacedCount;
+
+    /**
+     * @param context Context sending the broadcasts
+     * @param minIntervalMillis Minimum time between two broadcasts to the same target
+     */
+    public IndicatorDispatcher(@NonNull Context context, long minIntervalMillis) {
+        if (minIntervalMillis < 0) {
+            throw new IllegalArgumentException("minIntervalMillis must not be negative");
+        }
+        mContext = context.getApplicationContext();
+        mMinIntervalMillis = minIntervalMillis;
+        mThread = new HandlerThread("IndicatorDispatcher");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Queue a broadcast, called by PluginActivity
+     *
+     * @param target Target whose state the broadcast replaces
+     * @param state State compared with equals() to drop redundant broadcasts
+     * @param intent Broadcast
+     */
+    void dispatch(@NonNull final String target, @NonNull final Object state,
+            @NonNull final Intent intent) {
+        synchronized (this) {
+            if (isReleased) {
+                return;
+            }
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onDispatch(target, state, intent);
+            }
+        });
+    }
+
+    /**
+     * Send the pending broadcasts now, without waiting for the interval
+     */
+    public void flush() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                sendPending();
+            }
+        });
+    }
+
+    /**
+     * Send the queued and pending broadcasts, and return when they are sent
+     * (Call before notifying the end of the plug-in, so that no indicator broadcast follows it)
+     */
+    public void drain() {
+        if (Looper.myLooper() == mThread.getLooper()) {
+            sendPending();
+            return;
+        }
+        final CountDownLatch latch = new CountDownLatch(1);
+        boolean posted = mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                sendPending();
+                latch.countDown();
+            }
+        });
+        if (!posted) {
+            return;
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Forget the states sent, so that the next update of every target is sent even if it is
+     * the same (the main app may have changed the indicators in the meantime)
+     */
+    public void resetSentStates() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Channel channel : mChannels.values()) {
+                    channel.mSentState = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Send the pending broadcasts and stop the thread
+     */
+    public void release() {
+        synchronized (this) {
+            if (isReleased) {
+                return;
+            }
+            isReleased = true;
+        }
+        flush();
+        mThread.quitSafely();
+    }
+
+    /**
+     * @return Number of broadcasts sent
+     */
+    public synchronized int getSentCount() {
+        return mSentCount;
+    }
+
+    /**
+     * @return Number of updates dropped because the state did not change
+     */
+    public synchronized int getDuplicateCount() {
+        return mDuplicateCount;
+    }
+
+    /**
+     * @return Number of updates replaced by a later one within the interval
+     */
+    public synchronized int getReplacedCount() {
+        return mReplacedCount;
+    }
+
+    private void sendPending() {
+        for (Channel channel : mChannels.values()) {
+            mHandler.removeCallbacks(channel);
+            channel.run();
+        }
+    }
+
+    private void onDispatch(String target, Object state, Intent intent) {
+        Channel channel = mChannels.get(target);
+        if (channel == null) {
+            channel = new Channel();
+            mChannels.put(target, channel);
+        }
+
+        if (channel.mPendingIntent != null) {
+            if (state.equals(channel.mPendingState)) {
+                countDuplicate();
+                return;
+            }
+            channel.mPendingState = null;
+            channel.mPendingIntent = null;
+            synchronized (this) {
+                mReplacedCount++;
+            }
+            if (state.equals(channel.mSentState)) {
+                // Back to the state on the device before the pending one was sent
+                mHandler.removeCallbacks(channel);
+                return;
+            }
+        } else if (state.equals(channel.mSentState)) {
+            countDuplicate();
+            return;
+        }
+
+        long nextMillis = channel.mSentMillis + mMinIntervalMillis;
+        if (channel.mSentState == null || SystemClock.uptimeMillis() >= nextMillis) {
+            send(channel, state, intent);
+        } else {
+            if (channel.mPendingIntent == null) {
+                mHandler.removeCallbacks(channel);
+                mHandler.postAtTime(channel, nextMillis);
+            }
+            channel.mPendingState = state;
+            channel.mPendingIntent = intent;
+        }
+    }
+
+    private void send(Channel channel, Object state, Intent intent) {
+        mContext.sendBroadcast(intent);
+        channel.mSentState = state;
+        channel.mSentMillis = SystemClock.uptimeMillis();
+        synchronized (this) {
+            mSentCount++;
+        }
+    }
+
+    private synchronized void countDuplicate() {
+        mDuplicateCount++;
+    }
+}
@@ -0,0 +1,347 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.activity;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import androidx.annotation.NonNull;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * OledRenderer
+ * (Draws into a framebuffer of the OLED and shows it with notificationOledImageShow. Characters
+ * are rendered once and cached, a frame is sent only when its pixels changed, and at most
+ * maxFps frames are sent per second. Use it on the thread of the Looper it was created on)
+ */
+public class OledRenderer {
+    public static final int WIDTH = 128;
+    public static final int DEFAULT_MAX_FPS = 10;
+    private static final int GLYPH_CACHE_SIZE = 256;
+    private static final int ON = Color.WHITE;
+    private static final int OFF = Color.BLACK;
+
+    private static class Glyph {
+        private final int mWidth;
+        private final int mHeight;
+        private final int mAscent;
+        private final boolean[] mMask;
+
+        private Glyph(int width, int height, int ascent, boolean[] mask) {
+            mWidth = width;
+            mHeight = height;
+            mAscent = ascent;
+            mMask = mask;
+        }
+    }
+
+    private final PluginActivity mActivity;
+    private final int mHeight;
+    private final long mFrameMillis;
+    private final Handler mHandler;
+    private final int[] mFrame;
+    private final int[] mSentFrame;
+    private final Paint mPaint = new Paint();
+    private final LinkedHashMap<String, Glyph> mGlyphs =
+            new LinkedHashMap<String, Glyph>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Glyph> eldest) {
+                    return size() > GLYPH_CACHE_SIZE;
+                }
+            };
+
+    private int mDirtyTop;
+    private int mDirtyBottom;
+    private boolean isSent = false;
+    private boolean isPending = false;
+    private long mSentMillis;
+
+    private int mCommitCount;
+    private int mSentCount;
+    private int mUnchangedCount;
+    private int mGlyphMissCount;
+
+    private final Runnable mSendRunnable = new Runnable() {
+        @Override
+        public void run() {
+            isPending = false;
+            send();
+        }
+    };
+
+    /**
+     * @param activity Activity showing the frames
+     * @param height OLED height, 24 or 36
+     * @param maxFps Maximum frames sent per second
+     */
+    public OledRenderer(@NonNull PluginActivity activity, int height, int maxFps) {
+        if (height != 24 && height != 36) {
+            throw new IllegalArgumentException("height must be 24 or 36");
+        }
+        if (maxFps <= 0) {
+            throw new IllegalArgumentException("maxFps must be positive");
+        }
+        mActivity = activity;
+        mHeight = height;
+        mFrameMillis = 1000 / maxFps;
+        Looper looper = Looper.myLooper();
+        mHandler = new Handler((looper != null) ? looper : Looper.getMainLooper());
+        mFrame = new int[WIDTH * height];
+        mSentFrame = new int[WIDTH * height];
+        Arrays.fill(mFrame, OFF);
+        mPaint.setAntiAlias(false);
+        mPaint.setColor(ON);
+        markDirty(0, height);
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Clear the framebuffer
+     */
+    public void clear() {
+        fillRect(0, 0, WIDTH, mHeight, false);
+    }
+
+    /**
+     * Fill a rectangle
+     *
+     * @param x Left
+     * @param y Top
+     * @param width Width
+     * @param height Height
+     * @param on true : lit / false : dark
+     */
+    public void fillRect(int x, int y, int width, int height, boolean on) {
+        int left = Math.max(0, x);
+        int top = Math.max(0, y);
+        int right = Math.min(WIDTH, x + width);
+        int bottom = Math.min(mHeight, y + height);
+        if (left >= right || top >= bottom) {
+            return;
+        }
+        for (int row = top; row < bottom; row++) {
+            Arrays.fill(mFrame, row * WIDTH + left, row * WIDTH + right, on ? ON : OFF);
+        }
+        markDirty(top, bottom);
+    }
+
+    /**
+     * Draw text with cached characters
+     *
+     * @param x Left
+     * @param baseline Baseline
+     * @param text Text
+     * @param textSize Text size in pixels
+     * @return Right end of the text
+     */
+    public int drawText(int x, int baseline, @NonNull String text, float textSize) {
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            int count = Character.charCount(codePoint);
+            Glyph glyph = getGlyph(text.substring(i, i + count), textSize);
+            drawMask(x, baseline - glyph.mAscent, glyph.mWidth, glyph.mHeight, glyph.mMask);
+            x += glyph.mWidth;
+            i += count;
+        }
+        return x;
+    }
+
+    /**
+     * Measure text with cached characters
+     *
+     * @param text Text
+     * @param textSize Text size in pixels
+     * @return Width in pixels
+     */
+    public int measureText(@NonNull String text, float textSize) {
+        int width = 0;
+        for (int i = 0; i < text.length(); ) {
+            int count = Character.charCount(text.codePointAt(i));
+            width += getGlyph(text.substring(i, i + count), textSize).mWidth;
+            i += count;
+        }
+        return width;
+    }
+
+    /**
+     * Draw an icon. Pixels brighter than half are lit, transparent pixels are left as they are
+     *
+     * @param x Left
+     * @param y Top
+     * @param icon Icon
+     */
+    public void drawBitmap(int x, int y, @NonNull Bitmap icon) {
+        int width = icon.getWidth();
+        int height = icon.getHeight();
+        int[] pixels = new int[width * height];
+        icon.getPixels(pixels, 0, width, 0, 0, width, height);
+        int top = Math.max(0, y);
+        int bottom = Math.min(mHeight, y + height);
+        for (int row = top; row < bottom; row++) {
+            for (int col = Math.max(0, x); col < Math.min(WIDTH, x + width); col++) {
+                int pixel = pixels[(row - y) * width + (col - x)];
+                if (Color.alpha(pixel) >= 0x80) {
+                    mFrame[row * WIDTH + col] = isLit(pixel) ? ON : OFF;
+                }
+            }
+        }
+        if (top < bottom) {
+            markDirty(top, bottom);
+        }
+    }
+
+    /**
+     * Show the framebuffer if it changed since the last frame sent. Within 1 / maxFps of the
+     * last frame, the latest framebuffer is sent when the time has passed
+     */
+    public void commit() {
+        mCommitCount++;
+        if (isPending) {
+            return;
+        }
+        long nextMillis = mSentMillis + mFrameMillis;
+        if (!isSent || SystemClock.uptimeMillis() >= nextMillis) {
+            send();
+        } else {
+            isPending = true;
+            mHandler.postAtTime(mSendRunnable, nextMillis);
+        }
+    }
+
+    /**
+     * Forget the frame sent, so that the next commit() sends the framebuffer
+     * (e.g. after another screen was shown on the OLED)
+     */
+    public void invalidate() {
+        isSent = false;
+        markDirty(0, mHeight);
+    }
+
+    /**
+     * Stop a pending frame and drop the glyph cache
+     */
+    public void release() {
+        mHandler.removeCallbacks(mSendRunnable);
+        isPending = false;
+        mGlyphs.clear();
+    }
+
+    public int getCommitCount() {
+        return mCommitCount;
+    }
+
+    public int getSentCount() {
+        return mSentCount;
+    }
+
+    /**
+     * @return Frames not sent because the pixels did not change
+     */
+    public int getUnchangedCount() {
+        return mUnchangedCount;
+    }
+
+    public int getGlyphMissCount() {
+        return mGlyphMissCount;
+    }
+
+    private void send() {
+        if (mDirtyTop >= mDirtyBottom) {
+            mUnchangedCount++;
+            return;
+        }
+        int from = mDirtyTop * WIDTH;
+        int to = mDirtyBottom * WIDTH;
+        mDirtyTop = mHeight;
+        mDirtyBottom = 0;
+        boolean isChanged = !isSent;
+        for (int i = from; i < to && !isChanged; i++) {
+            isChanged = mFrame[i] != mSentFrame[i];
+        }
+        if (!isChanged) {
+            mUnchangedCount++;
+            return;
+        }
+
+        System.arraycopy(mFrame, from, mSentFrame, from, to - from);
+        Bitmap bitmap = Bitmap.createBitmap(mFrame, WIDTH, mHeight, Bitmap.Config.ARGB_8888);
+        mActivity.notificationOledImageShow(bitmap);
+        isSent = true;
+        mSentMillis = SystemClock.uptimeMillis();
+        mSentCount++;
+    }
+
+    private void markDirty(int top, int bottom) {
+        mDirtyTop = Math.min(mDirtyTop, top);
+        mDirtyBottom = Math.max(mDirtyBottom, bottom);
+    }
+
+    private void drawMask(int x, int y, int width, int height, boolean[] mask) {
+        int top = Math.max(0, y);
+        int bottom = Math.min(mHeight, y + height);
+        for (int row = top; row < bottom; row++) {
+            for (int col = Math.max(0, x); col < Math.min(WIDTH, x + width); col++) {
+                if (mask[(row - y) * width + (col - x)]) {
+                    mFrame[row * WIDTH + col] = ON;
+                }
+            }
+        }
+        if (top < bottom) {
+            markDirty(top, bottom);
+        }
+    }
+
+    private Glyph getGlyph(String character, float textSize) {
+        String key = textSize + ":" + character;
+        Glyph glyph = mGlyphs.get(key);
+        if (glyph != null) {
+            return glyph;
+        }
+        mGlyphMissCount++;
+
+        mPaint.setTextSize(textSize);
+        Paint.FontMetricsInt metrics = mPaint.getFontMetricsInt();
+        int width = Math.max(1, Math.round(mPaint.measureText(character)));
+        int height = Math.max(1, metrics.descent - metrics.ascent);
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        new Canvas(bitmap).drawText(character, 0, -metrics.ascent, mPaint);
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        bitmap.recycle();
+
+        boolean[] mask = new boolean[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            mask[i] = Color.alpha(pixels[i]) >= 0x80 && isLit(pixels[i]);
+        }
+        glyph = new Glyph(width, height, -metrics.ascent, mask);
+        mGlyphs.put(key, glyph);
+        return glyph;
+    }
+
+    private static boolean isLit(int pixel) {
+        return Color.red(pixel) + Color.green(pixel) + Color.blue(pixel) >= 3 * 0x80;
+    }
+}
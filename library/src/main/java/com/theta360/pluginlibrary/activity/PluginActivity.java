@@ -36,6 +36,7 @@ import com.theta360.pluginlibrary.receiver.KeyReceiver;
 import com.theta360.pluginlibrary.values.TextArea;
 import com.theta360.pluginlibrary.values.ThetaModel;
 
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -47,6 +48,8 @@ public abstract class PluginActivity extends AppCompatActivity {
     private boolean isClosed = false;
     private String mUserOption;
     private boolean isApConnected = false;
+    private DatabaseUpdateNotifier mDatabaseUpdateNotifier;
+    private IndicatorDispatcher mIndicatorDispatcher;
 
     private KeyCallback mKeyCallback;
     private KeyReceiver mKeyReceiver;
@@ -143,6 +146,11 @@ public abstract class PluginActivity extends AppCompatActivity {
         keyFilter.addAction(KeyReceiver.ACTION_KEY_DOWN);
         keyFilter.addAction(KeyReceiver.ACTION_KEY_UP);
         registerReceiver(mKeyReceiver, keyFilter);
+
+        if (mIndicatorDispatcher != null) {
+            // The main app may have changed the indicators while the plug-in was paused
+            mIndicatorDispatcher.resetSentStates();
+        }
     }
 
     @Override
@@ -150,11 +158,26 @@ public abstract class PluginActivity extends AppCompatActivity {
         if (!isClosed && isAutoClose) {
             close();
         }
+        flushDatabaseUpdate();
+        if (mIndicatorDispatcher != null) {
+            mIndicatorDispatcher.drain();
+            mIndicatorDispatcher.resetSentStates();
+        }
         unregisterReceiver(mKeyReceiver);
 
         super.onPause();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mIndicatorDispatcher != null) {
+            mIndicatorDispatcher.release();
+            mIndicatorDispatcher = null;
+        }
+
+        super.onDestroy();
+    }
+
     public void setKeyCallback(KeyCallback keyCallback) {
         mKeyCallback = keyCallback;
     }
@@ -168,11 +191,38 @@ public abstract class PluginActivity extends AppCompatActivity {
         isAutoClose = autoClose;
     }
 
+    /**
+     * Send LED, OLED and brightness notifications through an IndicatorDispatcher
+     * (Unchanged states are dropped and each target is sent at most once per interval)
+     *
+     * @param minIntervalMillis Minimum time between two broadcasts to the same target
+     * (negative : send every notification immediately)
+     */
+    public void setIndicatorRateLimit(long minIntervalMillis) {
+        if (mIndicatorDispatcher != null) {
+            mIndicatorDispatcher.release();
+            mIndicatorDispatcher = null;
+        }
+        if (minIntervalMillis >= 0) {
+            mIndicatorDispatcher = new IndicatorDispatcher(this, minIntervalMillis);
+        }
+    }
+
+    public IndicatorDispatcher getIndicatorDispatcher() {
+        return mIndicatorDispatcher;
+    }
+
     /**
      * End processing
      */
     public void close() {
         isClosed = true;
+        if (mIndicatorDispatcher != null) {
+            // No indicator broadcast may follow the end of the plug-in
+            mIndicatorDispatcher.drain();
+            mIndicatorDispatcher.resetSentStates();
+        }
+        flushDatabaseUpdate();
         if (isCamera) {
             notificationCameraOpen();
         }
@@ -190,6 +240,9 @@ public abstract class PluginActivity extends AppCompatActivity {
     public void notificationCameraOpen() {
         isCamera = false;
         sendBroadcast(new Intent(Constants.ACTION_MAIN_CAMERA_OPEN));
+        if (mIndicatorDispatcher != null) {
+            mIndicatorDispatcher.resetSentStates();
+        }
     }
 
     public void notificationCameraClose() {
@@ -285,7 +338,7 @@ public abstract class PluginActivity extends AppCompatActivity {
         else {
             intent.putExtra(Constants.BRIGHTNESS, brightness);
         }
-        sendBroadcast(intent);
+        sendIndicator("screen-brightness", brightness, intent);
     }
 
     /**
@@ -297,7 +350,7 @@ public abstract class PluginActivity extends AppCompatActivity {
         Intent intent = new Intent(Constants.ACTION_LED_SHOW);
         intent.putExtra(Constants.TARGET, LedTarget.LED3.toString());
         intent.putExtra(Constants.COLOR, ledColor.toString());
-        sendBroadcast(intent);
+        sendIndicator(LedTarget.LED3.toString(), "show:" + ledColor, intent);
     }
 
     /**
@@ -311,7 +364,7 @@ public abstract class PluginActivity extends AppCompatActivity {
         } else {
             Intent intent = new Intent(Constants.ACTION_LED_SHOW);
             intent.putExtra(Constants.TARGET, ledTarget.toString());
-            sendBroadcast(intent);
+            sendIndicator(ledTarget.toString(), "show", intent);
         }
     }
 
@@ -337,7 +390,7 @@ public abstract class PluginActivity extends AppCompatActivity {
         intent.putExtra(Constants.TARGET, ledTarget.toString());
         intent.putExtra(Constants.COLOR, ledColor.toString());
         intent.putExtra(Constants.PERIOD, period);
-        sendBroadcast(intent);
+        sendIndicator(ledTarget.toString(), "blink:" + ledColor + ":" + period, intent);
     }
 
     /**
@@ -348,7 +401,7 @@ public abstract class PluginActivity extends AppCompatActivity {
     public void notificationLedHide(@NonNull LedTarget ledTarget) {
         Intent intent = new Intent(Constants.ACTION_LED_HIDE);
         intent.putExtra(Constants.TARGET, ledTarget.toString());
-        sendBroadcast(intent);
+        sendIndicator(ledTarget.toString(), "hide", intent);
     }
 
     /**
@@ -376,7 +429,7 @@ public abstract class PluginActivity extends AppCompatActivity {
         else {
             intent.putExtra(Constants.BRIGHTNESS, brightness);
         }
-        sendBroadcast(intent);
+        sendIndicator("brightness-" + ledTarget, brightness, intent);
     }
 
     /**
@@ -387,9 +440,10 @@ public abstract class PluginActivity extends AppCompatActivity {
     public void notificationOledImageShow(@NonNull Bitmap bitmap) {
         if ((bitmap.getHeight() == 24 || bitmap.getHeight() == 36)
                 && bitmap.getWidth() == 128) {
+            Bitmap image = copyForIndicator(bitmap);
             Intent intent = new Intent(Constants.ACTION_OLED_IMAGE_SHOW);
-            intent.putExtra(Constants.BITMAP, bitmap);
-            sendBroadcast(intent);
+            intent.putExtra(Constants.BITMAP, image);
+            sendIndicator("oled", new IndicatorDispatcher.BitmapState(image, 0), intent);
         }
     }
 
@@ -409,10 +463,11 @@ public abstract class PluginActivity extends AppCompatActivity {
                 period = 2000;
             }
 
+            Bitmap image = copyForIndicator(bitmap);
             Intent intent = new Intent(Constants.ACTION_OLED_IMAGE_BLINK);
-            intent.putExtra(Constants.BITMAP, bitmap);
+            intent.putExtra(Constants.BITMAP, image);
             intent.putExtra(Constants.PERIOD, period);
-            sendBroadcast(intent);
+            sendIndicator("oled", new IndicatorDispatcher.BitmapState(image, period), intent);
         }
     }
 
@@ -426,14 +481,14 @@ public abstract class PluginActivity extends AppCompatActivity {
         for (Map.Entry<TextArea, String> map : textMap.entrySet()) {
             intent.putExtra(map.getKey().toString(), map.getValue());
         }
-        sendBroadcast(intent);
+        sendIndicator("oled", new HashMap<>(textMap), intent);
     }
 
     /**
      * Turn off OLED
      */
     public void notificationOledHide() {
-        sendBroadcast(new Intent(Constants.ACTION_OLED_HIDE));
+        sendIndicator("oled", "hide", new Intent(Constants.ACTION_OLED_HIDE));
     }
 
     /**
@@ -444,7 +499,7 @@ public abstract class PluginActivity extends AppCompatActivity {
     public void notificationOledDisplaySet(@NonNull OledDisplay oledDisplay) {
         Intent intent = new Intent(Constants.ACTION_OLED_DISPLAY_SET);
         intent.putExtra(Constants.DISPLAY, oledDisplay.toString());
-        sendBroadcast(intent);
+        sendIndicator("oled-display", oledDisplay, intent);
     }
 
     public void notificationWlanOff() {
@@ -497,6 +552,39 @@ public abstract class PluginActivity extends AppCompatActivity {
         sendBroadcast(intent);
     }
 
+    /**
+     * Batch setting of notificationDatabaseUpdateLater
+     *
+     * @param windowMillis Time to wait for more files after the first one
+     * @param maxCount Number of files sent without waiting for the window
+     */
+    public void setDatabaseUpdateWindow(long windowMillis, int maxCount) {
+        flushDatabaseUpdate();
+        mDatabaseUpdateNotifier = new DatabaseUpdateNotifier(this, windowMillis, maxCount);
+    }
+
+    /**
+     * Updating the Database, batched with the other files saved within the window
+     * (Pending files are sent in close() and onPause())
+     */
+    public void notificationDatabaseUpdateLater(@NonNull String target) {
+        if (mDatabaseUpdateNotifier == null) {
+            mDatabaseUpdateNotifier = new DatabaseUpdateNotifier(this,
+                    DatabaseUpdateNotifier.DEFAULT_WINDOW_MILLIS,
+                    DatabaseUpdateNotifier.DEFAULT_MAX_COUNT);
+        }
+        mDatabaseUpdateNotifier.add(target);
+    }
+
+    /**
+     * Send the files pending in notificationDatabaseUpdateLater now
+     */
+    public void flushDatabaseUpdate() {
+        if (mDatabaseUpdateNotifier != null) {
+            mDatabaseUpdateNotifier.flush();
+        }
+    }
+
     /**
      * Start camera attitude control sensor
      */
@@ -581,4 +669,17 @@ public abstract class PluginActivity extends AppCompatActivity {
     public void notificationErrorOccured() {
         sendBroadcast(new Intent(Constants.ACTION_ERROR_OCCURED));
     }
+
+    private void sendIndicator(String target, Object state, Intent intent) {
+        if (mIndicatorDispatcher != null) {
+            mIndicatorDispatcher.dispatch(target, state, intent);
+        } else {
+            sendBroadcast(intent);
+        }
+    }
+
+    private Bitmap copyForIndicator(Bitmap bitmap) {
+        // The dispatcher sends later, the plugin may draw into the bitmap in the meantime
+        return (mIndicatorDispatcher != null) ? bitmap.copy(bitmap.getConfig(), false) : bitmap;
+    }
 }
@@ -16,7 +16,6 @@
 
 package com.theta360.pluginlibrary.exif;
 
-import android.os.AsyncTask;
 import androidx.annotation.NonNull;
 import com.theta360.pluginlibrary.exif.objects.box.AXYZ;
 import com.theta360.pluginlibrary.exif.objects.box.BoxSpec;
@@ -25,13 +24,23 @@ import com.theta360.pluginlibrary.exif.objects.box.RATR;
 import com.theta360.pluginlibrary.exif.objects.box.RMKN;
 import com.theta360.pluginlibrary.exif.objects.box.Timestamp;
 import com.theta360.pluginlibrary.exif.objects.box.Xmp;
+import com.theta360.pluginlibrary.exif.utils.PatchWriter;
 import com.theta360.pluginlibrary.exif.values.SphereType;
 import com.theta360.pluginlibrary.exif.values.box.BoxType;
+import com.theta360.pluginlibrary.exif.values.box.FinalizationMode;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 import org.apache.sanselan.util.IOUtils;
 
 /**
@@ -52,47 +61,147 @@ public class Box {
         void onError();
     }
 
-    private Callback mCallback;
+    private static BoxProcessor sBoxProcessor;
+
+    private static synchronized BoxProcessor getDefaultProcessor() {
+        if (sBoxProcessor == null) {
+            sBoxProcessor = new BoxProcessor();
+        }
+        return sBoxProcessor;
+    }
 
     /**
-     * BoxTask class
-     * (Asynchronous execution)
+     * Form Box data. Call Callback when finished
+     *
+     * @param mp4Path MP4 file path
+     * @param wavPath WAV file path
+     * @param callback End callback
      */
-    private class BoxTask extends AsyncTask<String, Void, String[]> {
-        @Override
-        protected String[] doInBackground(String... params) {
-            try(BoxData boxData = new BoxData(params[0], params[1])) {
-                boxData.write();
-            } catch(IOException e) {
-                return null;
-            }
-            return params;
-        }
+    public void formBox(String mp4Path, String wavPath, Callback callback) {
+        formBox(mp4Path, wavPath, FinalizationMode.PROGRESSIVE, callback);
+    }
 
-        @Override
-        protected void onPostExecute(String[] result) {
-            if (mCallback != null) {
-                if (result != null) {
-                    mCallback.onCompleted(result);
-                } else {
-                    mCallback.onError();
-                }
+    /**
+     * Form Box data. Call Callback when finished
+     *
+     * @param mp4Path MP4 file path
+     * @param wavPath WAV file path
+     * @param finalizationMode PROGRESSIVE : moov is rewritten after mdat /
+     *                         FRAGMENTED : metadata is written into the init segment of a
+     *                         fragmented MP4 (requires a free box reserved after moov)
+     * @param callback End callback
+     */
+    public void formBox(String mp4Path, String wavPath, FinalizationMode finalizationMode,
+            Callback callback) {
+        try {
+            getDefaultProcessor().submit(mp4Path, wavPath, finalizationMode, callback);
+        } catch (RejectedExecutionException e) {
+            // Too many recordings waiting
+            if (callback != null) {
+                callback.onError();
             }
         }
     }
 
     /**
-     * Form Box data. Call Callback when finished
+     * Form Box data on the calling thread
      *
      * @param mp4Path MP4 file path
      * @param wavPath WAV file path
-     * @param callback End callback
+     * @param finalizationMode PROGRESSIVE or FRAGMENTED
+     * @param job Job receiving progress and checked for cancellation (null : none)
      */
-    public void formBox(String mp4Path, String wavPath, Callback callback) {
-        mCallback = callback;
-        BoxTask task = new BoxTask();
-        task.execute(mp4Path, wavPath);
+    void formBoxSync(String mp4Path, String wavPath, FinalizationMode finalizationMode,
+            BoxProcessor.Job job) throws IOException {
+        try (BoxData boxData = new BoxData(mp4Path, wavPath, finalizationMode, job)) {
+            if (finalizationMode == FinalizationMode.FRAGMENTED) {
+                boxData.writeFragmented();
+            } else {
+                boxData.write();
+            }
+        }
+    }
 
+    /**
+     * Update the maker note in the RMKN box with the current CameraSettings
+     *
+     * @param bRMKN RMKN box data of the recording
+     * @return Updated RMKN box data
+     */
+    byte[] convertRMKN(byte[] bRMKN) {
+        return new RMKN().getData(bRMKN);
+    }
+
+    /**
+     * UdtaEntry
+     * (A child box of the rewritten udta, moved within the file or written from data)
+     */
+    private static class UdtaEntry {
+        final BoxType type;
+        final long size;
+        long srcOffset;
+        long dstOffset;
+        byte[] data;
+
+        /**
+         * @param type Box type
+         * @param srcOffset Offset of the box in the original file
+         * @param size Box size
+         */
+        UdtaEntry(BoxType type, long srcOffset, long size) {
+            this.type = type;
+            this.srcOffset = srcOffset;
+            this.size = size;
+        }
+
+        /**
+         * @param type Box type
+         * @param data Box data (null : empty box)
+         */
+        UdtaEntry(BoxType type, byte[] data) {
+            this(type, -1, 8 + ((data == null) ? 0 : data.length));
+            this.data = data;
+        }
+
+        boolean isMoved() {
+            return srcOffset >= 0;
+        }
+    }
+
+    /**
+     * BoxSpecs
+     * (Specs of the boxes of a block, indexed by type and by the FourCC read from a header)
+     */
+    private static class BoxSpecs {
+        private final EnumMap<BoxType, BoxSpec> mByType = new EnumMap<>(BoxType.class);
+        private final EnumMap<BoxType, BoxSpec> mByFourCC = new EnumMap<>(BoxType.class);
+
+        BoxSpecs(BoxType... boxTypes) {
+            for (BoxType boxType : boxTypes) {
+                BoxSpec boxSpec = new BoxSpec(boxType);
+                mByType.put(boxType, boxSpec);
+                // Types sharing a FourCC resolve to the first one of the block
+                BoxType key = BoxType.fromFourCC(boxType.getFourCC());
+                if (!mByFourCC.containsKey(key)) {
+                    mByFourCC.put(key, boxSpec);
+                }
+            }
+        }
+
+        /**
+         * @return Spec of the type (null : not in the block)
+         */
+        BoxSpec get(BoxType boxType) {
+            return mByType.get(boxType);
+        }
+
+        /**
+         * @return Spec of the FourCC (null : not in the block)
+         */
+        BoxSpec get(int fourCC) {
+            BoxType key = BoxType.fromFourCC(fourCC);
+            return (key == null) ? null : mByFourCC.get(key);
+        }
     }
 
     /**
@@ -104,6 +213,7 @@ public class Box {
         private static final int BOX_HEADER_LEN = BOX_SIZE_LEN + BOX_TYPE_LEN;
         private static final int BOX_SIZE_LARGER = 1;
         private static final int WAV_HEADER_LEN = 44;
+        private static final int MFRO_LEN = BOX_HEADER_LEN + 8;
 
         private static final int CELLSIZE = 512 * 1024;
 
@@ -120,11 +230,14 @@ public class Box {
         private RandomAccessFile mRandomAccessFile;
         private String mMp4FilePath;
         private String mWavFilePath;
+        private FinalizationMode mFinalizationMode;
+        private BoxProcessor.Job mJob;
+        private long mProgressTotal;
         private long mEndPos;
-        private BoxSpec[] rootBoxSpecs;
-        private BoxSpec[] moovBoxSpecs;
-        private BoxSpec[] udtaBoxSpecs;
-        private BoxSpec[] uuidBoxSpecs;
+        private BoxSpecs rootBoxSpecs;
+        private BoxSpecs moovBoxSpecs;
+        private BoxSpecs udtaBoxSpecs;
+        private BoxSpecs uuidBoxSpecs;
 
         private BoxSpec mBoxSpecSound;
 
@@ -134,90 +247,92 @@ public class Box {
         private Timestamp mTimeTKHDSound = new Timestamp();
         private Timestamp mTimeMDHDSound = new Timestamp();
 
-        public BoxData(String mp4FilePath, String wavFilePath)
-                throws IOException, RuntimeException {
+        private PatchWriter mPatches = new PatchWriter();
+        private boolean isModified = false;
+
+        public BoxData(String mp4FilePath, String wavFilePath, FinalizationMode finalizationMode,
+                BoxProcessor.Job job) throws IOException, RuntimeException {
             mMp4FilePath = mp4FilePath;
             mWavFilePath = wavFilePath;
-
-            rootBoxSpecs = new BoxSpec[]{
-                    new BoxSpec(BoxType.FTYP),
-                    new BoxSpec(BoxType.MDAT),
-                    new BoxSpec(BoxType.MOOV),
-                    new BoxSpec(BoxType.FREE),
-                    new BoxSpec(BoxType.UUID),
-            };
-            moovBoxSpecs = new BoxSpec[]{
-                    new BoxSpec(BoxType.MOOVMVHD),
-                    new BoxSpec(BoxType.MOOVMETA),
-                    new BoxSpec(BoxType.MOOVTRAK),
-                    new BoxSpec(BoxType.MOOVTKHD),
-                    new BoxSpec(BoxType.MOOVMDIA),
-                    new BoxSpec(BoxType.MOOVMDHD),
-                    new BoxSpec(BoxType.MOOVMINF),
-                    new BoxSpec(BoxType.MOOVSTBL),
-                    new BoxSpec(BoxType.MOOVSTSD),
-                    new BoxSpec(BoxType.MOOVAVC1),
-                    new BoxSpec(BoxType.MOOVAVCC),
-                    new BoxSpec(BoxType.MOOVPASP),
-                    new BoxSpec(BoxType.MOOVCOLR),
-                    new BoxSpec(BoxType.MOOVHVC1),
-                    new BoxSpec(BoxType.MOOVHVCC),
-                    new BoxSpec(BoxType.MOOVCO64),
-                    new BoxSpec(BoxType.MOOVSTCO),
-                    new BoxSpec(BoxType.MOOVTRAKSOUND),
-                    new BoxSpec(BoxType.MOOVUUID),
-                    new BoxSpec(BoxType.UDTA),
-            };
-            udtaBoxSpecs = new BoxSpec[]{
-                    new BoxSpec(BoxType.RTHU),
-                    new BoxSpec(BoxType.RMKN),
-                    new BoxSpec(BoxType.RDT1),
-                    new BoxSpec(BoxType.RDT2),
-                    new BoxSpec(BoxType.RDT3),
-                    new BoxSpec(BoxType.RDT4),
-                    new BoxSpec(BoxType.RDT5),
-                    new BoxSpec(BoxType.RDT6),
-                    new BoxSpec(BoxType.RDT7),
-                    new BoxSpec(BoxType.RDT8),
-                    new BoxSpec(BoxType.RDT9),
-                    new BoxSpec(BoxType.RDTA),
-                    new BoxSpec(BoxType.RDTB),
-                    new BoxSpec(BoxType.RDTC),
-                    new BoxSpec(BoxType.RDTD),
-                    new BoxSpec(BoxType.RDTG),
-                    new BoxSpec(BoxType.RDTI),
-                    new BoxSpec(BoxType.AMOD),
-                    new BoxSpec(BoxType.ASWR),
-                    new BoxSpec(BoxType.ADAY),
-                    new BoxSpec(BoxType.AXYZ),
-                    new BoxSpec(BoxType.AMAK),
-                    new BoxSpec(BoxType.MANU),
-                    new BoxSpec(BoxType.MODL),
-            };
-            uuidBoxSpecs = new BoxSpec[]{
-                    new BoxSpec(BoxType.RADT),
-                    new BoxSpec(BoxType.RATR),
-                    new BoxSpec(BoxType.RATRtkhd),
-                    new BoxSpec(BoxType.RATRedts),
-                    new BoxSpec(BoxType.RATRelst),
-                    new BoxSpec(BoxType.RATRmdia),
-                    new BoxSpec(BoxType.RATRmdhd),
-                    new BoxSpec(BoxType.RATRhdlr),
-                    new BoxSpec(BoxType.RATRminf),
-                    new BoxSpec(BoxType.RATRsmhd),
-                    new BoxSpec(BoxType.RATRminfhdlr),
-                    new BoxSpec(BoxType.RATRdinf),
-                    new BoxSpec(BoxType.RATRdref),
-                    new BoxSpec(BoxType.RATRstbl),
-                    new BoxSpec(BoxType.RATRstsd),
-                    new BoxSpec(BoxType.RATRsowt),
-                    new BoxSpec(BoxType.RATRchan),
-                    new BoxSpec(BoxType.RATRSA3D),
-                    new BoxSpec(BoxType.RATRstts),
-                    new BoxSpec(BoxType.RATRstsc),
-                    new BoxSpec(BoxType.RATRstsz),
-                    new BoxSpec(BoxType.RATRco64),
-            };
+            mFinalizationMode = finalizationMode;
+            mJob = job;
+
+            rootBoxSpecs = new BoxSpecs(
+                    BoxType.FTYP,
+                    BoxType.MDAT,
+                    BoxType.MOOV,
+                    BoxType.FREE,
+                    BoxType.UUID);
+            moovBoxSpecs = new BoxSpecs(
+                    BoxType.MOOVMVHD,
+                    BoxType.MOOVMETA,
+                    BoxType.MOOVTRAK,
+                    BoxType.MOOVTKHD,
+                    BoxType.MOOVMDIA,
+                    BoxType.MOOVMDHD,
+                    BoxType.MOOVMINF,
+                    BoxType.MOOVSTBL,
+                    BoxType.MOOVSTSD,
+                    BoxType.MOOVAVC1,
+                    BoxType.MOOVAVCC,
+                    BoxType.MOOVPASP,
+                    BoxType.MOOVCOLR,
+                    BoxType.MOOVHVC1,
+                    BoxType.MOOVHVCC,
+                    BoxType.MOOVCO64,
+                    BoxType.MOOVSTCO,
+                    BoxType.MOOVTRAKSOUND,
+                    BoxType.MOOVUUID,
+                    BoxType.MOOVMVEX,
+                    BoxType.UDTA);
+            udtaBoxSpecs = new BoxSpecs(
+                    BoxType.RTHU,
+                    BoxType.RMKN,
+                    BoxType.RDT1,
+                    BoxType.RDT2,
+                    BoxType.RDT3,
+                    BoxType.RDT4,
+                    BoxType.RDT5,
+                    BoxType.RDT6,
+                    BoxType.RDT7,
+                    BoxType.RDT8,
+                    BoxType.RDT9,
+                    BoxType.RDTA,
+                    BoxType.RDTB,
+                    BoxType.RDTC,
+                    BoxType.RDTD,
+                    BoxType.RDTG,
+                    BoxType.RDTI,
+                    BoxType.AMOD,
+                    BoxType.ASWR,
+                    BoxType.ADAY,
+                    BoxType.AXYZ,
+                    BoxType.AMAK,
+                    BoxType.MANU,
+                    BoxType.MODL);
+            uuidBoxSpecs = new BoxSpecs(
+                    BoxType.RADT,
+                    BoxType.RATR,
+                    BoxType.RATRtkhd,
+                    BoxType.RATRedts,
+                    BoxType.RATRelst,
+                    BoxType.RATRmdia,
+                    BoxType.RATRmdhd,
+                    BoxType.RATRhdlr,
+                    BoxType.RATRminf,
+                    BoxType.RATRsmhd,
+                    BoxType.RATRminfhdlr,
+                    BoxType.RATRdinf,
+                    BoxType.RATRdref,
+                    BoxType.RATRstbl,
+                    BoxType.RATRstsd,
+                    BoxType.RATRsowt,
+                    BoxType.RATRchan,
+                    BoxType.RATRSA3D,
+                    BoxType.RATRstts,
+                    BoxType.RATRstsc,
+                    BoxType.RATRstsz,
+                    BoxType.RATRco64);
             File file = new File(mMp4FilePath);
             mRandomAccessFile = new RandomAccessFile(file, "rw");
             mEndPos = file.length();
@@ -243,14 +358,19 @@ public class Box {
         private void parseMp4(RandomAccessFile raf) throws IOException {
             File file = new File(mMp4FilePath);
             mEndPos = file.length();
-            parseBoxOffset(rootBoxSpecs, 0, mEndPos, raf);
+            if (mFinalizationMode == FinalizationMode.FRAGMENTED) {
+                // Only the init segment is parsed, fragments are left untouched
+                parseBoxOffset(rootBoxSpecs, 0, getFirstFragmentOffset(raf), raf);
+            } else {
+                parseBoxOffset(rootBoxSpecs, 0, mEndPos, raf);
+            }
 
             long offset = getBoxOffset(rootBoxSpecs, BoxType.MOOV);
             if (!validOffset(offset, mEndPos)) {
                 return;
             }
             raf.seek(offset);
-            int size = raf.readInt();
+            long size = raf.readInt() & 0xFFFFFFFFL;
             if (!validSize(size)) {
                 return;
             }
@@ -262,7 +382,7 @@ public class Box {
                 return;
             }
             raf.seek(offset);
-            size = raf.readInt();
+            size = raf.readInt() & 0xFFFFFFFFL;
             if (!validSize(size)) {
                 return;
             }
@@ -282,14 +402,15 @@ public class Box {
             }
 
             offset = getBoxOffset(rootBoxSpecs, BoxType.MOOV);
-            size = (int) getBoxSize(rootBoxSpecs, BoxType.MOOV);
+            size = getBoxSize(rootBoxSpecs, BoxType.MOOV);
             parseMoov2tkhd(moovBoxSpecs, offset, offset + size);
 
             offset = getBoxOffset(rootBoxSpecs, BoxType.UUID);
-            size = (int) getBoxSize(rootBoxSpecs, BoxType.UUID);
+            size = getBoxSize(rootBoxSpecs, BoxType.UUID);
             if (offset == 0) {
             } else {
-                parseBoxOffset(uuidBoxSpecs, offset + BOX_HEADER_LEN + UUID_USER_TYPE.length,
+                parseBoxOffset(uuidBoxSpecs,
+                        offset + getHeaderLength(raf, offset) + UUID_USER_TYPE.length,
                         offset + size, raf);
             }
         }
@@ -316,258 +437,721 @@ public class Box {
 
         /**
          * Write metadata to video file
+         *
+         * @throws IOException when the file could not be read or written
          */
-        public void write() {
-            try {
-                copyOrgFileIO(mMp4FilePath);
+        public void write() throws IOException {
+            checkCancelled();
+            copyOrgFileIO(mMp4FilePath);
 
-                readTimestamp();
-                shiftTimezone();
+            readTimestamp();
+            shiftTimezone();
 
-                String model = CameraSettings.getThetaModel().toString();
-                byte[] bAmod = model.getBytes();
+            String model = CameraSettings.getThetaModel().toString();
+            byte[] bAmod = model.getBytes();
 
-                byte[] bAswr = null;
-                String firmwareVersion = CameraSettings.getThetaFirmwareVersion();
-                bAswr = getVersionFullName(model, firmwareVersion).getBytes();
+            byte[] bAswr = null;
+            String firmwareVersion = CameraSettings.getThetaFirmwareVersion();
+            bAswr = getVersionFullName(model, firmwareVersion).getBytes();
 
-                byte[] bAday = null;
-                String dateTimeZoneIso = CameraSettings.getDateTimeZoneISO();
-                if (dateTimeZoneIso != null) {
-                    bAday = dateTimeZoneIso.getBytes();
-                }
+            byte[] bAday = null;
+            String dateTimeZoneIso = CameraSettings.getDateTimeZoneISO();
+            if (dateTimeZoneIso != null) {
+                bAday = dateTimeZoneIso.getBytes();
+            }
 
-                byte[] bAxyz = new AXYZ().getData();
+            byte[] bAxyz = new AXYZ().getData();
 
-                String manufacturer = CameraSettings.getManufacturer();
-                byte[] bAmak = manufacturer.getBytes();
+            String manufacturer = CameraSettings.getManufacturer();
+            byte[] bAmak = manufacturer.getBytes();
 
-                byte[] bManu = new byte[6];
-                byte[] bManu_resouce = manufacturer.getBytes();
-                replaceByteArray(bManu, 0, bManu_resouce);
+            byte[] bManu = new byte[6];
+            byte[] bManu_resouce = manufacturer.getBytes();
+            replaceByteArray(bManu, 0, bManu_resouce);
 
-                byte[] bModl = model.getBytes();
+            byte[] bModl = model.getBytes();
 
-                int newUdtaSize = BOX_HEADER_LEN;
+            long newUdtaSize = BOX_HEADER_LEN;
 
-                long sizeRTHU = getBoxSize(udtaBoxSpecs, BoxType.RTHU);
-                newUdtaSize += sizeRTHU;
+            long sizeRTHU = getBoxSize(udtaBoxSpecs, BoxType.RTHU);
+            newUdtaSize += sizeRTHU;
 
-                long sizeRMKN = getBoxSize(udtaBoxSpecs,
-                        BoxType.RMKN);
-                newUdtaSize += sizeRMKN;
+            long sizeRMKN = getBoxSize(udtaBoxSpecs,
+                    BoxType.RMKN);
+            newUdtaSize += sizeRMKN;
 
-                newUdtaSize += getBoxSize(udtaBoxSpecs, BoxType.RDT1);
-                newUdtaSize += getBoxSize(udtaBoxSpecs, BoxType.RDT2);
-                newUdtaSize += getBoxSize(udtaBoxSpecs, BoxType.RDT3);
-                newUdtaSize += getBoxSize(udtaBoxSpecs, BoxType.RDT4);
-                newUdtaSize += getBoxSize(udtaBoxSpecs, BoxType.RDT6);
-                newUdtaSize += getBoxSize(udtaBoxSpecs, BoxType.RDT7);
-                newUdtaSize += getBoxSize(udtaBoxSpecs, BoxType.RDT8);
+            newUdtaSize += getBoxSize(udtaBoxSpecs, BoxType.RDT1);
+            newUdtaSize += getBoxSize(udtaBoxSpecs, BoxType.RDT2);
+            newUdtaSize += getBoxSize(udtaBoxSpecs, BoxType.RDT3);
+            newUdtaSize += getBoxSize(udtaBoxSpecs, BoxType.RDT4);
+            newUdtaSize += getBoxSize(udtaBoxSpecs, BoxType.RDT6);
+            newUdtaSize += getBoxSize(udtaBoxSpecs, BoxType.RDT7);
+            newUdtaSize += getBoxSize(udtaBoxSpecs, BoxType.RDT8);
 
-                int wavLength = 0;
-                File wavFile = new File(mWavFilePath);
-                RandomAccessFile wavAccessFile = null;
-                boolean wavexist = wavFile.exists();
-                if ((int) wavFile.length() == 0) {
-                    wavexist = false;
-                }
+            long wavLength = 0;
+            File wavFile = new File(mWavFilePath);
+            boolean wavexist = wavFile.exists();
+            if (wavFile.length() == 0) {
+                wavexist = false;
+            }
 
-                if ((int) wavFile.length() == 0) {
-                    wavexist = false;
-                }
+            if (wavexist) {
+                newUdtaSize += (BOX_HEADER_LEN + 16);
+            } else {
+                newUdtaSize += BOX_HEADER_LEN;
+            }
 
-                if (wavexist) {
-                    newUdtaSize += (BOX_HEADER_LEN + 16);
-                } else {
-                    newUdtaSize += BOX_HEADER_LEN;
-                }
+            long sizeRDTA = getBoxSize(udtaBoxSpecs, BoxType.RDTA);
+            newUdtaSize += sizeRDTA;
 
-                long sizeRDTA = getBoxSize(udtaBoxSpecs, BoxType.RDTA);
-                newUdtaSize += sizeRDTA;
+            long sizeRDTB = getBoxSize(udtaBoxSpecs, BoxType.RDTB);
+            newUdtaSize += sizeRDTB;
 
-                long sizeRDTB = getBoxSize(udtaBoxSpecs, BoxType.RDTB);
-                newUdtaSize += sizeRDTB;
+            long sizeRDTC = getBoxSize(udtaBoxSpecs, BoxType.RDTC);
+            newUdtaSize += sizeRDTC;
 
-                long sizeRDTC = getBoxSize(udtaBoxSpecs, BoxType.RDTC);
-                newUdtaSize += sizeRDTC;
+            long sizeRDTD = getBoxSize(udtaBoxSpecs, BoxType.RDTD);
+            newUdtaSize += sizeRDTD;
 
-                long sizeRDTD = getBoxSize(udtaBoxSpecs, BoxType.RDTD);
-                newUdtaSize += sizeRDTD;
+            long sizeRDTG = getBoxSize(udtaBoxSpecs, BoxType.RDTG);
+            newUdtaSize += sizeRDTG;
 
-                long sizeRDTG = getBoxSize(udtaBoxSpecs, BoxType.RDTG);
-                newUdtaSize += sizeRDTG;
+            long sizeRDTI = getBoxSize(udtaBoxSpecs, BoxType.RDTI);
+            newUdtaSize += sizeRDTI;
 
-                long sizeRDTI = getBoxSize(udtaBoxSpecs, BoxType.RDTI);
-                newUdtaSize += sizeRDTI;
+            newUdtaSize += BOX_HEADER_LEN + bAmod.length;
 
-                newUdtaSize += BOX_HEADER_LEN + bAmod.length;
+            newUdtaSize += BOX_HEADER_LEN + bAswr.length;
 
-                newUdtaSize += BOX_HEADER_LEN + bAswr.length;
+            if (bAday != null) {
+                newUdtaSize += BOX_HEADER_LEN + bAday.length;
+            }
 
-                if (bAday != null) {
-                    newUdtaSize += BOX_HEADER_LEN + bAday.length;
-                }
+            if (bAxyz != null) {
+                newUdtaSize += BOX_HEADER_LEN + bAxyz.length;
+            }
 
-                if (bAxyz != null) {
-                    newUdtaSize += BOX_HEADER_LEN + bAxyz.length;
-                }
+            newUdtaSize += BOX_HEADER_LEN + bAmak.length;
 
-                newUdtaSize += BOX_HEADER_LEN + bAmak.length;
+            newUdtaSize += BOX_HEADER_LEN + bManu.length;
 
-                newUdtaSize += BOX_HEADER_LEN + bManu.length;
+            newUdtaSize += BOX_HEADER_LEN + bModl.length;
 
-                newUdtaSize += BOX_HEADER_LEN + bModl.length;
+            long newUuidSize = 0;
+            long wavDataLength = 0;
+            long radtSize = 0;
 
-                long newUuidSize = 0;
+            RATR boxRATR = null;
+            if (wavexist) {
+                wavLength = wavFile.length();
+                wavDataLength = wavLength - WAV_HEADER_LEN;
 
-                RATR boxRATR = null;
-                if (wavexist) {
-                    newUuidSize += BOX_HEADER_LEN + UUID_USER_TYPE.length;
+                radtSize = BoxSpec.getHeaderLength(wavDataLength) + wavDataLength;
+                boxRATR = new RATR(wavDataLength);
 
-                    wavAccessFile = new RandomAccessFile(wavFile, "r");
-                    wavLength = (int) wavAccessFile.length();
+                long uuidDataSize = UUID_USER_TYPE.length + radtSize + boxRATR.size();
+                newUuidSize = BoxSpec.getHeaderLength(uuidDataSize) + uuidDataSize;
+            }
 
-                    newUuidSize += (BOX_HEADER_LEN + wavLength - WAV_HEADER_LEN);
+            byte[] bRMKN = getBoxData(BoxType.RMKN);
 
-                    boxRATR = new RATR(wavLength - WAV_HEADER_LEN);
-                    newUuidSize += boxRATR.size();
-                }
+            boolean foundStsd = parseMoov2stsd(moovBoxSpecs,
+                    getBoxOffset(rootBoxSpecs, BoxType.MOOV), mRandomAccessFile.length());
+            if (foundStsd) {
+                new ColorSpace().replaceColorSpace(mRandomAccessFile,
+                        getBoxOffset(moovBoxSpecs, BoxType.MOOVSTSD), getWidth(), getHeight(),
+                        mPatches);
+            }
 
-                byte[] bRTHU = getBoxData(BoxType.RTHU);
-                byte[] bRMKN = getBoxData(BoxType.RMKN);
-                byte[] bRdt1 = getBoxData(BoxType.RDT1);
-                byte[] bRdt2 = getBoxData(BoxType.RDT2);
-                byte[] bRdt3 = getBoxData(BoxType.RDT3);
-                byte[] bRdt4 = getBoxData(BoxType.RDT4);
-                byte[] bRdt6 = getBoxData(BoxType.RDT6);
-                byte[] bRdt7 = getBoxData(BoxType.RDT7);
-                byte[] bRdt8 = getBoxData(BoxType.RDT8);
-                byte[] bRdta = getBoxData(BoxType.RDTA);
-                byte[] bRdtb = getBoxData(BoxType.RDTB);
-                byte[] bRdtc = getBoxData(BoxType.RDTC);
-                byte[] bRdtd = getBoxData(BoxType.RDTD);
-                byte[] bRdtg = getBoxData(BoxType.RDTG);
-                byte[] bRdti = getBoxData(BoxType.RDTI);
-
-                boolean foundStsd = parseMoov2stsd(moovBoxSpecs,
-                        getBoxOffset(rootBoxSpecs, BoxType.MOOV), mRandomAccessFile.length());
-                if (foundStsd) {
-                    new ColorSpace().replaceColorSpace(mRandomAccessFile,
-                            getBoxOffset(moovBoxSpecs, BoxType.MOOVSTSD), getWidth(), getHeight());
-                }
+            byte[] convMvhdData = getBoxData(BoxType.MOOVMVHD);
+            byte[] convMoovTrakData = getBoxData(BoxType.MOOVTRAK);
+            byte[] convMoovTrakDataSound = getBoxData(BoxType.MOOVTRAKSOUND);
 
-                byte[] convMvhdData = getBoxData(BoxType.MOOVMVHD);
-                byte[] convMoovTrakData = getBoxData(BoxType.MOOVTRAK);
-                byte[] convMoovTrakDataSound = getBoxData(BoxType.MOOVTRAKSOUND);
+            SphereType sphereType = CameraSettings.getSphereType();
 
-                SphereType sphereType = CameraSettings.getSphereType();
+            int sizeBoxXMP = 0;
+            byte[] boxxmp = null;
+            if (sphereType == SphereType.EQUIRECTANGULAR) {
+                boxxmp = Xmp.getXmp(model, firmwareVersion, getTimestamp());
+                sizeBoxXMP = BOX_HEADER_LEN + UUID_SPHERICAL.length + boxxmp.length;
+            }
 
-                int sizeBoxXMP = 0;
-                byte[] boxxmp = null;
-                if (sphereType == SphereType.EQUIRECTANGULAR) {
-                    boxxmp = Xmp.getXmp(model, firmwareVersion, getTimestamp());
-                    sizeBoxXMP = BOX_HEADER_LEN + UUID_SPHERICAL.length + boxxmp.length;
-                }
+            if (bRMKN == null || bRMKN.length == 0) {
+                mPatches.commit(mRandomAccessFile.getChannel());
+                return;
+            }
+
+            bRMKN = convertRMKN(bRMKN);
+
+            // Unchanged boxes are moved within the file, only modified boxes are held here
+            List<UdtaEntry> udtaEntries = new ArrayList<>();
+            addMovedBox(udtaEntries, BoxType.RTHU);
+            udtaEntries.add(new UdtaEntry(BoxType.RMKN, bRMKN));
+            addMovedBox(udtaEntries, BoxType.RDT1);
+            addMovedBox(udtaEntries, BoxType.RDT2);
+            addMovedBox(udtaEntries, BoxType.RDT3);
+            addMovedBox(udtaEntries, BoxType.RDT4);
+            addMovedBox(udtaEntries, BoxType.RDT6);
+            addMovedBox(udtaEntries, BoxType.RDT7);
+            addMovedBox(udtaEntries, BoxType.RDT8);
+
+            byte[] bRdt9 = null;
+            if (wavexist) {
+                // RADT offset (replaced later) and WAV data length
+                bRdt9 = ByteBuffer.allocate(16).putLong(8, wavDataLength).array();
+            }
+            udtaEntries.add(new UdtaEntry(BoxType.RDT9, bRdt9));
+
+            addMovedBox(udtaEntries, BoxType.RDTA);
+            addMovedBox(udtaEntries, BoxType.RDTB);
+            addMovedBox(udtaEntries, BoxType.RDTC);
+            addMovedBox(udtaEntries, BoxType.RDTD);
+            if (sizeRDTG > BOX_HEADER_LEN) {
+                addMovedBox(udtaEntries, BoxType.RDTG);
+            }
+            addMovedBox(udtaEntries, BoxType.RDTI);
+            udtaEntries.add(new UdtaEntry(BoxType.AMOD, bAmod));
+            udtaEntries.add(new UdtaEntry(BoxType.ASWR, bAswr));
+            if (bAday != null) {
+                udtaEntries.add(new UdtaEntry(BoxType.ADAY, bAday));
+            }
+            if (bAxyz != null) {
+                udtaEntries.add(new UdtaEntry(BoxType.AXYZ, bAxyz));
+            }
+            udtaEntries.add(new UdtaEntry(BoxType.AMAK, bAmak));
+            udtaEntries.add(new UdtaEntry(BoxType.MANU, bManu));
+            udtaEntries.add(new UdtaEntry(BoxType.MODL, bModl));
 
-                if (bRMKN == null || bRMKN.length == 0) {
+            long moovOffset = getBoxOffset(rootBoxSpecs, BoxType.MOOV);
+            long moovSize = getBoxSize(rootBoxSpecs, BoxType.MOOV);
+            if (!validOffset(moovOffset, mEndPos)) {
+                mPatches.commit(mRandomAccessFile.getChannel());
+                return;
+            }
+            startModification();
+            long newFileSize = extendFile(newUdtaSize, sizeBoxXMP, newUuidSize);
+            mProgressTotal = newFileSize - moovOffset;
+
+            // The udta children are relocated before the moov children are rewritten
+            // over the start of the old udta
+            long udtaOffset = moovOffset + BOX_HEADER_LEN + getBoxLength(convMvhdData)
+                    + getBoxLength(convMoovTrakData) + sizeBoxXMP
+                    + getBoxLength(convMoovTrakDataSound);
+            long udtaEnd = relocateUdta(udtaOffset, udtaEntries);
+            if (newFileSize < mRandomAccessFile.length()) {
+                // Shrunk only now, the moved boxes were read from the end of the old udta
+                mRandomAccessFile.setLength(newFileSize);
+                mEndPos = newFileSize;
+            }
+
+            if (sphereType == SphereType.EQUIRECTANGULAR) {
+                if (!insertXMP(newUdtaSize, sizeBoxXMP, boxxmp,
+                        convMvhdData, convMoovTrakData, convMoovTrakDataSound)) {
+                    mPatches.commit(mRandomAccessFile.getChannel());
+                    return;
+                }
+            } else {
+                if (!replaceMoovUdtaSize(newUdtaSize, 0,
+                        convMvhdData, convMoovTrakData, convMoovTrakDataSound)) {
+                    mPatches.commit(mRandomAccessFile.getChannel());
                     return;
                 }
+            }
+            // moov children were rewritten from patched data
+            mPatches.discard(moovOffset, moovSize);
 
-                bRMKN = new RMKN().getData(bRMKN);
+            mRandomAccessFile.seek(udtaOffset);
+            addType(BoxType.UDTA.getValue(), (int) (newUdtaSize));
+            mRandomAccessFile.seek(udtaEnd);
 
-                long newFileSize = extendFile(newUdtaSize, sizeBoxXMP, newUuidSize);
+            if (wavexist) {
+                addLargeType(BoxType.UUID.getValue(), newUuidSize);
+                mRandomAccessFile.write(UUID_USER_TYPE);
 
-                if (sphereType == SphereType.EQUIRECTANGULAR) {
-                    if (!insertXMP(newUdtaSize, sizeBoxXMP, boxxmp,
-                            convMvhdData, convMoovTrakData, convMoovTrakDataSound)) {
-                        return;
-                    }
-                } else {
-                    if (!replaceMoovUdtaSize(newUdtaSize, 0,
-                            convMvhdData, convMoovTrakData, convMoovTrakDataSound)) {
-                        return;
-                    }
+                long RADToffset = mRandomAccessFile.getFilePointer();
+
+                addLargeType(BoxType.RADT.getValue(), radtSize);
+
+                mRandomAccessFile.seek(RADToffset + radtSize);
+
+                boxRATR.writeTo(mRandomAccessFile.getChannel(), RADToffset);
+                BoxSpec ratrBoxSpec = containBox(uuidBoxSpecs, BoxType.RADT);
+                ratrBoxSpec.setOffset(RADToffset);
+            }
+
+            mEndPos = newFileSize;
+
+            parseMp4(mRandomAccessFile);
+
+            if (wavexist) {
+                replaceRDT9Offset();
+
+                long RADToffset = getBoxOffset(uuidBoxSpecs, BoxType.RADT);
+                try (RandomAccessFile wavAccessFile = new RandomAccessFile(wavFile, "r")) {
+                    copyLargeWAV(wavAccessFile, mRandomAccessFile, WAV_HEADER_LEN,
+                            RADToffset + radtSize - wavDataLength, wavDataLength);
                 }
+            }
+            mPatches.commit(mRandomAccessFile.getChannel());
+            notifyProgress(mProgressTotal);
+        }
 
-                BoxSpec udtaBoxSpec = containBox(moovBoxSpecs, BoxType.UDTA.getValue());
-                mRandomAccessFile.seek(udtaBoxSpec.getOffset());
-                addType(BoxType.UDTA.getValue(), (int) (newUdtaSize));
-
-                addBox(BoxType.RTHU.getValue(), bRTHU);
-                addBox(BoxType.RMKN.getValue(), bRMKN);
-                addBox(BoxType.RDT1.getValue(), bRdt1);
-                addBox(BoxType.RDT2.getValue(), bRdt2);
-                addBox(BoxType.RDT3.getValue(), bRdt3);
-                addBox(BoxType.RDT4.getValue(), bRdt4);
-                addBox(BoxType.RDT6.getValue(), bRdt6);
-                addBox(BoxType.RDT7.getValue(), bRdt7);
-                addBox(BoxType.RDT8.getValue(), bRdt8);
-
-                if (wavexist) {
-                    addType(BoxType.RDT9.getValue(), BOX_HEADER_LEN + 16);
-                    byte[] bWAVoffset = new byte[8];
-                    byte[] bWAVlength = ByteBuffer.allocate(8)
-                            .putLong(wavAccessFile.length() - WAV_HEADER_LEN).array();
-                    mRandomAccessFile.write(bWAVoffset);
-                    mRandomAccessFile.write(bWAVlength);
+        /**
+         * Write metadata to fragmented video file
+         * (Only the init segment is rewritten, so the processing time does not depend on the
+         * recording length. Spatial audio is appended after the last fragment.)
+         */
+        public void writeFragmented() throws IOException {
+            if (getBoxOffset(moovBoxSpecs, BoxType.MOOVMVEX) == 0) {
+                throw new IOException("Not a fragmented MP4 file");
+            }
 
-                } else {
-                    addType(BoxType.RDT9.getValue());
+            String model = CameraSettings.getThetaModel().toString();
+            String firmwareVersion = CameraSettings.getThetaFirmwareVersion();
+
+            byte[] bRMKN = getBoxData(BoxType.RMKN);
+            if (bRMKN == null || bRMKN.length == 0) {
+                return;
+            }
+            bRMKN = convertRMKN(bRMKN);
+
+            File wavFile = new File(mWavFilePath);
+            boolean wavexist = wavFile.exists() && wavFile.length() != 0;
+            long wavDataLength = 0;
+            long uuidOffset = 0;
+            long uuidSize = 0;
+            long radtSize = 0;
+            RATR boxRATR = null;
+            byte[] bMfra = null;
+            if (wavexist) {
+                wavDataLength = wavFile.length() - WAV_HEADER_LEN;
+                radtSize = BoxSpec.getHeaderLength(wavDataLength) + wavDataLength;
+                boxRATR = new RATR(wavDataLength);
+                long uuidDataSize = UUID_USER_TYPE.length + radtSize + boxRATR.size();
+                uuidSize = BoxSpec.getHeaderLength(uuidDataSize) + uuidDataSize;
+
+                uuidOffset = getFragmentEndOffset();
+                if (uuidOffset != mRandomAccessFile.length()) {
+                    bMfra = new byte[(int) (mRandomAccessFile.length() - uuidOffset)];
+                    mRandomAccessFile.seek(uuidOffset);
+                    mRandomAccessFile.readFully(bMfra);
+                }
+            }
+            long RADToffset = uuidOffset + uuidSize - (radtSize + (wavexist ? boxRATR.size() : 0));
+
+            byte[] boxUdta = makeUdtaBox(model, firmwareVersion, bRMKN, wavexist,
+                    RADToffset, wavDataLength);
+
+            long moovOffset = getBoxOffset(rootBoxSpecs, BoxType.MOOV);
+            long moovSize = getBoxSize(rootBoxSpecs, BoxType.MOOV);
+            long reservedSize = moovSize + getFreeSizeAfter(moovOffset + moovSize);
+
+            readTimestamp();
+            checkCancelled();
+
+            // Check the reserved space before anything in the file is modified
+            long remainSize = getRemainSize(reservedSize, boxUdta, makeXmpBox(model,
+                    firmwareVersion));
+            if (remainSize < 0) {
+                throw new IOException("Not enough free space reserved after moov");
+            }
+
+            shiftTimezone();
+
+            // XMP holds the timestamp after the timezone is shifted
+            byte[] boxXmp = makeXmpBox(model, firmwareVersion);
+            remainSize = getRemainSize(reservedSize, boxUdta, boxXmp);
+            if (remainSize < 0) {
+                throw new IOException("Not enough free space reserved after moov");
+            }
+
+            boolean foundStsd = parseMoov2stsd(moovBoxSpecs, moovOffset, moovOffset + moovSize);
+            if (foundStsd) {
+                new ColorSpace().replaceColorSpace(mRandomAccessFile,
+                        getBoxOffset(moovBoxSpecs, BoxType.MOOVSTSD), getWidth(), getHeight(),
+                        mPatches);
+            }
+
+            byte[] boxMoov = makeFragmentedMoov(moovOffset, moovSize, boxUdta, boxXmp);
+            mPatches.discard(moovOffset, moovSize);
+            mProgressTotal = wavDataLength + boxMoov.length;
+
+            startModification();
+            if (wavexist) {
+                mRandomAccessFile.seek(uuidOffset);
+                addLargeType(BoxType.UUID.getValue(), uuidSize);
+                mRandomAccessFile.write(UUID_USER_TYPE);
+                addLargeType(BoxType.RADT.getValue(), radtSize);
+
+                try (RandomAccessFile wavAccessFile = new RandomAccessFile(wavFile, "r")) {
+                    copyLargeWAV(wavAccessFile, mRandomAccessFile, WAV_HEADER_LEN,
+                            RADToffset + radtSize - wavDataLength, wavDataLength);
                 }
 
-                addBox(BoxType.RDTA.getValue(), bRdta);
-                addBox(BoxType.RDTB.getValue(), bRdtb);
-                addBox(BoxType.RDTC.getValue(), bRdtc);
-                addBox(BoxType.RDTD.getValue(), bRdtd);
-                if (bRdtg != null) {
-                    addBox(BoxType.RDTG.getValue(), bRdtg);
+                mRandomAccessFile.seek(RADToffset + radtSize);
+                boxRATR.writeTo(mRandomAccessFile.getChannel(), RADToffset);
+                if (bMfra != null) {
+                    mRandomAccessFile.write(bMfra);
                 }
-                addBox(BoxType.RDTI.getValue(), bRdti);
-                addBox(BoxType.AMOD.getValue(), bAmod);
-                addBox(BoxType.ASWR.getValue(), bAswr);
+            }
+
+            // The init segment is written last, so that an interrupted finalization
+            // still leaves the original moov and all fragments playable
+            mPatches.put(moovOffset, boxMoov);
+            if (remainSize > 0) {
+                mPatches.put(moovOffset + boxMoov.length, ByteBuffer.allocate(BOX_HEADER_LEN)
+                        .putInt((int) remainSize).put(BoxType.FREE.getValue()).array());
+            }
+            mPatches.commit(mRandomAccessFile.getChannel());
+            notifyProgress(mProgressTotal);
+        }
+
+        private void checkCancelled() throws InterruptedIOException {
+            if (mJob != null && !isModified) {
+                mJob.checkCancelled();
+            }
+        }
+
+        /**
+         * Called before the first write to the file. Cancel is no longer honoured from here on,
+         * the pending patches (RDT9, ColorSpace, timestamps) must be committed with the rest
+         */
+        private void startModification() throws InterruptedIOException {
+            checkCancelled();
+            isModified = true;
+        }
+
+        private void notifyProgress(long processedBytes) {
+            if (mJob != null) {
+                mJob.notifyProgress(processedBytes, mProgressTotal);
+            }
+        }
 
-                if (bAday != null) {
-                    addBox(BoxType.ADAY.getValue(), bAday);
+        private long getRemainSize(long reservedSize, byte[] boxUdta, byte[] boxXmp) {
+            long newMoovSize = getBoxSize(rootBoxSpecs, BoxType.MOOV)
+                    - getBoxSize(moovBoxSpecs, BoxType.UDTA) + boxUdta.length;
+            if (boxXmp != null) {
+                newMoovSize += boxXmp.length;
+            }
+
+            long remainSize = reservedSize - newMoovSize;
+            if (0 < remainSize && remainSize < BOX_HEADER_LEN) {
+                // A free box header does not fit into the remaining space
+                return -1;
+            }
+            return remainSize;
+        }
+
+        private byte[] makeXmpBox(String model, String firmwareVersion) {
+            if (CameraSettings.getSphereType() != SphereType.EQUIRECTANGULAR) {
+                return null;
+            }
+
+            byte[] xmp = Xmp.getXmp(model, firmwareVersion, getTimestamp());
+            ByteBuffer buffer = ByteBuffer.allocate(
+                    BOX_HEADER_LEN + UUID_SPHERICAL.length + xmp.length);
+            buffer.putInt(buffer.capacity());
+            buffer.put(BoxType.MOOVUUID.getValue());
+            buffer.put(UUID_SPHERICAL);
+            buffer.put(xmp);
+            return buffer.array();
+        }
+
+        private long getFirstFragmentOffset(RandomAccessFile raf) throws IOException {
+            long pos = 0;
+
+            while (pos + BOX_HEADER_LEN <= mEndPos) {
+                raf.seek(pos);
+                long size = raf.readInt() & 0xFFFFFFFFL;
+                int type = raf.readInt();
+                if (type == BoxType.MOOF.getFourCC()) {
+                    return pos;
                 }
-                if (bAxyz != null) {
-                    addBox(BoxType.AXYZ.getValue(), bAxyz);
+                if (size == BOX_SIZE_LARGER) {
+                    size = raf.readLong();
+                }
+                if (!validSize(size)) {
+                    break;
                 }
-                addBox(BoxType.AMAK.getValue(), bAmak);
-                addBox(BoxType.MANU.getValue(), bManu);
-                addBox(BoxType.MODL.getValue(), bModl);
+                pos += size;
+            }
 
-                if (wavexist) {
-                    addType(BoxType.UUID.getValue(), (int) newUuidSize);
-                    mRandomAccessFile.write(UUID_USER_TYPE);
+            return mEndPos;
+        }
 
-                    long RADToffset = mRandomAccessFile.getFilePointer();
+        private long getFragmentEndOffset() throws IOException {
+            long length = mRandomAccessFile.length();
+            if (length < MFRO_LEN) {
+                return length;
+            }
 
-                    addType(BoxType.RADT.getValue(), wavLength - WAV_HEADER_LEN + BOX_HEADER_LEN);
+            mRandomAccessFile.seek(length - MFRO_LEN);
+            int size = mRandomAccessFile.readInt();
+            int type = mRandomAccessFile.readInt();
+            mRandomAccessFile.skipBytes(4);
+            long mfraSize = mRandomAccessFile.readInt() & 0xFFFFFFFFL;
 
-                    mRandomAccessFile.skipBytes(wavLength - WAV_HEADER_LEN);
+            if (size == MFRO_LEN && type == BoxType.MFRO.getFourCC()
+                    && validSize(mfraSize) && mfraSize <= length) {
+                return length - mfraSize;
+            }
 
-                    byte[] bRATR = boxRATR.getData(RADToffset);
-                    addBox(BoxType.RATR.getValue(), bRATR);
-                    BoxSpec ratrBoxSpec = containBox(uuidBoxSpecs, BoxType.RADT.getValue());
-                    ratrBoxSpec.setOffset(RADToffset);
+            return length;
+        }
+
+        private long getFreeSizeAfter(long offset) throws IOException {
+            if (offset + BOX_HEADER_LEN > mRandomAccessFile.length()) {
+                return 0;
+            }
+
+            mRandomAccessFile.seek(offset);
+            long size = mRandomAccessFile.readInt() & 0xFFFFFFFFL;
+            int type = mRandomAccessFile.readInt();
+            if (type == BoxType.FREE.getFourCC() && validSize(size)) {
+                return size;
+            }
+
+            return 0;
+        }
+
+        private byte[] makeUdtaBox(String model, String firmwareVersion, byte[] bRMKN,
+                boolean wavexist, long RADToffset, long wavDataLength) throws IOException {
+            ByteArrayOutputStream udta = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(udta);
+
+            out.writeInt(0);
+            out.write(BoxType.UDTA.getValue());
+
+            putBox(out, BoxType.RTHU, getBoxData(BoxType.RTHU));
+            putBox(out, BoxType.RMKN, bRMKN);
+            putBox(out, BoxType.RDT1, getBoxData(BoxType.RDT1));
+            putBox(out, BoxType.RDT2, getBoxData(BoxType.RDT2));
+            putBox(out, BoxType.RDT3, getBoxData(BoxType.RDT3));
+            putBox(out, BoxType.RDT4, getBoxData(BoxType.RDT4));
+            putBox(out, BoxType.RDT6, getBoxData(BoxType.RDT6));
+            putBox(out, BoxType.RDT7, getBoxData(BoxType.RDT7));
+            putBox(out, BoxType.RDT8, getBoxData(BoxType.RDT8));
+
+            if (wavexist) {
+                out.writeInt(BOX_HEADER_LEN + 16);
+                out.write(BoxType.RDT9.getValue());
+                out.writeLong(RADToffset);
+                out.writeLong(wavDataLength);
+            } else {
+                putBox(out, BoxType.RDT9, null);
+            }
+
+            putBox(out, BoxType.RDTA, getBoxData(BoxType.RDTA));
+            putBox(out, BoxType.RDTB, getBoxData(BoxType.RDTB));
+            putBox(out, BoxType.RDTC, getBoxData(BoxType.RDTC));
+            putBox(out, BoxType.RDTD, getBoxData(BoxType.RDTD));
+            byte[] bRdtg = getBoxData(BoxType.RDTG);
+            if (bRdtg != null) {
+                putBox(out, BoxType.RDTG, bRdtg);
+            }
+            putBox(out, BoxType.RDTI, getBoxData(BoxType.RDTI));
+
+            putBox(out, BoxType.AMOD, model.getBytes());
+            putBox(out, BoxType.ASWR, getVersionFullName(model, firmwareVersion).getBytes());
+            String dateTimeZoneIso = CameraSettings.getDateTimeZoneISO();
+            if (dateTimeZoneIso != null) {
+                putBox(out, BoxType.ADAY, dateTimeZoneIso.getBytes());
+            }
+            byte[] bAxyz = new AXYZ().getData();
+            if (bAxyz != null) {
+                putBox(out, BoxType.AXYZ, bAxyz);
+            }
+            String manufacturer = CameraSettings.getManufacturer();
+            putBox(out, BoxType.AMAK, manufacturer.getBytes());
+            byte[] bManu = new byte[6];
+            replaceByteArray(bManu, 0, manufacturer.getBytes());
+            putBox(out, BoxType.MANU, bManu);
+            putBox(out, BoxType.MODL, model.getBytes());
+
+            byte[] boxUdta = udta.toByteArray();
+            ByteBuffer.wrap(boxUdta).putInt(0, boxUdta.length);
+            return boxUdta;
+        }
+
+        private byte[] makeFragmentedMoov(long moovOffset, long moovSize, byte[] boxUdta,
+                byte[] boxXmp) throws IOException {
+            ByteArrayOutputStream moov = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(moov);
+
+            out.writeInt(0);
+            out.write(BoxType.MOOV.getValue());
+
+            boolean foundTrak = false;
+            long pos = moovOffset + BOX_HEADER_LEN;
+            while (pos < moovOffset + moovSize) {
+                mRandomAccessFile.seek(pos);
+                int size = mRandomAccessFile.readInt();
+                int type = mRandomAccessFile.readInt();
+                if (!validSize(size)) {
+                    throw new IOException("Invalid box size in moov");
                 }
+                byte[] data = new byte[size - BOX_HEADER_LEN];
+                mRandomAccessFile.readFully(data);
+                mPatches.apply(pos + BOX_HEADER_LEN, data);
+
+                if (type == BoxType.UDTA.getFourCC()) {
+                    // Replaced by the new udta at the end of moov
+                } else if (!foundTrak && boxXmp != null
+                        && type == BoxType.MOOVTRAK.getFourCC()) {
+                    foundTrak = true;
+                    out.writeInt(size + boxXmp.length);
+                    out.writeInt(type);
+                    out.write(data);
+                    out.write(boxXmp);
+                } else {
+                    out.writeInt(size);
+                    out.writeInt(type);
+                    out.write(data);
+                }
+                pos += size;
+            }
+            out.write(boxUdta);
 
-                mEndPos = newFileSize;
+            byte[] boxMoov = moov.toByteArray();
+            ByteBuffer.wrap(boxMoov).putInt(0, boxMoov.length);
+            return boxMoov;
+        }
 
-                parseMp4(mRandomAccessFile);
+        private void putBox(DataOutputStream out, BoxType boxType, byte[] data)
+                throws IOException {
+            if (data == null) {
+                out.writeInt(BOX_HEADER_LEN);
+                out.write(boxType.getValue());
+            } else {
+                out.writeInt(BOX_HEADER_LEN + data.length);
+                out.write(boxType.getValue());
+                out.write(data);
+            }
+        }
 
-                if (wavexist) {
-                    replaceRDT9Offset();
+        private void addMovedBox(List<UdtaEntry> entries, BoxType boxType) {
+            long offset = getBoxOffset(udtaBoxSpecs, boxType);
+            long size = getBoxSize(udtaBoxSpecs, boxType);
+            if (size < BOX_HEADER_LEN) {
+                // A missing box is written empty
+                entries.add(new UdtaEntry(boxType, null));
+            } else {
+                entries.add(new UdtaEntry(boxType, offset, size));
+            }
+        }
 
-                    long RADToffset = getBoxOffset(uuidBoxSpecs, BoxType.RADT);
-                    copyLargeWAV(wavAccessFile, mRandomAccessFile, WAV_HEADER_LEN,
-                            RADToffset + BOX_HEADER_LEN, wavLength - WAV_HEADER_LEN);
+        private long getBoxLength(byte[] data) {
+            return BOX_HEADER_LEN + ((data == null) ? 0 : data.length);
+        }
 
-                    wavAccessFile.close();
+        /**
+         * Lay out the udta children after the udta header and write them
+         * (Moved boxes keep their order, so moving the boxes toward the start first to last and
+         * then the boxes toward the end last to first never overwrites a box not moved yet)
+         *
+         * @param udtaOffset Offset of the new udta box
+         * @param entries udta children in the new order
+         * @return End offset of the written children
+         */
+        private long relocateUdta(long udtaOffset, List<UdtaEntry> entries) throws IOException {
+            long pos = udtaOffset + BOX_HEADER_LEN;
+            long lastSrcOffset = -1;
+            boolean ordered = true;
+            for (UdtaEntry entry : entries) {
+                entry.dstOffset = pos;
+                pos += entry.size;
+                if (entry.isMoved()) {
+                    ordered &= entry.srcOffset > lastSrcOffset;
+                    lastSrcOffset = entry.srcOffset;
                 }
+            }
+            if (!ordered) {
+                // Boxes of an unexpected order are read before anything is overwritten
+                for (UdtaEntry entry : entries) {
+                    if (entry.isMoved()) {
+                        entry.data = getBoxData(entry.type);
+                        entry.srcOffset = -1;
+                    }
+                }
+            }
 
-            } catch (IOException e) {
+            ByteBuffer buffer = ByteBuffer.allocate(CELLSIZE);
+            for (UdtaEntry entry : entries) {
+                if (entry.isMoved() && entry.dstOffset < entry.srcOffset) {
+                    moveRange(entry.srcOffset, entry.dstOffset, entry.size, buffer);
+                }
+            }
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                UdtaEntry entry = entries.get(i);
+                if (entry.isMoved() && entry.dstOffset > entry.srcOffset) {
+                    moveRange(entry.srcOffset, entry.dstOffset, entry.size, buffer);
+                }
+            }
+
+            for (UdtaEntry entry : entries) {
+                if (!entry.isMoved()) {
+                    mRandomAccessFile.seek(entry.dstOffset);
+                    addBox(entry.type.getValue(), entry.data);
+                }
+            }
+            return pos;
+        }
+
+        /**
+         * Move a range within the file
+         * (Chunks are taken from the end when moving toward the end, so that a chunk is read
+         * before it is overwritten. Chunks not overlapping their destination are transferred
+         * without copying through the Java heap)
+         */
+        private void moveRange(long srcOffset, long dstOffset, long length, ByteBuffer buffer)
+                throws IOException {
+            long distance = Math.abs(dstOffset - srcOffset);
+            if (distance == 0 || length == 0) {
+                return;
+            }
+            long chunkSize = Math.max(distance, buffer.capacity());
+            boolean forward = dstOffset > srcOffset;
+
+            long done = 0;
+            while (done < length) {
+                long chunk = Math.min(chunkSize, length - done);
+                long pos = forward ? length - done - chunk : done;
+                if (chunk <= distance) {
+                    transferRange(srcOffset + pos, dstOffset + pos, chunk);
+                } else {
+                    copyRange(srcOffset + pos, dstOffset + pos, (int) chunk, buffer);
+                }
+                done += chunk;
+            }
+        }
+
+        private void transferRange(long srcOffset, long dstOffset, long length)
+                throws IOException {
+            FileChannel channel = mRandomAccessFile.getChannel();
+            channel.position(dstOffset);
+            long done = 0;
+            while (done < length) {
+                long transferred = channel.transferTo(srcOffset + done, length - done, channel);
+                if (transferred <= 0) {
+                    throw new IOException("Failed to move udta box");
+                }
+                done += transferred;
+            }
+        }
+
+        private void copyRange(long srcOffset, long dstOffset, int length, ByteBuffer buffer)
+                throws IOException {
+            FileChannel channel = mRandomAccessFile.getChannel();
+            buffer.clear();
+            buffer.limit(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, srcOffset + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, dstOffset + buffer.position());
             }
         }
 
@@ -575,29 +1159,38 @@ public class Box {
             long lRADTOffset = getBoxOffset(uuidBoxSpecs, BoxType.RADT);
             long lRdt9Offset = getBoxOffset(udtaBoxSpecs, BoxType.RDT9);
 
-            mRandomAccessFile.seek(lRdt9Offset + BOX_HEADER_LEN);
-            mRandomAccessFile.writeLong(lRADTOffset);
+            mPatches.putLong(lRdt9Offset + BOX_HEADER_LEN, lRADTOffset);
         }
 
-        private long extendFile(int newUdtaSize, int sizeBoxXMP, long newUuidSize)
+        private long extendFile(long newUdtaSize, int sizeBoxXMP, long newUuidSize)
                 throws IOException {
             long convUdtaSize = getBoxSize(moovBoxSpecs, BoxType.UDTA);
 
+            // moov is rewritten with a 32-bit size
+            long newMoovSize = getBoxSize(rootBoxSpecs, BoxType.MOOV) - convUdtaSize
+                    + newUdtaSize + sizeBoxXMP;
+            if (newMoovSize > BoxSpec.MAX_COMPACT_BOX_SIZE) {
+                throw new IOException("moov box exceeds 4GB");
+            }
+
             long oldFileSize = mRandomAccessFile.length();
             long newFileSize =
                     oldFileSize - convUdtaSize + newUdtaSize + sizeBoxXMP + newUuidSize;
 
-            mRandomAccessFile.setLength(newFileSize);
+            // A smaller file is truncated after the udta children are relocated
+            if (newFileSize > oldFileSize) {
+                mRandomAccessFile.setLength(newFileSize);
+            }
 
             mEndPos = mRandomAccessFile.length();
             return newFileSize;
         }
 
-        private boolean insertXMP(int newUdtaSize, int sizeBoxXMP, byte[] boxxmp
+        private boolean insertXMP(long newUdtaSize, int sizeBoxXMP, byte[] boxxmp
                 , byte[] convMvhdData, byte[] convMoovTrakData,
                 byte[] convMoovTrackDataSound) throws IOException {
 
-            int newMoovSize = 0;
+            long newMoovSize = 0;
 
             long convMvhdSize = getBoxSize(moovBoxSpecs, BoxType.MOOVMVHD);
 
@@ -606,44 +1199,36 @@ public class Box {
             long convMoovTrakSoundSize = mBoxSpecSound.getBoxSize();
 
             long moovOffset = 0;
-            BoxSpec moovBoxSpec = containBox(rootBoxSpecs, BoxType.MOOV.getValue());
+            BoxSpec moovBoxSpec = containBox(rootBoxSpecs, BoxType.MOOV);
             moovOffset = moovBoxSpec.getOffset();
             if (!validOffset(moovOffset, mEndPos)) {
                 return false;
             }
 
             long moovSize;
-            moovSize = (int) (BOX_HEADER_LEN + convMvhdSize +
-                    convMoovTrakSize + convMoovTrakSoundSize + newUdtaSize);
+            moovSize = BOX_HEADER_LEN + convMvhdSize +
+                    convMoovTrakSize + convMoovTrakSoundSize + newUdtaSize;
 
-            newMoovSize = (int) moovSize + sizeBoxXMP;
+            newMoovSize = moovSize + sizeBoxXMP;
             mRandomAccessFile.seek(moovOffset);
-            addType(BoxType.MOOV.getValue(), newMoovSize);
+            addType(BoxType.MOOV.getValue(), (int) newMoovSize);
             moovBoxSpec.setlBoxSize(newMoovSize);
 
             addBox(BoxType.MOOVMVHD.getValue(), convMvhdData);
 
-            long tmpTrakPos = mRandomAccessFile.getFilePointer();
-            addBox(BoxType.MOOVTRAK.getValue(), convMoovTrakData);
-
-            long tmpPos = mRandomAccessFile.getFilePointer();
             int szBoxXMP = BOX_HEADER_LEN + UUID_SPHERICAL.length + boxxmp.length;
+            long trak_xmp_size = (int) (convMoovTrakData.length + BOX_HEADER_LEN + szBoxXMP);
+            addType(BoxType.MOOVTRAK.getValue(), (int) trak_xmp_size);
+            mRandomAccessFile.write(convMoovTrakData);
 
-            mRandomAccessFile.seek(tmpPos);
             addType(BoxType.MOOVUUID.getValue(), szBoxXMP);
             mRandomAccessFile.write(UUID_SPHERICAL);
             mRandomAccessFile.write(boxxmp);
-            tmpPos = mRandomAccessFile.getFilePointer();
-
-            mRandomAccessFile.seek(tmpTrakPos);
-            long trak_xmp_size = (int) (convMoovTrakData.length + BOX_HEADER_LEN + szBoxXMP);
-            mRandomAccessFile.writeInt((int) trak_xmp_size);
-            mRandomAccessFile.seek(tmpPos);
 
             addBox(BoxType.MOOVTRAKSOUND.getValue(), convMoovTrackDataSound);
 
-            tmpPos = mRandomAccessFile.getFilePointer();
-            BoxSpec udtaBoxSpec = containBox(moovBoxSpecs, BoxType.UDTA.getValue());
+            long tmpPos = mRandomAccessFile.getFilePointer();
+            BoxSpec udtaBoxSpec = containBox(moovBoxSpecs, BoxType.UDTA);
 
             addBox(BoxType.UDTA.getValue(), (int) newUdtaSize, null);
             udtaBoxSpec.setOffset(tmpPos);
@@ -653,30 +1238,30 @@ public class Box {
         private void copyLargeWAV(RandomAccessFile srcRadomAccessFile,
                 RandomAccessFile dstRandomAccessFile, long srcStartOffset, long dstStartOffset,
                 long dataLength) throws IOException {
-            int loopNum = (int) dataLength / CELLSIZE;
+            long loopNum = dataLength / CELLSIZE;
             byte[] cellByte = new byte[CELLSIZE];
-            for (int i = 0; i < loopNum; i++) {
+            for (long i = 0; i < loopNum; i++) {
+                notifyProgress(mProgressTotal - dataLength + (i * CELLSIZE));
                 srcRadomAccessFile.seek(srcStartOffset + (i * CELLSIZE));
-                srcRadomAccessFile.read(cellByte);
+                srcRadomAccessFile.readFully(cellByte);
                 dstRandomAccessFile.seek(dstStartOffset + (i * CELLSIZE));
                 dstRandomAccessFile.write(cellByte);
             }
 
-            int remainSize = (int) dataLength - (loopNum * CELLSIZE);
-            cellByte = new byte[remainSize];
+            int remainSize = (int) (dataLength - (loopNum * CELLSIZE));
             srcRadomAccessFile.seek(srcStartOffset + (loopNum * CELLSIZE));
-            srcRadomAccessFile.read(cellByte);
+            srcRadomAccessFile.readFully(cellByte, 0, remainSize);
             dstRandomAccessFile.seek(dstStartOffset + (loopNum * CELLSIZE));
-            dstRandomAccessFile.write(cellByte);
+            dstRandomAccessFile.write(cellByte, 0, remainSize);
         }
 
-        private boolean replaceMoovUdtaSize(int newUdtaSize, int sizeBoxXMP,
+        private boolean replaceMoovUdtaSize(long newUdtaSize, int sizeBoxXMP,
                 byte[] convMvhdData, byte[] convMoovTrakData, byte[] convMoovTrakDataSound)
                 throws IOException {
 
-            int newMoovSize = 0;
+            long newMoovSize = 0;
 
-            BoxSpec moovBox = containBox(rootBoxSpecs, BoxType.MOOV.getValue());
+            BoxSpec moovBox = containBox(rootBoxSpecs, BoxType.MOOV);
             long moovOffset = moovBox.getOffset();
 
             if (!validOffset(moovOffset, mEndPos)) {
@@ -684,7 +1269,7 @@ public class Box {
             }
             long moovSize = 0;
 
-            BoxSpec udtaBoxSpec = containBox(moovBoxSpecs, BoxType.UDTA.getValue());
+            BoxSpec udtaBoxSpec = containBox(moovBoxSpecs, BoxType.UDTA);
 
             moovSize = moovBox.getlBoxSize();
 
@@ -697,9 +1282,9 @@ public class Box {
             long udtaSize = 0;
             udtaSize = udtaBoxSpec.getBoxSize();
 
-            newMoovSize = (int) (moovSize - udtaSize + newUdtaSize) + sizeBoxXMP;
+            newMoovSize = moovSize - udtaSize + newUdtaSize + sizeBoxXMP;
             mRandomAccessFile.seek(moovOffset);
-            addType(BoxType.MOOV.getValue(), newMoovSize);
+            addType(BoxType.MOOV.getValue(), (int) newMoovSize);
 
             addBox(BoxType.MOOVMVHD.getValue(), convMvhdData);
 
@@ -708,11 +1293,11 @@ public class Box {
             addBox(BoxType.MOOVTRAKSOUND.getValue(), convMoovTrakDataSound);
 
             long udtaBoxPos = mRandomAccessFile.getFilePointer();
-            BoxSpec udtaBox = containBox(moovBoxSpecs, BoxType.UDTA.getValue());
+            BoxSpec udtaBox = containBox(moovBoxSpecs, BoxType.UDTA);
 
             addBox(BoxType.UDTA.getValue(), (int) udtaSize, null);
             udtaBox.setOffset(udtaBoxPos);
-            udtaBox.setBoxSize((int) udtaSize);
+            udtaBox.setBoxSize(udtaSize);
 
             return true;
         }
@@ -764,57 +1349,48 @@ public class Box {
             mRandomAccessFile.write(typeValue);
         }
 
-        private BoxSpec containBox(BoxSpec[] boxSpecs, byte[] type) {
-            for (BoxSpec boxSpec : boxSpecs) {
-                if (Arrays.equals(boxSpec.getType().getValue(), type)) {
-                    return boxSpec;
-                }
+        private void addLargeType(byte[] typeValue, long size) throws IOException {
+            if (size > BoxSpec.MAX_COMPACT_BOX_SIZE) {
+                mRandomAccessFile.writeInt(BOX_SIZE_LARGER);
+                mRandomAccessFile.write(typeValue);
+                mRandomAccessFile.writeLong(size);
+            } else {
+                addType(typeValue, (int) size);
             }
-
-            return null;
         }
 
-        private BoxSpec containBox(BoxSpec[] boxSpecs, int ordinal) {
-            for (BoxSpec boxSpec : boxSpecs) {
-                if (boxSpec.getType().ordinal() == ordinal) {
-                    return boxSpec;
-                }
+        private int getHeaderLength(RandomAccessFile raf, long offset) throws IOException {
+            raf.seek(offset);
+            if (raf.readInt() == BOX_SIZE_LARGER) {
+                return BOX_HEADER_LEN + 8;
             }
-
-            return null;
+            return BOX_HEADER_LEN;
         }
 
-        private long getBoxOffset(BoxSpec[] boxSpecs, BoxType boxType) {
-            for (BoxSpec boxSpec : boxSpecs) {
-                if (boxSpec.getType() == boxType) {
-                    return boxSpec.getOffset();
-                }
-            }
-
-            return 0L;
+        private BoxSpec containBox(BoxSpecs boxSpecs, int fourCC) {
+            return boxSpecs.get(fourCC);
         }
 
-        private long getBoxSize(BoxSpec[] boxSpecs, BoxType boxType) {
-            for (BoxSpec boxSpec : boxSpecs) {
-                if (boxSpec.getType() == boxType) {
-                    return boxSpec.getBoxSize();
-                }
-            }
+        private BoxSpec containBox(BoxSpecs boxSpecs, BoxType boxType) {
+            return boxSpecs.get(boxType);
+        }
 
-            return 0L;
+        private long getBoxOffset(BoxSpecs boxSpecs, BoxType boxType) {
+            BoxSpec boxSpec = boxSpecs.get(boxType);
+            return (boxSpec == null) ? 0L : boxSpec.getOffset();
         }
 
-        private long getlBoxSize(BoxSpec[] boxSpecs, BoxType boxType) {
-            for (BoxSpec boxSpec : boxSpecs) {
-                if (boxSpec.getType() == boxType) {
-                    return boxSpec.getlBoxSize();
-                }
-            }
+        private long getBoxSize(BoxSpecs boxSpecs, BoxType boxType) {
+            BoxSpec boxSpec = boxSpecs.get(boxType);
+            return (boxSpec == null) ? 0L : boxSpec.getBoxSize();
+        }
 
-            return 0L;
+        private long getlBoxSize(BoxSpecs boxSpecs, BoxType boxType) {
+            BoxSpec boxSpec = boxSpecs.get(boxType);
+            return (boxSpec == null) ? 0L : boxSpec.getlBoxSize();
         }
 
-        private boolean parseBoxOffset(BoxSpec[] boxSpecs, long offset, long endPos,
+        private boolean parseBoxOffset(BoxSpecs boxSpecs, long offset, long endPos,
                 RandomAccessFile raf) throws IOException {
             long pos = offset;
 
@@ -822,13 +1398,15 @@ public class Box {
 
             while (pos < endPos) {
                 long lsize;
-                long size = raf.readInt();
-                byte[] type = new byte[BOX_TYPE_LEN];
-                raf.read(type);
+                long size = raf.readInt() & 0xFFFFFFFFL;
+                int type = raf.readInt();
 
                 BoxSpec boxSpec = containBox(boxSpecs, type);
                 if (size == BOX_SIZE_LARGER) {
                     lsize = raf.readLong();
+                } else if (size == 0) {
+                    // The box extends to the end of the file
+                    lsize = endPos - pos;
                 } else {
                     lsize = size;
                 }
@@ -837,8 +1415,8 @@ public class Box {
                     return false;
                 }
                 if (boxSpec != null) {
-                    BoxSpec TrakVideo = containBox(boxSpecs, BoxType.MOOVTRAK.ordinal());
-                    BoxSpec TrakSound = containBox(boxSpecs, BoxType.MOOVTRAKSOUND.ordinal());
+                    BoxSpec TrakVideo = containBox(boxSpecs, BoxType.MOOVTRAK);
+                    BoxSpec TrakSound = containBox(boxSpecs, BoxType.MOOVTRAKSOUND);
                     long offsetMoovTrak = 0;
                     if (TrakVideo != null) {
                         offsetMoovTrak = TrakVideo.getOffset();
@@ -847,17 +1425,17 @@ public class Box {
 
                         if (offsetMoovTrak == 0 || pos == offsetMoovTrak) {
                             boxSpec.setOffset(pos);
-                            boxSpec.setBoxSize((int) size);
+                            boxSpec.setBoxSize(lsize);
                             boxSpec.setlBoxSize(lsize);
                         } else {
                             mBoxSpecSound = TrakSound;
                             mBoxSpecSound.setOffset(pos);
-                            mBoxSpecSound.setBoxSize((int) size);
+                            mBoxSpecSound.setBoxSize(lsize);
                             mBoxSpecSound.setlBoxSize(lsize);
                         }
                     } else {
                         boxSpec.setOffset(pos);
-                        boxSpec.setBoxSize((int) size);
+                        boxSpec.setBoxSize(lsize);
                         boxSpec.setlBoxSize(lsize);
                     }
                 }
@@ -869,7 +1447,7 @@ public class Box {
             return true;
         }
 
-        private boolean parseMoov2stsd(BoxSpec[] boxSpecs, long startOffset, long endOffset)
+        private boolean parseMoov2stsd(BoxSpecs boxSpecs, long startOffset, long endOffset)
                 throws IOException {
             long pos = startOffset + BOX_HEADER_LEN;
 
@@ -877,8 +1455,7 @@ public class Box {
 
             while (pos < endOffset) {
                 long size = mRandomAccessFile.readInt();
-                byte[] type = new byte[BOX_TYPE_LEN];
-                mRandomAccessFile.read(type);
+                int type = mRandomAccessFile.readInt();
 
                 BoxSpec boxSpec = containBox(boxSpecs, type);
 
@@ -913,9 +1490,9 @@ public class Box {
         }
 
         public void readTimestamp() throws IOException {
-            BoxSpec[] boxSpecs = moovBoxSpecs;
+            BoxSpecs boxSpecs = moovBoxSpecs;
             long startOffset = getBoxOffset(rootBoxSpecs, BoxType.MOOV);
-            long endOffset = startOffset + (int) getBoxSize(rootBoxSpecs, BoxType.MOOV);
+            long endOffset = startOffset + getBoxSize(rootBoxSpecs, BoxType.MOOV);
 
             long pos = startOffset + BOX_HEADER_LEN;
             boolean doSeekTrackSound = false;
@@ -926,9 +1503,7 @@ public class Box {
 
             while (pos < endOffset) {
                 long size = mRandomAccessFile.readInt();
-                byte[] type = new byte[BOX_TYPE_LEN];
-
-                mRandomAccessFile.read(type);
+                int type = mRandomAccessFile.readInt();
 
                 BoxSpec boxSpec = containBox(boxSpecs, type);
 
@@ -989,15 +1564,15 @@ public class Box {
         public void shiftTimezone() throws IOException {
             String timeZone = CameraSettings.getTimeZone();
             if (timeZone != null) {
-                mTimeMVHD.shift(timeZone);
-                mTimeTKHD.shift(timeZone);
-                mTimeMDHD.shift(timeZone);
-                mTimeTKHDSound.shift(timeZone);
-                mTimeMDHDSound.shift(timeZone);
+                mTimeMVHD.shift(timeZone, mPatches);
+                mTimeTKHD.shift(timeZone, mPatches);
+                mTimeMDHD.shift(timeZone, mPatches);
+                mTimeTKHDSound.shift(timeZone, mPatches);
+                mTimeMDHDSound.shift(timeZone, mPatches);
             }
         }
 
-        private boolean parseMoov2tkhd(BoxSpec[] boxSpecs, long startOffset, long endOffset)
+        private boolean parseMoov2tkhd(BoxSpecs boxSpecs, long startOffset, long endOffset)
                 throws IOException {
             long pos = startOffset;
 
@@ -1005,10 +1580,7 @@ public class Box {
 
             while (pos < endOffset) {
                 long size = mRandomAccessFile.readInt();
-                byte[] type = new byte[BOX_TYPE_LEN];
-                mRandomAccessFile.read(type);
-                String sType = new String(type, "UTF-8");
-
+                int type = mRandomAccessFile.readInt();
                 BoxSpec boxSpec = containBox(boxSpecs, type);
 
                 if (!validSize(size)) {
@@ -1020,7 +1592,7 @@ public class Box {
 
                 }
 
-                BoxType boxType = BoxType.getValue(sType);
+                BoxType boxType = BoxType.fromFourCC(type);
                 if (boxType != null) {
                     if (boxType == BoxType.MOOVTKHD) {
                         return true;
@@ -1056,23 +1628,15 @@ public class Box {
             return false;
         }
 
-        private BoxSpec[] getBlock(BoxType boxType) throws IOException {
-            for (BoxSpec rootBoxSpec : rootBoxSpecs) {
-                if (rootBoxSpec.getType() == boxType) {
-                    return rootBoxSpecs;
-                }
+        private BoxSpecs getBlock(BoxType boxType) throws IOException {
+            if (rootBoxSpecs.get(boxType) != null) {
+                return rootBoxSpecs;
             }
-
-            for (BoxSpec moovBoxSpec : moovBoxSpecs) {
-                if (moovBoxSpec.getType() == boxType) {
-                    return moovBoxSpecs;
-                }
+            if (moovBoxSpecs.get(boxType) != null) {
+                return moovBoxSpecs;
             }
-
-            for (BoxSpec udtaBoxSpec : udtaBoxSpecs) {
-                if (udtaBoxSpec.getType() == boxType) {
-                    return udtaBoxSpecs;
-                }
+            if (udtaBoxSpecs.get(boxType) != null) {
+                return udtaBoxSpecs;
             }
 
             return null;
@@ -1082,7 +1646,7 @@ public class Box {
             byte[] bData = null;
 
             try {
-                BoxSpec[] block = getBlock(boxType);
+                BoxSpecs block = getBlock(boxType);
 
                 if (block != null) {
                     long lOffset = getBoxOffset(block, boxType);
@@ -1092,6 +1656,7 @@ public class Box {
                         bData = new byte[(int) lSize - BOX_HEADER_LEN];
                         mRandomAccessFile.seek(lOffset + BOX_HEADER_LEN);
                         mRandomAccessFile.read(bData);
+                        mPatches.apply(lOffset + BOX_HEADER_LEN, bData);
                     }
                 }
             } catch (IOException e) {
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.exif;
+
+/**
+ * BoxHeader
+ * (Position and size of a box read by BoxReader)
+ */
+final class BoxHeader {
+    private final int mType;
+    private final long mOffset;
+    private final int mHeaderLength;
+    private final long mSize;
+
+    BoxHeader(int type, long offset, int headerLength, long size) {
+        mType = type;
+        mOffset = offset;
+        mHeaderLength = headerLength;
+        mSize = size;
+    }
+
+    /**
+     * @return FourCC of the box
+     */
+    int getType() {
+        return mType;
+    }
+
+    long getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * @return 8, or 16 with a largesize
+     */
+    int getHeaderLength() {
+        return mHeaderLength;
+    }
+
+    /**
+     * @return Box size including the header
+     */
+    long getSize() {
+        return mSize;
+    }
+
+    long getDataOffset() {
+        return mOffset + mHeaderLength;
+    }
+
+    long getDataLength() {
+        return mSize - mHeaderLength;
+    }
+
+    long getEndOffset() {
+        return mOffset + mSize;
+    }
+
+    /**
+     * @return true if the offset is in the data of the box
+     */
+    boolean containsData(long offset) {
+        return getDataOffset() <= offset && offset < getEndOffset();
+    }
+}
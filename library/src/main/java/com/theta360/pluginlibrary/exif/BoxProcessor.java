@@ -0,0 +1,333 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.exif;
+
+import android.os.Handler;
+import android.os.Looper;
+import androidx.annotation.NonNull;
+import com.theta360.pluginlibrary.exif.values.box.FinalizationMode;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * BoxProcessor
+ * (Forms Box data of recorded files one after another on a background executor)
+ */
+public class BoxProcessor {
+    public static final int DEFAULT_QUEUE_CAPACITY = 8;
+
+    public interface Callback extends Box.Callback {
+        /**
+         * Callback while Box granting process is writing the file
+         *
+         * @param fileUrls param[0]:MP4 file path param[1]:WAV file path
+         * @param processedBytes bytes already written (moov rewrite and WAV splice)
+         * @param totalBytes bytes to be written in total
+         */
+        void onProgress(String[] fileUrls, long processedBytes, long totalBytes);
+
+        /**
+         * Callback when Box granting process is cancelled
+         *
+         * @param fileUrls param[0]:MP4 file path param[1]:WAV file path
+         */
+        void onCancelled(String[] fileUrls);
+    }
+
+    /**
+     * Job
+     * (A recording queued for Box granting process)
+     */
+    public class Job {
+        private final String[] mFileUrls;
+        private final FinalizationMode mFinalizationMode;
+        private final Box.Callback mCallback;
+        private volatile boolean isCancelled = false;
+        private volatile boolean isDone = false;
+
+        private Job(String mp4Path, String wavPath, FinalizationMode finalizationMode,
+                Box.Callback callback) {
+            mFileUrls = new String[]{mp4Path, wavPath};
+            mFinalizationMode = finalizationMode;
+            mCallback = callback;
+        }
+
+        public String[] getFileUrls() {
+            return mFileUrls;
+        }
+
+        public boolean isCancelled() {
+            return isCancelled;
+        }
+
+        public boolean isDone() {
+            return isDone;
+        }
+
+        /**
+         * Cancel the job
+         * A queued job is dropped. A running job stops at the next check point before the file
+         * is modified. Once the file is being modified, the job runs to the end and reports
+         * onCompleted or onError, so that the recording is never left half written.
+         *
+         * @return true : cancel requested / false : already finished
+         */
+        public boolean cancel() {
+            if (isDone) {
+                return false;
+            }
+            isCancelled = true;
+
+            boolean removed;
+            synchronized (mQueue) {
+                removed = mQueue.remove(this);
+            }
+            if (removed) {
+                finish(false, null);
+            }
+            return true;
+        }
+
+        void checkCancelled() throws InterruptedIOException {
+            if (isCancelled) {
+                throw new InterruptedIOException("Box granting process cancelled");
+            }
+        }
+
+        void notifyProgress(final long processedBytes, final long totalBytes) {
+            if (!(mCallback instanceof Callback)) {
+                return;
+            }
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ((Callback) mCallback).onProgress(mFileUrls, processedBytes, totalBytes);
+                }
+            });
+        }
+
+        private void run() {
+            boolean completed = false;
+            IOException error = null;
+            try {
+                checkCancelled();
+                newBox().formBoxSync(mFileUrls[0], mFileUrls[1], mFinalizationMode, this);
+                completed = true;
+            } catch (InterruptedIOException e) {
+                isCancelled = true;
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new IOException(e);
+            }
+            finish(completed, error);
+        }
+
+        private void finish(final boolean completed, IOException error) {
+            isDone = true;
+            if (mCallback == null) {
+                return;
+            }
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (completed) {
+                        mCallback.onCompleted(mFileUrls);
+                    } else if (isCancelled) {
+                        if (mCallback instanceof Callback) {
+                            ((Callback) mCallback).onCancelled(mFileUrls);
+                        }
+                    } else {
+                        mCallback.onError();
+                    }
+                }
+            });
+        }
+    }
+
+    private final Executor mExecutor;
+    private final Executor mCallbackExecutor;
+    private final int mQueueCapacity;
+    private final ArrayDeque<Job> mQueue = new ArrayDeque<>();
+    private volatile Job mRunningJob;
+    private ExecutorService mOwnedExecutor;
+    private boolean isShutdown = false;
+
+    /**
+     * Processor with its own background thread, callbacks are called on the main thread.
+     * Call shutdown() to stop the thread
+     */
+    public BoxProcessor() {
+        this(Executors.newSingleThreadExecutor(), null, DEFAULT_QUEUE_CAPACITY);
+        mOwnedExecutor = (ExecutorService) mExecutor;
+    }
+
+    /**
+     * @param executor Executor running Box granting process (jobs are run one at a time)
+     * @param callbackExecutor Executor calling Callback (null : main thread)
+     * @param queueCapacity Maximum number of jobs waiting to be run
+     */
+    public BoxProcessor(@NonNull Executor executor, Executor callbackExecutor,
+            int queueCapacity) {
+        mExecutor = executor;
+        if (callbackExecutor == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            callbackExecutor = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            };
+        }
+        mCallbackExecutor = callbackExecutor;
+        mQueueCapacity = queueCapacity;
+    }
+
+    /**
+     * Queue Box granting process of a recording. Call Callback when finished
+     *
+     * @param mp4Path MP4 file path
+     * @param wavPath WAV file path
+     * @param finalizationMode PROGRESSIVE or FRAGMENTED
+     * @param callback End callback (BoxProcessor.Callback also receives progress and cancel)
+     * @return Job handle
+     * @throws RejectedExecutionException when the queue is full or the processor is shut down
+     */
+    public Job submit(String mp4Path, String wavPath, FinalizationMode finalizationMode,
+            Box.Callback callback) {
+        Job job = new Job(mp4Path, wavPath, finalizationMode, callback);
+        synchronized (mQueue) {
+            if (isShutdown) {
+                throw new RejectedExecutionException("Box processor is shut down");
+            }
+            if (mQueue.size() >= mQueueCapacity) {
+                throw new RejectedExecutionException("Box processing queue is full");
+            }
+            mQueue.add(job);
+        }
+        scheduleNext();
+        return job;
+    }
+
+    /**
+     * Run Box granting process on the calling thread
+     *
+     * @param mp4Path MP4 file path
+     * @param wavPath WAV file path
+     * @param finalizationMode PROGRESSIVE or FRAGMENTED
+     * @throws IOException when the file could not be processed
+     */
+    public void process(String mp4Path, String wavPath, FinalizationMode finalizationMode)
+            throws IOException {
+        new Box().formBoxSync(mp4Path, wavPath, finalizationMode, null);
+    }
+
+    /**
+     * Number of jobs waiting to be run
+     */
+    public int getQueuedCount() {
+        synchronized (mQueue) {
+            return mQueue.size();
+        }
+    }
+
+    /**
+     * Cancel the running job and all queued jobs
+     */
+    public void cancelAll() {
+        Job[] jobs;
+        synchronized (mQueue) {
+            jobs = mQueue.toArray(new Job[0]);
+        }
+        for (Job job : jobs) {
+            job.cancel();
+        }
+        Job runningJob = mRunningJob;
+        if (runningJob != null) {
+            runningJob.cancel();
+        }
+    }
+
+    /**
+     * @return Box running a job
+     */
+    Box newBox() {
+        return new Box();
+    }
+
+    /**
+     * Cancel the queued jobs and reject new ones. The running job finishes, then the thread of
+     * BoxProcessor() stops (an executor given to the constructor is left to its owner)
+     */
+    public void shutdown() {
+        Job[] jobs;
+        synchronized (mQueue) {
+            isShutdown = true;
+            jobs = mQueue.toArray(new Job[0]);
+        }
+        for (Job job : jobs) {
+            job.cancel();
+        }
+        if (mOwnedExecutor != null) {
+            mOwnedExecutor.shutdown();
+        }
+    }
+
+    private void scheduleNext() {
+        final Job job;
+        synchronized (mQueue) {
+            if (mRunningJob != null || mQueue.isEmpty()) {
+                return;
+            }
+            job = mQueue.poll();
+            mRunningJob = job;
+        }
+
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        job.run();
+                    } finally {
+                        synchronized (mQueue) {
+                            mRunningJob = null;
+                        }
+                        scheduleNext();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The executor takes no more jobs, none of the queued ones would ever run
+            Job[] queued;
+            synchronized (mQueue) {
+                mRunningJob = null;
+                queued = mQueue.toArray(new Job[0]);
+                mQueue.clear();
+            }
+            job.finish(false, null);
+            for (Job queuedJob : queued) {
+                queuedJob.finish(false, null);
+            }
+        }
+    }
+}
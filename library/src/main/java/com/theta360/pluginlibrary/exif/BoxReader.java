@@ -0,0 +1,103 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.exif;
+
+import com.theta360.pluginlibrary.exif.values.box.BoxType;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * BoxReader
+ * (Reads box headers through a FileChannel)
+ */
+class BoxReader {
+    private static final int BOX_SIZE_LEN = 4;
+    private static final int BOX_TYPE_LEN = 4;
+    private static final int BOX_HEADER_LEN = BOX_SIZE_LEN + BOX_TYPE_LEN;
+    private static final int BOX_LARGESIZE_LEN = 8;
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(BOX_HEADER_LEN + BOX_LARGESIZE_LEN);
+
+    BoxReader(FileChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * Read the header of the box at a position
+     *
+     * @param pos Box offset
+     * @param endOffset End of the parent box
+     * @return Box (null : no box fitting in the parent)
+     */
+    BoxHeader readHeader(long pos, long endOffset) throws IOException {
+        if (endOffset - pos < BOX_HEADER_LEN) {
+            return null;
+        }
+        mHeader.clear();
+        mHeader.limit(BOX_HEADER_LEN);
+        readFully(mHeader, pos);
+        int type = mHeader.getInt(BOX_SIZE_LEN);
+
+        long size = mHeader.getInt(0) & 0xffffffffL;
+        int headerLength = BOX_HEADER_LEN;
+        if (size == 1) {
+            if (endOffset - pos < BOX_HEADER_LEN + BOX_LARGESIZE_LEN) {
+                return null;
+            }
+            mHeader.limit(BOX_HEADER_LEN + BOX_LARGESIZE_LEN);
+            readFully(mHeader, pos + BOX_HEADER_LEN);
+            size = mHeader.getLong(BOX_HEADER_LEN);
+            headerLength += BOX_LARGESIZE_LEN;
+        } else if (size == 0) {
+            size = endOffset - pos;
+        }
+        if (size < headerLength || size > endOffset - pos) {
+            return null;
+        }
+        return new BoxHeader(type, pos, headerLength, size);
+    }
+
+    /**
+     * @return First box of the type in the range (null : not found)
+     */
+    BoxHeader findBox(long startOffset, long endOffset, BoxType boxType) throws IOException {
+        long pos = startOffset;
+        while (pos < endOffset) {
+            BoxHeader box = readHeader(pos, endOffset);
+            if (box == null) {
+                return null;
+            }
+            if (box.getType() == boxType.getFourCC()) {
+                return box;
+            }
+            pos += box.getSize();
+        }
+        return null;
+    }
+
+    void readFully(ByteBuffer buffer, long pos) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, pos);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            pos += read;
+        }
+    }
+}
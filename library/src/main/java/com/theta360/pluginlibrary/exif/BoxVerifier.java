@@ -0,0 +1,295 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.exif;
+
+import androidx.annotation.NonNull;
+import com.theta360.pluginlibrary.exif.values.box.BoxType;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * BoxVerifier
+ * (Checks the structure of a recording after Box granting process. Only box headers and chunk
+ * offset tables are read, so the time does not depend on the recording length)
+ */
+public class BoxVerifier {
+    private static final int USER_TYPE_LEN = 16;
+    private static final int FULL_BOX_TABLE_HEADER_LEN = 8;
+    private static final int RDT9_DATA_LEN = 16;
+    private static final int TABLE_BUFFER_SIZE = 8 * 1024;
+
+    private static final byte[] UUID_USER_TYPE = {
+            0x28, (byte) 0xF3, 0x11, (byte) 0xE2, (byte) 0xB7, (byte) 0x91, 0x4F, 0x6F,
+            (byte) 0x94, (byte) 0xE2, 0x4F, 0x5D, (byte) 0xEA, (byte) 0xCB, 0x3C, 0x01};
+
+    private static final Set<BoxType> CONTAINER_TYPES = EnumSet.of(
+            BoxType.MOOV, BoxType.MOOVTRAK, BoxType.MOOVMDIA, BoxType.MOOVMINF,
+            BoxType.MOOVSTBL, BoxType.MOOVMVEX, BoxType.UDTA, BoxType.RATR,
+            BoxType.RATRedts, BoxType.RATRdinf);
+
+    /**
+     * Result
+     */
+    public static class Result {
+        private final List<String> mErrors = new ArrayList<>();
+
+        public boolean isValid() {
+            return mErrors.isEmpty();
+        }
+
+        /**
+         * @return Problems found, in file order within each check
+         */
+        public List<String> getErrors() {
+            return Collections.unmodifiableList(mErrors);
+        }
+
+        @Override
+        public String toString() {
+            return isValid() ? "valid" : mErrors.toString();
+        }
+
+        private void addError(String error) {
+            mErrors.add(error);
+        }
+    }
+
+    private final FileChannel mChannel;
+    private final BoxReader mBoxReader;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(TABLE_BUFFER_SIZE);
+    private final Result mResult = new Result();
+    private final List<BoxHeader> mMdats = new ArrayList<>();
+    private BoxHeader mMoov;
+    private BoxHeader mRicohUuid;
+    private BoxHeader mRadt;
+    private BoxHeader mRdt9;
+
+    private BoxVerifier(FileChannel channel) {
+        mChannel = channel;
+        mBoxReader = new BoxReader(channel);
+    }
+
+    /**
+     * Verify box sizes and nesting, chunk offsets of the traks, and the RDT9 / RATR pointers to
+     * the spatial audio
+     *
+     * @param mp4FilePath MP4 file path
+     * @return Result
+     * @throws IOException when the file is not readable
+     */
+    public static Result verify(@NonNull String mp4FilePath) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(mp4FilePath, "r")) {
+            BoxVerifier verifier = new BoxVerifier(randomAccessFile.getChannel());
+            verifier.verifyRoot();
+            if (verifier.mMoov == null) {
+                verifier.mResult.addError("moov box not found");
+            } else {
+                verifier.verifyContainer(verifier.mMoov, BoxType.MOOV, "moov",
+                        verifier.mMdats);
+            }
+            verifier.verifyRicohUuid();
+            verifier.verifyRdt9();
+            return verifier.mResult;
+        }
+    }
+
+    private void verifyRoot() throws IOException {
+        long fileSize = mChannel.size();
+        long pos = 0;
+        while (pos < fileSize) {
+            BoxHeader box = mBoxReader.readHeader(pos, fileSize);
+            if (box == null) {
+                mResult.addError("Invalid box at offset " + pos + " of " + fileSize);
+                return;
+            }
+            int type = box.getType();
+            if (type == BoxType.MDAT.getFourCC()) {
+                mMdats.add(box);
+            } else if (type == BoxType.MOOV.getFourCC()) {
+                if (mMoov != null) {
+                    mResult.addError("Second moov box at offset " + pos);
+                }
+                mMoov = box;
+            } else if (type == BoxType.UUID.getFourCC() && isRicohUuid(box)) {
+                mRicohUuid = box;
+            }
+            pos += box.getSize();
+        }
+    }
+
+    /**
+     * Children must exactly fill the parent
+     */
+    private void verifyContainer(BoxHeader parent, BoxType parentType, String path,
+            List<BoxHeader> mediaBoxes) throws IOException {
+        long endOffset = parent.getEndOffset();
+        long pos = parent.getDataOffset();
+        while (pos < endOffset) {
+            BoxHeader box = mBoxReader.readHeader(pos, endOffset);
+            if (box == null) {
+                mResult.addError(path + ": invalid child box at offset " + pos);
+                return;
+            }
+            BoxType boxType = BoxType.fromFourCC(box.getType());
+            if (CONTAINER_TYPES.contains(boxType)) {
+                verifyContainer(box, boxType, path + "/" + boxType.getName(), mediaBoxes);
+            } else if (boxType == BoxType.MOOVSTCO || boxType == BoxType.MOOVCO64) {
+                verifyChunkOffsets(box, boxType == BoxType.MOOVCO64,
+                        path + "/" + boxType.getName(), mediaBoxes);
+            } else if (boxType == BoxType.RDT9 && parentType == BoxType.UDTA) {
+                mRdt9 = box;
+            }
+            pos += box.getSize();
+        }
+    }
+
+    /**
+     * Every chunk offset must point into the media data of the trak
+     */
+    private void verifyChunkOffsets(BoxHeader box, boolean is64, String path,
+            List<BoxHeader> mediaBoxes) throws IOException {
+        long dataLength = box.getDataLength();
+        if (dataLength < FULL_BOX_TABLE_HEADER_LEN) {
+            mResult.addError(path + ": truncated box");
+            return;
+        }
+        long pos = box.getDataOffset();
+        mBuffer.clear();
+        mBuffer.limit(FULL_BOX_TABLE_HEADER_LEN);
+        mBoxReader.readFully(mBuffer, pos);
+        long count = mBuffer.getInt(4) & 0xffffffffL;
+        int entrySize = is64 ? 8 : 4;
+        if (count * entrySize > dataLength - FULL_BOX_TABLE_HEADER_LEN) {
+            mResult.addError(path + ": " + count + " entries exceed the box size");
+            return;
+        }
+
+        pos += FULL_BOX_TABLE_HEADER_LEN;
+        long index = 0;
+        while (index < count) {
+            int entries = (int) Math.min(TABLE_BUFFER_SIZE / entrySize, count - index);
+            mBuffer.clear();
+            mBuffer.limit(entries * entrySize);
+            mBoxReader.readFully(mBuffer, pos);
+            mBuffer.flip();
+            for (int i = 0; i < entries; i++) {
+                long offset = is64 ? mBuffer.getLong() : mBuffer.getInt() & 0xffffffffL;
+                if (!isInData(offset, mediaBoxes)) {
+                    mResult.addError(path + ": chunk " + (index + i) + " offset " + offset
+                            + " is outside the media data");
+                    return;
+                }
+            }
+            pos += entries * entrySize;
+            index += entries;
+        }
+    }
+
+    private void verifyRicohUuid() throws IOException {
+        if (mRicohUuid == null) {
+            return;
+        }
+        long endOffset = mRicohUuid.getEndOffset();
+        long pos = mRicohUuid.getDataOffset() + USER_TYPE_LEN;
+        BoxHeader ratr = null;
+        while (pos < endOffset) {
+            BoxHeader box = mBoxReader.readHeader(pos, endOffset);
+            if (box == null) {
+                mResult.addError("uuid: invalid child box at offset " + pos);
+                return;
+            }
+            int type = box.getType();
+            if (type == BoxType.RADT.getFourCC()) {
+                mRadt = box;
+            } else if (type == BoxType.RATR.getFourCC()) {
+                ratr = box;
+            }
+            pos += box.getSize();
+        }
+
+        if (ratr == null) {
+            mResult.addError("uuid: RATR box not found");
+        } else if (mRadt == null) {
+            mResult.addError("uuid: RADT box not found");
+        } else {
+            verifyContainer(ratr, BoxType.RATR, "uuid/RATR", Collections.singletonList(mRadt));
+        }
+    }
+
+    /**
+     * RDT9 holds the RADT offset and the WAV data length
+     */
+    private void verifyRdt9() throws IOException {
+        long dataLength = (mRdt9 == null) ? 0 : mRdt9.getDataLength();
+        if (dataLength == 0) {
+            if (mRadt != null) {
+                mResult.addError("RDT9: no pointer to the RADT box");
+            }
+            return;
+        }
+        if (dataLength < RDT9_DATA_LEN) {
+            mResult.addError("RDT9: truncated box");
+            return;
+        }
+
+        mBuffer.clear();
+        mBuffer.limit(RDT9_DATA_LEN);
+        mBoxReader.readFully(mBuffer, mRdt9.getDataOffset());
+        long radtOffset = mBuffer.getLong(0);
+        long wavDataLength = mBuffer.getLong(8);
+        if (mRadt == null) {
+            mResult.addError("RDT9: points at " + radtOffset + " but there is no RADT box");
+            return;
+        }
+        if (radtOffset != mRadt.getOffset()) {
+            mResult.addError("RDT9: RADT offset " + radtOffset + " differs from the RADT box at "
+                    + mRadt.getOffset());
+        }
+        long radtDataLength = mRadt.getDataLength();
+        if (wavDataLength != radtDataLength) {
+            mResult.addError("RDT9: WAV length " + wavDataLength + " differs from the RADT data "
+                    + radtDataLength);
+        }
+    }
+
+    private boolean isRicohUuid(BoxHeader box) throws IOException {
+        if (box.getDataLength() < USER_TYPE_LEN) {
+            return false;
+        }
+        mBuffer.clear();
+        mBuffer.limit(USER_TYPE_LEN);
+        mBoxReader.readFully(mBuffer, box.getDataOffset());
+        return Arrays.equals(Arrays.copyOf(mBuffer.array(), USER_TYPE_LEN), UUID_USER_TYPE);
+    }
+
+    private boolean isInData(long offset, List<BoxHeader> boxes) {
+        for (BoxHeader box : boxes) {
+            if (box.containsData(offset)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -20,6 +20,7 @@ import com.theta360.pluginlibrary.exif.objects.box.AudioDebug;
 import com.theta360.pluginlibrary.exif.objects.exif.ImageQualityDebug;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.Locale;
 import java.util.regex.Pattern;
@@ -355,6 +356,74 @@ public class Exif {
         return (int)(pitch * 100);
     }
 
+    /**
+     * Returns the sphere type recorded in the captured image data.
+     *
+     * @return SphereType (null : not recorded)
+     */
+    public SphereType getSphereType() {
+        byte[] sphereType = getAttribute(IFD.MAPP1_SPHERE, Tag.TAG_R_0001);
+        if (sphereType == null || sphereType.length < 2) {
+            return null;
+        }
+        return SphereType.getValue(wrapAttribute(sphereType).getShort());
+    }
+
+    /**
+     * Returns the camera tilt recorded by setExifSphere().
+     * Both are 0 when the image is zenith corrected.
+     *
+     * @return {pitch, roll} in degrees (null : not recorded)
+     */
+    public double[] getSpherePitchRoll() {
+        byte[] pitchRoll = getAttribute(IFD.MAPP1_SPHERE, Tag.TAG_R_0003);
+        if (pitchRoll == null || pitchRoll.length < 16) {
+            return null;
+        }
+        // Written as big endian bytes by setExifSphere()
+        ByteBuffer byteBuffer = ByteBuffer.wrap(pitchRoll);
+        int rollNumer = byteBuffer.getInt();
+        int rollDenom = byteBuffer.getInt();
+        int pitchNumer = byteBuffer.getInt();
+        int pitchDenom = byteBuffer.getInt();
+        if (rollDenom == 0 || pitchDenom == 0) {
+            return null;
+        }
+        return new double[]{(double) pitchNumer / pitchDenom, (double) rollNumer / rollDenom};
+    }
+
+    /**
+     * Returns whether the captured image data is zenith corrected.
+     *
+     * @return true: zenith corrected
+     */
+    public boolean isZenithCorrected() {
+        byte[] zenith = getAttribute(IFD.MAPP1_SPHERE, Tag.TAG_R_0007);
+        return zenith != null && zenith.length >= 2 && zenith[1] != 0x00;
+    }
+
+    /**
+     * Record that the image has been leveled after capture, e.g. by ZenithLeveler.
+     * Zenith correction is set on and the recorded pitch and roll are cleared.
+     */
+    public void setZenithCorrected() {
+        setAttribute(IFD.MAPP1_SPHERE, Tag.TAG_R_0007, new byte[]{0x00, 0x01});
+
+        final int denom100 = 100;
+        byte[] bPitchRoll = new byte[16];
+        System.arraycopy(ByteBuffer.allocate(4).putInt(denom100).array(), 0, bPitchRoll, 4, 4);
+        System.arraycopy(ByteBuffer.allocate(4).putInt(denom100).array(), 0, bPitchRoll, 12, 4);
+        setAttribute(IFD.MAPP1_SPHERE, Tag.TAG_R_0003, bPitchRoll);
+    }
+
+    private ByteBuffer wrapAttribute(byte[] value) {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(value);
+        if (getEndian() == Buffer.Endian.LITTLE) {
+            byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return byteBuffer;
+    }
+
     /**
      * Set the sphere information to the captured image data held in the Exif object.
      */
@@ -0,0 +1,305 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.exif;
+
+import androidx.annotation.NonNull;
+import com.theta360.pluginlibrary.exif.values.box.BoxType;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * TelemetryReader
+ * (Reads the sensor streams of udta RDTx boxes through a memory map, without loading them)
+ */
+public class TelemetryReader implements Closeable {
+    private static final Set<BoxType> TELEMETRY_TYPES = EnumSet.of(
+            BoxType.RDT1, BoxType.RDT2, BoxType.RDT3, BoxType.RDT4, BoxType.RDT5,
+            BoxType.RDT6, BoxType.RDT7, BoxType.RDT8, BoxType.RDT9, BoxType.RDTA,
+            BoxType.RDTB, BoxType.RDTC, BoxType.RDTD, BoxType.RDTG, BoxType.RDTI);
+
+    /**
+     * Layout of the fixed-size records of a telemetry box
+     * (The layout depends on the box type and the camera firmware)
+     */
+    public static class Layout {
+        private final int mHeaderLength;
+        private final int mRecordLength;
+        private final ByteOrder mByteOrder;
+
+        /**
+         * @param headerLength Bytes before the first record
+         * @param recordLength Bytes of a record
+         * @param byteOrder Byte order of the record fields
+         */
+        public Layout(int headerLength, int recordLength, @NonNull ByteOrder byteOrder) {
+            if (headerLength < 0 || recordLength <= 0) {
+                throw new IllegalArgumentException("Invalid record layout");
+            }
+            mHeaderLength = headerLength;
+            mRecordLength = recordLength;
+            mByteOrder = byteOrder;
+        }
+
+        public int getHeaderLength() {
+            return mHeaderLength;
+        }
+
+        public int getRecordLength() {
+            return mRecordLength;
+        }
+
+        public ByteOrder getByteOrder() {
+            return mByteOrder;
+        }
+    }
+
+    /**
+     * Record
+     * (View of one record in the mapped box. Field offsets are relative to the record)
+     */
+    public static class Record {
+        private final ByteBuffer mBuffer;
+        private final Layout mLayout;
+        private int mIndex;
+        private int mBase;
+
+        private Record(ByteBuffer buffer, Layout layout) {
+            mBuffer = buffer;
+            mLayout = layout;
+        }
+
+        private Record moveTo(int index) {
+            mIndex = index;
+            mBase = mLayout.getHeaderLength() + index * mLayout.getRecordLength();
+            return this;
+        }
+
+        public int getIndex() {
+            return mIndex;
+        }
+
+        public short getShort(int offset) {
+            return mBuffer.getShort(mBase + offset);
+        }
+
+        public int getInt(int offset) {
+            return mBuffer.getInt(mBase + offset);
+        }
+
+        public long getLong(int offset) {
+            return mBuffer.getLong(mBase + offset);
+        }
+
+        public float getFloat(int offset) {
+            return mBuffer.getFloat(mBase + offset);
+        }
+
+        public double getDouble(int offset) {
+            return mBuffer.getDouble(mBase + offset);
+        }
+
+        /**
+         * Read consecutive float fields, e.g. the x, y, z axes of a sample
+         *
+         * @param offset Offset of the first field
+         * @param values Destination of the values
+         */
+        public void getFloats(int offset, float[] values) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = mBuffer.getFloat(mBase + offset + i * 4);
+            }
+        }
+    }
+
+    /**
+     * Records
+     * (Records of a telemetry box. The iterator reuses one Record, which is only valid until
+     * the next call of next())
+     */
+    public static class Records implements Iterable<Record> {
+        private final ByteBuffer mBuffer;
+        private final Layout mLayout;
+        private final int mCount;
+
+        private Records(ByteBuffer buffer, Layout layout) {
+            mBuffer = buffer;
+            mLayout = layout;
+            int dataLength = buffer.capacity() - layout.getHeaderLength();
+            mCount = dataLength > 0 ? dataLength / layout.getRecordLength() : 0;
+        }
+
+        public int size() {
+            return mCount;
+        }
+
+        /**
+         * @param index Record index
+         * @return New Record, which stays valid
+         */
+        public Record get(int index) {
+            if (index < 0 || index >= mCount) {
+                throw new IndexOutOfBoundsException("Record " + index + " of " + mCount);
+            }
+            return new Record(mBuffer, mLayout).moveTo(index);
+        }
+
+        @Override
+        public Iterator<Record> iterator() {
+            final Record record = new Record(mBuffer, mLayout);
+            return new Iterator<Record>() {
+                private int mNext = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return mNext < mCount;
+                }
+
+                @Override
+                public Record next() {
+                    if (mNext >= mCount) {
+                        throw new NoSuchElementException();
+                    }
+                    return record.moveTo(mNext++);
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private final Map<BoxType, BoxHeader> mBoxes = new EnumMap<>(BoxType.class);
+    private final Map<BoxType, MappedByteBuffer> mMapped = new EnumMap<>(BoxType.class);
+    private final BoxReader mBoxReader;
+
+    /**
+     * Open a recording and locate its telemetry boxes. Box data is not read until it is used
+     *
+     * @param mp4FilePath MP4 file path
+     * @throws IOException when the file is not readable or has no udta box
+     */
+    public TelemetryReader(@NonNull String mp4FilePath) throws IOException {
+        mRandomAccessFile = new RandomAccessFile(mp4FilePath, "r");
+        mChannel = mRandomAccessFile.getChannel();
+        mBoxReader = new BoxReader(mChannel);
+        try {
+            BoxHeader moov = mBoxReader.findBox(0, mChannel.size(), BoxType.MOOV);
+            BoxHeader udta = (moov == null) ? null
+                    : mBoxReader.findBox(moov.getDataOffset(), moov.getEndOffset(),
+                            BoxType.UDTA);
+            if (udta == null) {
+                throw new IOException("udta box not found");
+            }
+            parseTelemetry(udta.getDataOffset(), udta.getEndOffset());
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param boxType RDTx box type
+     * @return true if the recording has the box
+     */
+    public boolean contains(@NonNull BoxType boxType) {
+        return mBoxes.containsKey(boxType);
+    }
+
+    /**
+     * @param boxType RDTx box type
+     * @return Data length of the box without the header (0 : no box)
+     */
+    public long getDataLength(@NonNull BoxType boxType) {
+        BoxHeader box = mBoxes.get(boxType);
+        return (box == null) ? 0 : box.getDataLength();
+    }
+
+    /**
+     * Map the data of a telemetry box
+     *
+     * @param boxType RDTx box type
+     * @return Read-only buffer of the box data (null : no box)
+     */
+    public ByteBuffer map(@NonNull BoxType boxType) throws IOException {
+        MappedByteBuffer mapped = mMapped.get(boxType);
+        if (mapped == null) {
+            BoxHeader box = mBoxes.get(boxType);
+            if (box == null) {
+                return null;
+            }
+            long length = box.getDataLength();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException(boxType.name() + " box is too large to map");
+            }
+            mapped = mChannel.map(FileChannel.MapMode.READ_ONLY, box.getDataOffset(), length);
+            mMapped.put(boxType, mapped);
+        }
+        return mapped.duplicate();
+    }
+
+    /**
+     * Records of a telemetry box
+     *
+     * @param boxType RDTx box type
+     * @param layout Record layout of the box
+     * @return Records (null : no box)
+     */
+    public Records read(@NonNull BoxType boxType, @NonNull Layout layout) throws IOException {
+        ByteBuffer buffer = map(boxType);
+        if (buffer == null) {
+            return null;
+        }
+        buffer.order(layout.getByteOrder());
+        return new Records(buffer, layout);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mMapped.clear();
+        mRandomAccessFile.close();
+    }
+
+    private void parseTelemetry(long startOffset, long endOffset) throws IOException {
+        long pos = startOffset;
+        while (pos < endOffset) {
+            BoxHeader box = mBoxReader.readHeader(pos, endOffset);
+            if (box == null) {
+                return;
+            }
+            BoxType boxType = BoxType.fromFourCC(box.getType());
+            if (TELEMETRY_TYPES.contains(boxType) && !mBoxes.containsKey(boxType)) {
+                mBoxes.put(boxType, box);
+            }
+            pos += box.getSize();
+        }
+    }
+}
@@ -22,6 +22,11 @@ import com.theta360.pluginlibrary.exif.values.box.BoxType;
  * BoxSpec
  */
 public class BoxSpec {
+    public static final long MAX_COMPACT_BOX_SIZE = 0xFFFFFFFFL;
+
+    private static final int BOX_HEADER_LEN = 8;
+    private static final int BOX_LARGESIZE_LEN = 8;
+
     private BoxType mBoxType;
     private long mOffset = 0L;
 
@@ -48,7 +53,7 @@ public class BoxSpec {
         return mBoxSize;
     }
 
-    public void setBoxSize(int boxSize) {
+    public void setBoxSize(long boxSize) {
         mBoxSize = boxSize;
     }
 
@@ -59,4 +64,18 @@ public class BoxSpec {
     public void setlBoxSize(long lBoxSize) {
         this.lBoxSize = lBoxSize;
     }
+
+    /**
+     * Header length of a box holding the data (with a 64-bit largesize when the box size does
+     * not fit in 32 bits)
+     *
+     * @param dataSize Data size of the box without the header
+     * @return 8 or 16
+     */
+    public static int getHeaderLength(long dataSize) {
+        if (BOX_HEADER_LEN + dataSize > MAX_COMPACT_BOX_SIZE) {
+            return BOX_HEADER_LEN + BOX_LARGESIZE_LEN;
+        }
+        return BOX_HEADER_LEN;
+    }
 }
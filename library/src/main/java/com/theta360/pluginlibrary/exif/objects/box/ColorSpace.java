@@ -16,6 +16,7 @@
 
 package com.theta360.pluginlibrary.exif.objects.box;
 
+import com.theta360.pluginlibrary.exif.utils.PatchWriter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 
@@ -64,6 +65,19 @@ public class ColorSpace {
     private static byte[] H_324b = {0x6E, 0x02};
 
     public void replaceColorSpace(RandomAccessFile file, long stsdOffset, int width, int height) {
+        PatchWriter patches = new PatchWriter();
+        replaceColorSpace(file, stsdOffset, width, height, patches);
+        try {
+            patches.write(file.getChannel());
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Add the color space replacement to patches instead of writing it
+     */
+    public void replaceColorSpace(RandomAccessFile file, long stsdOffset, int width, int height,
+            PatchWriter patches) {
         try {
             file.seek(stsdOffset + 16);
 
@@ -76,33 +90,29 @@ public class ColorSpace {
                 return;
             }
 
+            long pos = stsdOffset + 16 + BOX_HEADER_LEN;
             if (size == 0xA2) {
-                file.skipBytes(0x56);
-                file.write(AVCC_H264_4K_FULL_CONSTRAINED_FLAG_ON);
-                file.skipBytes(16 + 8);
-                file.write(COLR_BT709_FULL);
+                pos = putPatch(patches, pos + 0x56, AVCC_H264_4K_FULL_CONSTRAINED_FLAG_ON);
+                putPatch(patches, pos + 16 + 8, COLR_BT709_FULL);
             } else if (size == 0xA1) {
-                file.skipBytes(0x56);
-                file.write(AVCC_H264_2K_FULL);
-                file.skipBytes(16 + 8);
-                file.write(COLR_BT709_FULL);
+                pos = putPatch(patches, pos + 0x56, AVCC_H264_2K_FULL);
+                putPatch(patches, pos + 16 + 8, COLR_BT709_FULL);
             } else if (size == 0xEB && width == 5376 && height == 2688) {
-                file.skipBytes(0xAC);
-                file.write(H_354b);
-                file.skipBytes(0x2A);
-                file.write(COLR_BT709_FULL);
+                pos = putPatch(patches, pos + 0xAC, H_354b);
+                putPatch(patches, pos + 0x2A, COLR_BT709_FULL);
             } else if (size == 0xEB) {
-                file.skipBytes(0xAB);
-                file.write(H_344b);
-                file.skipBytes(0x2A);
-                file.write(COLR_BT709_FULL);
+                pos = putPatch(patches, pos + 0xAB, H_344b);
+                putPatch(patches, pos + 0x2A, COLR_BT709_FULL);
             } else if (size == 0xEA) {
-                file.skipBytes(0xAB);
-                file.write(H_324b);
-                file.skipBytes(0x2A);
-                file.write(COLR_BT709_FULL);
+                pos = putPatch(patches, pos + 0xAB, H_324b);
+                putPatch(patches, pos + 0x2A, COLR_BT709_FULL);
             }
         } catch (IOException e) {
         }
     }
+
+    private long putPatch(PatchWriter patches, long pos, byte[] data) {
+        patches.put(pos, data);
+        return pos + data.length;
+    }
 }
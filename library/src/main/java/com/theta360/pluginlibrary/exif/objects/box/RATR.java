@@ -17,7 +17,9 @@
 package com.theta360.pluginlibrary.exif.objects.box;
 
 import com.theta360.pluginlibrary.exif.values.box.BoxType;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * RATR
@@ -27,7 +29,7 @@ public class RATR {
     public static final int STSZ_SAMPLE_PER_CHUNK = 0x600;
 
     private static final int BOX_HEADER_LEN = 8;
-    private static final int MDHD_TIMESCALE = 48000;
+    private static final int WRITE_BUFFER_SIZE = 8 * 1024;
 
     private final byte[] bTkhd = {
             0x00, 0x00, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00,
@@ -98,44 +100,20 @@ public class RATR {
             0x00, 0x06, 0x78, (byte) 0xA1
     };
 
-    private int mWavDataSize = 0;
+    private long mWavDataSize = 0;
 
     private int mRATRsize = 0;
     private int mMdiaSize = 0;
     private int mMinfSize = 0;
     private int mStblSize = 0;
     private int mCo64Size = 0;
+    private int mCo64Count = 0;
 
-    public RATR(int wavDataSize) {
+    public RATR(long wavDataSize) {
         mWavDataSize = wavDataSize;
-    }
 
-    /**
-     * Calculate the size of the RATR box
-     */
-    public int size() {
-        int iRATRsize = 0;
-
-        iRATRsize += BOX_HEADER_LEN;
-        iRATRsize += bTkhd.length + BOX_HEADER_LEN;
-        iRATRsize += bEdts.length + BOX_HEADER_LEN;
-        iRATRsize += BOX_HEADER_LEN;
-        iRATRsize += bMdhd.length + BOX_HEADER_LEN;
-        iRATRsize += bMdiaHdlr.length + BOX_HEADER_LEN;
-        iRATRsize += BOX_HEADER_LEN;
-        iRATRsize += bSmhd.length + BOX_HEADER_LEN;
-        iRATRsize += bMinfHdlr.length + BOX_HEADER_LEN;
-        iRATRsize += bDinf.length + BOX_HEADER_LEN;
-        iRATRsize += BOX_HEADER_LEN;
-        iRATRsize += bStsd.length + BOX_HEADER_LEN;
-        iRATRsize += bStts.length + BOX_HEADER_LEN;
-        iRATRsize += bStsc.length + BOX_HEADER_LEN;
-        iRATRsize += bStsz.length + BOX_HEADER_LEN;
-
-        int co64count = (mWavDataSize / (STSZ_SAMPLE_SIZE * STSZ_SAMPLE_PER_CHUNK)) + 1;
-        mCo64Size = BOX_HEADER_LEN + 8 + (8 * co64count);
-
-        iRATRsize += mCo64Size;
+        mCo64Count = (int) (mWavDataSize / (STSZ_SAMPLE_SIZE * STSZ_SAMPLE_PER_CHUNK)) + 1;
+        mCo64Size = BOX_HEADER_LEN + 8 + (8 * mCo64Count);
 
         mStblSize = BOX_HEADER_LEN +
                 bStsd.length + BOX_HEADER_LEN +
@@ -159,133 +137,134 @@ public class RATR {
                 bTkhd.length + BOX_HEADER_LEN +
                 bEdts.length + BOX_HEADER_LEN +
                 mMdiaSize;
+    }
 
-        return iRATRsize;
+    /**
+     * Calculate the size of the RATR box
+     */
+    public int size() {
+        return mRATRsize;
     }
 
     /**
-     * Generate RATR metadata
+     * Generate RATR metadata (without the RATR box header)
      */
     public byte[] getData(long RADToffset) {
-        int pos = 0;
-        int iRATRsize = this.size();
-        byte[] bRadt = new byte[iRATRsize - BOX_HEADER_LEN];
-
-        System.arraycopy(ByteBuffer.allocate(4).putInt(bTkhd.length + BOX_HEADER_LEN).array(), 0,
-                bRadt, pos, 4);
-        System.arraycopy(BoxType.RATRtkhd.getValue(), 0, bRadt, pos + 4, 4);
-        System.arraycopy(bTkhd, 0, bRadt, pos + 8, bTkhd.length);
-        pos += (bTkhd.length + BOX_HEADER_LEN);
-
-        System.arraycopy(ByteBuffer.allocate(4).putInt(bEdts.length + BOX_HEADER_LEN).array(), 0,
-                bRadt, pos, 4);
-        System.arraycopy(BoxType.RATRedts.getValue(), 0, bRadt, pos + 4, 4);
-        System.arraycopy(bEdts, 0, bRadt, pos + 8, bEdts.length);
-        pos += (bEdts.length + BOX_HEADER_LEN);
-
-        System.arraycopy(ByteBuffer.allocate(4).putInt(mMdiaSize).array(), 0, bRadt, pos,
-                4);
-        System.arraycopy(BoxType.RATRmdia.getValue(), 0, bRadt, pos + 4, 4);
-        pos += BOX_HEADER_LEN;
-
-        int duration_sec = mWavDataSize / (8 * MDHD_TIMESCALE);
-        int duration_sample = mWavDataSize / 8;
-        System.arraycopy(ByteBuffer.allocate(4).putInt(duration_sample).array(), 0, bMdhd, 16, 4);
-        System.arraycopy(ByteBuffer.allocate(4).putInt(bMdhd.length + BOX_HEADER_LEN).array(), 0,
-                bRadt, pos, 4);
-        System.arraycopy(BoxType.RATRmdhd.getValue(), 0, bRadt, pos + 4, 4);
-        System.arraycopy(bMdhd, 0, bRadt, pos + 8, bMdhd.length);
-        pos += (bMdhd.length + BOX_HEADER_LEN);
-
-        System.arraycopy(ByteBuffer.allocate(4).putInt(bMdiaHdlr.length + BOX_HEADER_LEN).array(),
-                0, bRadt, pos, 4);
-        System.arraycopy(BoxType.RATRhdlr.getValue(), 0, bRadt, pos + 4, 4);
-        System.arraycopy(bMdiaHdlr, 0, bRadt, pos + 8, bMdiaHdlr.length);
-        pos += (bMdiaHdlr.length + BOX_HEADER_LEN);
-
-        System.arraycopy(ByteBuffer.allocate(4).putInt(mMinfSize).array(), 0, bRadt, pos,
-                4);
-        System.arraycopy(BoxType.RATRminf.getValue(), 0, bRadt, pos + 4, 4);
-        pos += BOX_HEADER_LEN;
-
-        System.arraycopy(ByteBuffer.allocate(4).putInt(bSmhd.length + BOX_HEADER_LEN).array(), 0,
-                bRadt, pos, 4);
-        System.arraycopy(BoxType.RATRsmhd.getValue(), 0, bRadt, pos + 4, 4);
-        System.arraycopy(bSmhd, 0, bRadt, pos + 8, bSmhd.length);
-        pos += (bSmhd.length + BOX_HEADER_LEN);
-
-        System.arraycopy(ByteBuffer.allocate(4).putInt(bMinfHdlr.length + BOX_HEADER_LEN).array(),
-                0, bRadt, pos, 4);
-        System.arraycopy(BoxType.RATRminfhdlr.getValue(), 0, bRadt, pos + 4, 4);
-        System.arraycopy(bMinfHdlr, 0, bRadt, pos + 8, bMinfHdlr.length);
-        pos += (bMinfHdlr.length + BOX_HEADER_LEN);
-
-        System.arraycopy(ByteBuffer.allocate(4).putInt(bDinf.length + BOX_HEADER_LEN).array(), 0,
-                bRadt, pos, 4);
-        System.arraycopy(BoxType.RATRdinf.getValue(), 0, bRadt, pos + 4, 4);
-        System.arraycopy(bDinf, 0, bRadt, pos + 8, bDinf.length);
-        pos += (bDinf.length + BOX_HEADER_LEN);
-
-        System.arraycopy(ByteBuffer.allocate(4).putInt(mStblSize).array(), 0, bRadt, pos,
-                4);
-        System.arraycopy(BoxType.RATRstbl.getValue(), 0, bRadt, pos + 4, 4);
-        pos += BOX_HEADER_LEN;
-
-        System.arraycopy(ByteBuffer.allocate(4).putInt(bStsd.length + BOX_HEADER_LEN).array(), 0,
-                bRadt, pos, 4);
-        System.arraycopy(BoxType.RATRstsd.getValue(), 0, bRadt, pos + 4, 4);
-        System.arraycopy(bStsd, 0, bRadt, pos + 8, bStsd.length);
-        pos += (bStsd.length + BOX_HEADER_LEN);
-
-        System.arraycopy(ByteBuffer.allocate(4).putInt(bStts.length + BOX_HEADER_LEN).array(), 0,
-                bRadt, pos, 4);
-        System.arraycopy(BoxType.RATRstts.getValue(), 0, bRadt, pos + 4, 4);
-        int stts_sample_count = mWavDataSize / 8;
-        System.arraycopy(ByteBuffer.allocate(4).putInt(stts_sample_count).array(), 0, bStts, 8, 4);
-        System.arraycopy(bStts, 0, bRadt, pos + 8, bStts.length);
-        pos += (bStts.length + BOX_HEADER_LEN);
-
-        int stsc_first_chunk =
-                (mWavDataSize / (STSZ_SAMPLE_SIZE * STSZ_SAMPLE_PER_CHUNK)) + 1;
-        System.arraycopy(ByteBuffer.allocate(4).putInt(stsc_first_chunk).array(), 0, bStsc, 0x14,
-                4);
-        int stsc_sample_per_chunk = (mWavDataSize / STSZ_SAMPLE_SIZE) % STSZ_SAMPLE_PER_CHUNK;
-        System.arraycopy(ByteBuffer.allocate(4).putInt(stsc_sample_per_chunk).array(), 0, bStsc,
-                0x18, 4);
-
-        System.arraycopy(ByteBuffer.allocate(4).putInt(bStsc.length + BOX_HEADER_LEN).array(), 0,
-                bRadt, pos, 4);
-        System.arraycopy(BoxType.RATRstsc.getValue(), 0, bRadt, pos + 4, 4);
-        System.arraycopy(bStsc, 0, bRadt, pos + 8, bStsc.length);
-        pos += (bStsc.length + BOX_HEADER_LEN);
-
-        int stsz_sample_count = mWavDataSize / STSZ_SAMPLE_SIZE;
-        System.arraycopy(ByteBuffer.allocate(4).putInt(stsz_sample_count).array(), 0, bStsz, 0x08,
-                4);
-
-        System.arraycopy(ByteBuffer.allocate(4).putInt(bStsz.length + BOX_HEADER_LEN).array(), 0,
-                bRadt, pos, 4);
-        System.arraycopy(BoxType.RATRstsz.getValue(), 0, bRadt, pos + 4, 4);
-        System.arraycopy(bStsz, 0, bRadt, pos + 8, bStsz.length);
-        pos += (bStsz.length + BOX_HEADER_LEN);
-
-        System.arraycopy(ByteBuffer.allocate(4).putInt(mCo64Size).array(), 0, bRadt, pos,
-                4);
-        System.arraycopy(BoxType.RATRco64.getValue(), 0, bRadt, pos + 4, 4);
-        System.arraycopy(ByteBuffer.allocate(4).putInt(0x00).array(), 0, bRadt, pos + 8,
-                4);
-
-        int co64count = (mWavDataSize / (STSZ_SAMPLE_SIZE * STSZ_SAMPLE_PER_CHUNK)) + 1;
-
-        System.arraycopy(ByteBuffer.allocate(4).putInt(co64count).array(), 0, bRadt, pos + 12, 4);
-        pos += 16;
-        for (int i = 0; i < co64count; i++) {
-            long chunkOffset = RADToffset + BOX_HEADER_LEN + (long) (i * STSZ_SAMPLE_SIZE
-                    * STSZ_SAMPLE_PER_CHUNK);
-            System.arraycopy(ByteBuffer.allocate(8).putLong(chunkOffset).array(), 0, bRadt,
-                    pos + (i * 8), 8);
+        byte[] bRatr = new byte[mRATRsize - BOX_HEADER_LEN];
+        try {
+            put(ByteBuffer.wrap(bRatr), null, RADToffset);
+        } catch (IOException e) {
+            // Not reached : the buffer holds the whole box
+        }
+        return bRatr;
+    }
+
+    /**
+     * Write the RATR box (with its header) to the channel at its current position
+     * The co64 table is streamed through a buffer of constant size
+     *
+     * @param channel Destination channel
+     * @param RADToffset Offset of RADT box in the file
+     */
+    public void writeTo(WritableByteChannel channel, long RADToffset) throws IOException {
+        writeTo(channel, RADToffset, ByteBuffer.allocate(WRITE_BUFFER_SIZE));
+    }
+
+    /**
+     * Write the RATR box (with its header) to the channel at its current position
+     *
+     * @param channel Destination channel
+     * @param RADToffset Offset of RADT box in the file
+     * @param buffer Work buffer, at least as large as the largest fixed box of RATR
+     */
+    public void writeTo(WritableByteChannel channel, long RADToffset, ByteBuffer buffer)
+            throws IOException {
+        buffer.clear();
+        buffer.putInt(mRATRsize);
+        buffer.put(BoxType.RATR.getValue());
+        put(buffer, channel, RADToffset);
+        flush(buffer, channel);
+    }
+
+    private void put(ByteBuffer buffer, WritableByteChannel channel, long RADToffset)
+            throws IOException {
+        putBox(buffer, channel, BoxType.RATRtkhd, bTkhd);
+        putBox(buffer, channel, BoxType.RATRedts, bEdts);
+        putType(buffer, channel, BoxType.RATRmdia, mMdiaSize);
+
+        int duration_sample = (int) (mWavDataSize / 8);
+        int pos = putBox(buffer, channel, BoxType.RATRmdhd, bMdhd);
+        buffer.putInt(pos + 16, duration_sample);
+
+        putBox(buffer, channel, BoxType.RATRhdlr, bMdiaHdlr);
+        putType(buffer, channel, BoxType.RATRminf, mMinfSize);
+        putBox(buffer, channel, BoxType.RATRsmhd, bSmhd);
+        putBox(buffer, channel, BoxType.RATRminfhdlr, bMinfHdlr);
+        putBox(buffer, channel, BoxType.RATRdinf, bDinf);
+        putType(buffer, channel, BoxType.RATRstbl, mStblSize);
+        putBox(buffer, channel, BoxType.RATRstsd, bStsd);
+
+        int stts_sample_count = (int) (mWavDataSize / 8);
+        pos = putBox(buffer, channel, BoxType.RATRstts, bStts);
+        buffer.putInt(pos + 8, stts_sample_count);
+
+        int stsc_first_chunk = mCo64Count;
+        int stsc_sample_per_chunk = (int) ((mWavDataSize / STSZ_SAMPLE_SIZE) % STSZ_SAMPLE_PER_CHUNK);
+        pos = putBox(buffer, channel, BoxType.RATRstsc, bStsc);
+        buffer.putInt(pos + 0x14, stsc_first_chunk);
+        buffer.putInt(pos + 0x18, stsc_sample_per_chunk);
+
+        int stsz_sample_count = (int) (mWavDataSize / STSZ_SAMPLE_SIZE);
+        pos = putBox(buffer, channel, BoxType.RATRstsz, bStsz);
+        buffer.putInt(pos + 0x08, stsz_sample_count);
+
+        reserve(buffer, channel, BOX_HEADER_LEN + 8);
+        buffer.putInt(mCo64Size);
+        buffer.put(BoxType.RATRco64.getValue());
+        buffer.putInt(0x00);
+        buffer.putInt(mCo64Count);
+
+        // RADT has a 64-bit largesize header when the audio data exceeds 4GB
+        long chunkOffset = RADToffset + BoxSpec.getHeaderLength(mWavDataSize);
+        for (int i = 0; i < mCo64Count; i++) {
+            reserve(buffer, channel, 8);
+            buffer.putLong(chunkOffset);
+            chunkOffset += STSZ_SAMPLE_SIZE * STSZ_SAMPLE_PER_CHUNK;
+        }
+    }
+
+    /**
+     * Put a box and return the position of its data in the buffer
+     */
+    private int putBox(ByteBuffer buffer, WritableByteChannel channel, BoxType boxType,
+            byte[] data) throws IOException {
+        reserve(buffer, channel, BOX_HEADER_LEN + data.length);
+        buffer.putInt(BOX_HEADER_LEN + data.length);
+        buffer.put(boxType.getValue());
+        int pos = buffer.position();
+        buffer.put(data);
+        return pos;
+    }
+
+    private void putType(ByteBuffer buffer, WritableByteChannel channel, BoxType boxType,
+            int size) throws IOException {
+        reserve(buffer, channel, BOX_HEADER_LEN);
+        buffer.putInt(size);
+        buffer.put(boxType.getValue());
+    }
+
+    private void reserve(ByteBuffer buffer, WritableByteChannel channel, int length)
+            throws IOException {
+        if (buffer.remaining() < length) {
+            flush(buffer, channel);
         }
+    }
 
-        return bRadt;
+    private void flush(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
     }
 }
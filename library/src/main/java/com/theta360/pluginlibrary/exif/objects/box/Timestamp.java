@@ -16,8 +16,10 @@
 
 package com.theta360.pluginlibrary.exif.objects.box;
 
+import com.theta360.pluginlibrary.exif.utils.PatchWriter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Locale;
@@ -47,6 +49,31 @@ public class Timestamp {
     }
 
     public void shift(String sTimezone) throws IOException {
+        if (mPosition == 0L) {
+            return;
+        }
+        long timezone = parseTimezone(sTimezone);
+        mRandomAccessFile.seek(mPosition + BOX_HEADER_LEN + 4);
+        mRandomAccessFile.writeInt((int) (mCreation + timezone));
+        mRandomAccessFile.writeInt((int) (mModification + timezone));
+    }
+
+    /**
+     * Add the shifted creation and modification times to patches instead of writing them
+     */
+    public void shift(String sTimezone, PatchWriter patches) {
+        if (mPosition == 0L) {
+            return;
+        }
+        long timezone = parseTimezone(sTimezone);
+        byte[] times = ByteBuffer.allocate(8)
+                .putInt((int) (mCreation + timezone))
+                .putInt((int) (mModification + timezone))
+                .array();
+        patches.put(mPosition + BOX_HEADER_LEN + 4, times);
+    }
+
+    private long parseTimezone(String sTimezone) {
         SimpleDateFormat sdf = new SimpleDateFormat("Z", Locale.US);
         long timezone = 0;
         try {
@@ -54,12 +81,6 @@ public class Timestamp {
         } catch (ParseException e) {
             e.printStackTrace();
         }
-
-        if (mPosition == 0L) {
-            return;
-        }
-        mRandomAccessFile.seek(mPosition + BOX_HEADER_LEN + 4);
-        mRandomAccessFile.writeInt((int) (mCreation + timezone));
-        mRandomAccessFile.writeInt((int) (mModification + timezone));
+        return timezone;
     }
 }
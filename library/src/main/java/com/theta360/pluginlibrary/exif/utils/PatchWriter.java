@@ -0,0 +1,192 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.exif.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * PatchWriter
+ * (Collects positional writes to a file and applies them in one pass)
+ */
+public class PatchWriter {
+    private static class Patch {
+        final long offset;
+        final byte[] data;
+        final int order;
+
+        Patch(long offset, byte[] data, int order) {
+            this.offset = offset;
+            this.data = data;
+            this.order = order;
+        }
+
+        long end() {
+            return offset + data.length;
+        }
+    }
+
+    private static final Comparator<Patch> BY_OFFSET = new Comparator<Patch>() {
+        @Override
+        public int compare(Patch a, Patch b) {
+            if (a.offset != b.offset) {
+                return a.offset < b.offset ? -1 : 1;
+            }
+            return a.order - b.order;
+        }
+    };
+
+    private static final Comparator<Patch> BY_ORDER = new Comparator<Patch>() {
+        @Override
+        public int compare(Patch a, Patch b) {
+            return a.order - b.order;
+        }
+    };
+
+    private final List<Patch> mPatches = new ArrayList<>();
+    private int mOrder = 0;
+
+    /**
+     * Add a patch. A later patch wins where patches overlap
+     *
+     * @param offset File offset
+     * @param data Bytes to write (not copied)
+     */
+    public void put(long offset, byte[] data) {
+        if (data.length > 0) {
+            mPatches.add(new Patch(offset, data, mOrder++));
+        }
+    }
+
+    public void putInt(long offset, int value) {
+        put(offset, ByteBuffer.allocate(4).putInt(value).array());
+    }
+
+    public void putLong(long offset, long value) {
+        put(offset, ByteBuffer.allocate(8).putLong(value).array());
+    }
+
+    public boolean isEmpty() {
+        return mPatches.isEmpty();
+    }
+
+    /**
+     * Overlay pending patches on data read from the file, so that it reads as if committed
+     *
+     * @param offset File offset the data was read from
+     * @param data Data read from the file
+     */
+    public void apply(long offset, byte[] data) {
+        long end = offset + data.length;
+        for (Patch patch : mPatches) {
+            long from = Math.max(offset, patch.offset);
+            long to = Math.min(end, patch.end());
+            if (from < to) {
+                System.arraycopy(patch.data, (int) (from - patch.offset), data,
+                        (int) (from - offset), (int) (to - from));
+            }
+        }
+    }
+
+    /**
+     * Drop pending patches overlapping a range that has been rewritten from patched data
+     *
+     * @param offset File offset
+     * @param length Length of the range
+     */
+    public void discard(long offset, long length) {
+        long end = offset + length;
+        Iterator<Patch> it = mPatches.iterator();
+        while (it.hasNext()) {
+            Patch patch = it.next();
+            if (patch.offset < end && patch.end() > offset) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Write all patches in offset order. Adjacent patches are coalesced into one gathering write
+     *
+     * @param channel Destination channel
+     */
+    public void write(FileChannel channel) throws IOException {
+        List<Patch> patches = new ArrayList<>(mPatches);
+        Collections.sort(patches, BY_OFFSET);
+
+        int start = 0;
+        while (start < patches.size()) {
+            long runEnd = patches.get(start).end();
+            boolean overlapped = false;
+            int next = start + 1;
+            while (next < patches.size() && patches.get(next).offset <= runEnd) {
+                Patch patch = patches.get(next);
+                if (patch.offset < runEnd) {
+                    overlapped = true;
+                }
+                runEnd = Math.max(runEnd, patch.end());
+                next++;
+            }
+            writeRun(channel, patches.subList(start, next), runEnd, overlapped);
+            start = next;
+        }
+        mPatches.clear();
+    }
+
+    /**
+     * Write all patches and flush them to the storage device
+     *
+     * @param channel Destination channel
+     */
+    public void commit(FileChannel channel) throws IOException {
+        write(channel);
+        channel.force(true);
+    }
+
+    private void writeRun(FileChannel channel, List<Patch> run, long runEnd, boolean overlapped)
+            throws IOException {
+        long runOffset = run.get(0).offset;
+        ByteBuffer[] buffers;
+        if (overlapped) {
+            byte[] merged = new byte[(int) (runEnd - runOffset)];
+            List<Patch> ordered = new ArrayList<>(run);
+            Collections.sort(ordered, BY_ORDER);
+            for (Patch patch : ordered) {
+                System.arraycopy(patch.data, 0, merged, (int) (patch.offset - runOffset),
+                        patch.data.length);
+            }
+            buffers = new ByteBuffer[]{ByteBuffer.wrap(merged)};
+        } else {
+            buffers = new ByteBuffer[run.size()];
+            for (int i = 0; i < run.size(); i++) {
+                buffers[i] = ByteBuffer.wrap(run.get(i).data);
+            }
+        }
+
+        channel.position(runOffset);
+        long remain = runEnd - runOffset;
+        while (remain > 0) {
+            remain -= channel.write(buffers);
+        }
+    }
+}
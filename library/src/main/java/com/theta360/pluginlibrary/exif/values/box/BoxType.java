@@ -26,6 +26,9 @@ public enum BoxType {
     MDAT("mdat"),
     FREE("free"),
     MOOV("moov"),
+    MOOF("moof"),
+    MFRA("mfra"),
+    MFRO("mfro"),
     MOOVMVHD("mvhd"),
     MOOVMETA("meta"),
     MOOVTRAK("trak"),
@@ -45,6 +48,7 @@ public enum BoxType {
     MOOVSTCO("stco"),
     MOOVTRAKSOUND("trak"),
     MOOVUUID("uuid"),
+    MOOVMVEX("mvex"),
     UDTA("udta"),
     RTHU("RTHU"),
     RMKN("RMKN"),
@@ -94,8 +98,27 @@ public enum BoxType {
     RATRco64("co64"),
     UUID("uuid"),;
 
+    private static final int TABLE_SIZE = 256;
+    private static final int[] sTableKeys = new int[TABLE_SIZE];
+    private static final BoxType[] sTableValues = new BoxType[TABLE_SIZE];
+
+    static {
+        // Box types sharing a FourCC resolve to the first declared one
+        for (BoxType boxType : values()) {
+            int index = indexOf(boxType.mFourCC);
+            while (sTableValues[index] != null && sTableKeys[index] != boxType.mFourCC) {
+                index = (index + 1) & (TABLE_SIZE - 1);
+            }
+            if (sTableValues[index] == null) {
+                sTableKeys[index] = boxType.mFourCC;
+                sTableValues[index] = boxType;
+            }
+        }
+    }
+
     private final String mName;
     private byte[] mValue;
+    private final int mFourCC;
 
     BoxType(final String name) {
         mName = name;
@@ -103,6 +126,7 @@ public enum BoxType {
             mValue = name.getBytes("UTF-8");
         } catch (UnsupportedEncodingException e) {
         }
+        mFourCC = toFourCC(mValue, 0);
     }
 
     public static BoxType getValue(final String _boxType) {
@@ -115,6 +139,57 @@ public enum BoxType {
         return null;
     }
 
+    /**
+     * Box type of a box name such as "moov"
+     * (Types sharing a name, e.g. MOOVTRAK and MOOVTRAKSOUND, return the first declared one)
+     *
+     * @param name Box name
+     * @return BoxType (null : unknown name)
+     */
+    public static BoxType fromName(final String name) {
+        for (BoxType boxType : BoxType.values()) {
+            if (boxType.mName.equals(name)) {
+                return boxType;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Box type of a FourCC read from a box header
+     * (Types sharing a FourCC, e.g. MOOVTRAK and MOOVTRAKSOUND, return the first declared one)
+     *
+     * @param fourCC Box type as a big-endian int
+     * @return BoxType (null : unknown type)
+     */
+    public static BoxType fromFourCC(final int fourCC) {
+        int index = indexOf(fourCC);
+        BoxType boxType;
+        while ((boxType = sTableValues[index]) != null) {
+            if (sTableKeys[index] == fourCC) {
+                return boxType;
+            }
+            index = (index + 1) & (TABLE_SIZE - 1);
+        }
+
+        return null;
+    }
+
+    /**
+     * @param bytes Box header bytes
+     * @param offset Offset of the type field
+     * @return Box type as a big-endian int
+     */
+    public static int toFourCC(final byte[] bytes, final int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static int indexOf(int fourCC) {
+        return (fourCC * 0x9E3779B1) >>> 24;
+    }
+
     public String getName() {
         return mName;
     }
@@ -122,4 +197,8 @@ public enum BoxType {
     public byte[] getValue() {
         return mValue;
     }
+
+    public int getFourCC() {
+        return mFourCC;
+    }
 }
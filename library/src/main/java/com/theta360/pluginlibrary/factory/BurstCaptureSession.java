@@ -0,0 +1,419 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.factory;
+
+import android.os.Handler;
+import android.os.Looper;
+import androidx.annotation.NonNull;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * BurstCaptureSession
+ * (Takes a series of pictures back to back. Each picture is handed to a background writer as
+ * soon as it arrives, and the next takePicture is held back while the pictures not yet written
+ * exceed the memory budget. The budget only gates between takePicture calls: the pictures of one
+ * call always arrive, so one trigger of a burst bracket may exceed it on its own)
+ */
+public class BurstCaptureSession {
+    public static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 256L * 1024 * 1024;
+
+    public interface Writer {
+        /**
+         * Save a picture, called on the writer thread in capture order
+         *
+         * @param index Picture number from 0
+         * @param data Picture data
+         * @param isRaw true : DNG from the raw callback / false : JPEG
+         * @throws IOException when the picture could not be saved
+         */
+        void write(int index, byte[] data, boolean isRaw) throws IOException;
+    }
+
+    public interface Callback {
+        /**
+         * Callback when the shutter of a takePicture is released
+         *
+         * @param triggerIndex takePicture number from 0
+         */
+        void onShutter(int triggerIndex);
+
+        /**
+         * Callback when a picture is saved by Writer
+         *
+         * @param index Picture number from 0
+         */
+        void onSaved(int index);
+
+        /**
+         * Callback when all pictures are saved, or after cancel() when the writer is idle
+         *
+         * @param stats Statistics of the session
+         */
+        void onCompleted(Stats stats);
+
+        /**
+         * Callback when Writer failed. The session is cancelled
+         *
+         * @param index Picture number from 0
+         * @param e Error
+         */
+        void onError(int index, IOException e);
+    }
+
+    /**
+     * Stats
+     */
+    public static class Stats {
+        private final int mSavedCount;
+        private final long mSavedBytes;
+        private final long mElapsedNanos;
+        private final long mPeakInFlightBytes;
+        private final int mThrottledCount;
+        private final long mThrottledNanos;
+
+        private Stats(int savedCount, long savedBytes, long elapsedNanos,
+                long peakInFlightBytes, int throttledCount, long throttledNanos) {
+            mSavedCount = savedCount;
+            mSavedBytes = savedBytes;
+            mElapsedNanos = elapsedNanos;
+            mPeakInFlightBytes = peakInFlightBytes;
+            mThrottledCount = throttledCount;
+            mThrottledNanos = throttledNanos;
+        }
+
+        public int getSavedCount() {
+            return mSavedCount;
+        }
+
+        public long getSavedBytes() {
+            return mSavedBytes;
+        }
+
+        /**
+         * @return Time from the first takePicture to the last saved picture
+         */
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        public double getShotsPerSecond() {
+            return (mElapsedNanos == 0) ? 0 : mSavedCount * 1e9 / mElapsedNanos;
+        }
+
+        public double getBytesPerSecond() {
+            return (mElapsedNanos == 0) ? 0 : mSavedBytes * 1e9 / mElapsedNanos;
+        }
+
+        /**
+         * @return Largest amount of picture data waiting for Writer
+         */
+        public long getPeakInFlightBytes() {
+            return mPeakInFlightBytes;
+        }
+
+        /**
+         * @return Number of takePicture calls delayed by the memory budget
+         */
+        public int getThrottledCount() {
+            return mThrottledCount;
+        }
+
+        public long getThrottledNanos() {
+            return mThrottledNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d pictures, %.2f shots/s, %.1f MB/s, peak %d bytes in flight, "
+                            + "throttled %d times (%d ms)", mSavedCount, getShotsPerSecond(),
+                    getBytesPerSecond() / 1e6, mPeakInFlightBytes, mThrottledCount,
+                    mThrottledNanos / 1000000);
+        }
+    }
+
+    private final Camera mCamera;
+    private final Writer mWriter;
+    private final long mMaxInFlightBytes;
+    private final Handler mHandler;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    private int mBurstCaptureNum = 1;
+    private Callback mCallback;
+    private int mTriggerCount;
+    private int mPictureCount;
+    private int mPicturesPerTrigger;
+    private int mTriggeredCount;
+    private int mReceivedCount;
+    private int mSavedCount;
+    private long mSavedBytes;
+    private long mInFlightBytes;
+    private long mPeakInFlightBytes;
+    private long mLargestPicture;
+    private long mStartNanos;
+    private long mEndNanos;
+    private long mThrottleStartNanos;
+    private int mThrottledCount;
+    private long mThrottledNanos;
+    private boolean isCapturing = false;
+    private boolean isCancelled = false;
+
+    private final Camera.ShutterCallback mShutterCallback = new Camera.ShutterCallback() {
+        @Override
+        public void onShutter() {
+            if (mCallback != null) {
+                mCallback.onShutter(mTriggeredCount - 1);
+            }
+        }
+
+        @Override
+        public void onLongShutter() {
+        }
+
+        @Override
+        public void onShutterend() {
+        }
+    };
+
+    private final Camera.PictureCallback mRawCallback = new Camera.PictureCallback() {
+        @Override
+        public void onPictureTaken(byte[] data, theta360.hardware.Camera camera) {
+            onPicture(data, true);
+        }
+
+        @Override
+        public void onPictureTaken(byte[] data, android.hardware.Camera camera) {
+            onPicture(data, true);
+        }
+    };
+
+    private final Camera.PictureCallback mJpegCallback = new Camera.PictureCallback() {
+        @Override
+        public void onPictureTaken(byte[] data, theta360.hardware.Camera camera) {
+            onPicture(data, false);
+            onJpegReceived();
+        }
+
+        @Override
+        public void onPictureTaken(byte[] data, android.hardware.Camera camera) {
+            onPicture(data, false);
+            onJpegReceived();
+        }
+    };
+
+    /**
+     * Session calling takePicture and Callback on the thread of the current Looper. Create it
+     * on the thread that opened the camera, where the picture callbacks arrive
+     *
+     * @param camera Opened camera with preview started
+     * @param writer Writer saving the pictures
+     * @param maxInFlightBytes Memory budget of pictures waiting for Writer
+     */
+    public BurstCaptureSession(@NonNull Camera camera, @NonNull Writer writer,
+            long maxInFlightBytes) {
+        mCamera = camera;
+        mWriter = writer;
+        mMaxInFlightBytes = maxInFlightBytes;
+        Looper looper = Looper.myLooper();
+        mHandler = new Handler((looper != null) ? looper : Looper.getMainLooper());
+    }
+
+    /**
+     * Use RIC_STILL_CAPTURE_STD_BURST, where one takePicture returns captureNum JPEGs
+     * with the exposure bracketed around the compensation. The captureNum pictures of one
+     * takePicture are held in memory together whatever maxInFlightBytes is, the budget only
+     * delays the next takePicture
+     *
+     * @param captureNum RIC_AEC_BURST_CAPTURE_NUM
+     * @param bracketStep RIC_AEC_BURST_BRACKET_STEP
+     * @param compensation RIC_AEC_BURST_COMPENSATION
+     * @param maxExposureTime RIC_AEC_BURST_MAX_EXPOSURE_TIME
+     * @param enableIsoControl RIC_AEC_BURST_ENABLE_ISO_CONTROL
+     */
+    public void setBurstBracket(int captureNum, int bracketStep, int compensation,
+            int maxExposureTime, boolean enableIsoControl) {
+        Camera.Parameters parameters = mCamera.getParameters();
+        parameters.set(Camera.Parameters.RIC_SHOOTING_MODE,
+                Camera.Parameters.RIC_STILL_CAPTURE_STD_BURST);
+        parameters.set(Camera.Parameters.RIC_AEC_BURST_CAPTURE_NUM, captureNum);
+        parameters.set(Camera.Parameters.RIC_AEC_BURST_BRACKET_STEP, bracketStep);
+        parameters.set(Camera.Parameters.RIC_AEC_BURST_COMPENSATION, compensation);
+        parameters.set(Camera.Parameters.RIC_AEC_BURST_MAX_EXPOSURE_TIME, maxExposureTime);
+        parameters.set(Camera.Parameters.RIC_AEC_BURST_ENABLE_ISO_CONTROL,
+                enableIsoControl ? 1 : 0);
+        mCamera.setParameters();
+        mBurstCaptureNum = captureNum;
+    }
+
+    /**
+     * Start taking pictures. The camera must be in a still capture mode
+     *
+     * @param triggerCount Number of takePicture calls
+     * @param callback Callback
+     */
+    public void start(int triggerCount, @NonNull Callback callback) {
+        if (isCapturing) {
+            throw new IllegalStateException("Session already started");
+        }
+        mCallback = callback;
+        mTriggerCount = triggerCount;
+        mPicturesPerTrigger = mBurstCaptureNum;
+        mPictureCount = 0;
+        mTriggeredCount = 0;
+        mReceivedCount = 0;
+        mSavedCount = 0;
+        mSavedBytes = 0;
+        mInFlightBytes = 0;
+        mPeakInFlightBytes = 0;
+        mLargestPicture = 0;
+        mThrottledCount = 0;
+        mThrottledNanos = 0;
+        mThrottleStartNanos = 0;
+        isCancelled = false;
+        isCapturing = true;
+        mStartNanos = System.nanoTime();
+        triggerNext();
+    }
+
+    /**
+     * Stop issuing takePicture. Pictures already taken are still saved
+     */
+    public void cancel() {
+        isCancelled = true;
+        maybeComplete();
+    }
+
+    /**
+     * Stop the writer thread. Call after onCompleted
+     */
+    public void release() {
+        mExecutor.shutdown();
+    }
+
+    public boolean isCapturing() {
+        return isCapturing;
+    }
+
+    private void onPicture(byte[] data, boolean isRaw) {
+        if (data == null || !isCapturing) {
+            return;
+        }
+        final int index = mPictureCount++;
+        final byte[] picture = data;
+        final boolean raw = isRaw;
+        synchronized (this) {
+            mInFlightBytes += data.length;
+            mPeakInFlightBytes = Math.max(mPeakInFlightBytes, mInFlightBytes);
+            mLargestPicture = Math.max(mLargestPicture, data.length);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                IOException error = null;
+                try {
+                    mWriter.write(index, picture, raw);
+                } catch (IOException e) {
+                    error = e;
+                }
+                final IOException writeError = error;
+                synchronized (BurstCaptureSession.this) {
+                    mInFlightBytes -= picture.length;
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onWritten(index, picture.length, writeError);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onJpegReceived() {
+        if (!isCapturing) {
+            return;
+        }
+        mReceivedCount++;
+        if (mReceivedCount >= mTriggeredCount * mPicturesPerTrigger) {
+            triggerNext();
+        }
+    }
+
+    private void onWritten(int index, long length, IOException error) {
+        mSavedCount++;
+        mSavedBytes += length;
+        mEndNanos = System.nanoTime();
+        if (error != null) {
+            isCancelled = true;
+            mCallback.onError(index, error);
+        } else {
+            mCallback.onSaved(index);
+        }
+
+        if (mThrottleStartNanos != 0) {
+            triggerNext();
+        }
+        maybeComplete();
+    }
+
+    private void triggerNext() {
+        if (isCancelled || mTriggeredCount >= mTriggerCount) {
+            maybeComplete();
+            return;
+        }
+        if (mReceivedCount < mTriggeredCount * mPicturesPerTrigger) {
+            return;
+        }
+
+        // Keep room for the next pictures, estimated from the largest one so far
+        long nextBytes = mLargestPicture * mPicturesPerTrigger;
+        synchronized (this) {
+            if (mInFlightBytes > 0 && mInFlightBytes + nextBytes > mMaxInFlightBytes) {
+                if (mThrottleStartNanos == 0) {
+                    mThrottleStartNanos = System.nanoTime();
+                    mThrottledCount++;
+                }
+                return;
+            }
+        }
+        if (mThrottleStartNanos != 0) {
+            mThrottledNanos += System.nanoTime() - mThrottleStartNanos;
+            mThrottleStartNanos = 0;
+        }
+
+        mTriggeredCount++;
+        mCamera.takePicture(mShutterCallback, mRawCallback, mJpegCallback);
+    }
+
+    private void maybeComplete() {
+        if (!isCapturing || mSavedCount < mPictureCount) {
+            return;
+        }
+        boolean allTaken = mTriggeredCount >= mTriggerCount
+                && mReceivedCount >= mTriggeredCount * mPicturesPerTrigger;
+        boolean cancelledIdle = isCancelled
+                && mReceivedCount >= mTriggeredCount * mPicturesPerTrigger;
+        if (!allTaken && !cancelledIdle) {
+            return;
+        }
+        isCapturing = false;
+        long elapsedNanos = (mSavedCount == 0) ? 0 : mEndNanos - mStartNanos;
+        mCallback.onCompleted(new Stats(mSavedCount, mSavedBytes, elapsedNanos,
+                mPeakInFlightBytes, mThrottledCount, mThrottledNanos));
+    }
+}
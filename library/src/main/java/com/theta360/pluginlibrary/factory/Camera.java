@@ -43,6 +43,9 @@ public abstract class Camera {
     public abstract void ctrlLedPowerBrightness(int ledId, int brightness);
     public abstract void ctrlLedStatusBrightness(int ledId, int brightness);
     public abstract Parameters getParameters();
+    public abstract void invalidateParameters();
+    public abstract ParametersCache<?> getParametersCache();
+    public abstract CameraCapabilities getCapabilities();
     public abstract CameraInfo getNewCameraInfo();
 
     public abstract theta360.hardware.Camera getXCamera();
@@ -157,15 +160,15 @@ public abstract class Camera {
         public static final String RIC_WB_AUTO_UNDERWATER = "RicWbAutoUnderwater";
 
         //com.android.hardware.Camera.Parameters
-        private static final String KEY_PREVIEW_SIZE = "preview-size";
-        private static final String KEY_PREVIEW_FORMAT = "preview-format";
-        private static final String KEY_PREVIEW_FRAME_RATE = "preview-frame-rate";
-        private static final String KEY_PREVIEW_FPS_RANGE = "preview-fps-range";
-        private static final String KEY_PICTURE_SIZE = "picture-size";
+        static final String KEY_PREVIEW_SIZE = "preview-size";
+        static final String KEY_PREVIEW_FORMAT = "preview-format";
+        static final String KEY_PREVIEW_FRAME_RATE = "preview-frame-rate";
+        static final String KEY_PREVIEW_FPS_RANGE = "preview-fps-range";
+        static final String KEY_PICTURE_SIZE = "picture-size";
         private static final String KEY_PICTURE_FORMAT = "picture-format";
         private static final String KEY_JPEG_THUMBNAIL_SIZE = "jpeg-thumbnail-size";
-        private static final String KEY_JPEG_THUMBNAIL_WIDTH = "jpeg-thumbnail-width";
-        private static final String KEY_JPEG_THUMBNAIL_HEIGHT = "jpeg-thumbnail-height";
+        static final String KEY_JPEG_THUMBNAIL_WIDTH = "jpeg-thumbnail-width";
+        static final String KEY_JPEG_THUMBNAIL_HEIGHT = "jpeg-thumbnail-height";
         private static final String KEY_JPEG_THUMBNAIL_QUALITY = "jpeg-thumbnail-quality";
         private static final String KEY_JPEG_QUALITY = "jpeg-quality";
         private static final String KEY_ROTATION = "rotation";
@@ -178,14 +181,14 @@ public abstract class Camera {
         private static final String KEY_EFFECT = "effect";
         private static final String KEY_ANTIBANDING = "antibanding";
         private static final String KEY_SCENE_MODE = "scene-mode";
-        private static final String KEY_FLASH_MODE = "flash-mode";
+        static final String KEY_FLASH_MODE = "flash-mode";
         private static final String KEY_FOCUS_MODE = "focus-mode";
         private static final String KEY_FOCUS_AREAS = "focus-areas";
         private static final String KEY_MAX_NUM_FOCUS_AREAS = "max-num-focus-areas";
         private static final String KEY_FOCAL_LENGTH = "focal-length";
         private static final String KEY_HORIZONTAL_VIEW_ANGLE = "horizontal-view-angle";
         private static final String KEY_VERTICAL_VIEW_ANGLE = "vertical-view-angle";
-        private static final String KEY_EXPOSURE_COMPENSATION = "exposure-compensation";
+        static final String KEY_EXPOSURE_COMPENSATION = "exposure-compensation";
         private static final String KEY_MAX_EXPOSURE_COMPENSATION = "max-exposure-compensation";
         private static final String KEY_MIN_EXPOSURE_COMPENSATION = "min-exposure-compensation";
         private static final String KEY_EXPOSURE_COMPENSATION_STEP = "exposure-compensation-step";
@@ -195,7 +198,7 @@ public abstract class Camera {
         private static final String KEY_AUTO_WHITEBALANCE_LOCK_SUPPORTED = "auto-whitebalance-lock-supported";
         private static final String KEY_METERING_AREAS = "metering-areas";
         private static final String KEY_MAX_NUM_METERING_AREAS = "max-num-metering-areas";
-        private static final String KEY_ZOOM = "zoom";
+        static final String KEY_ZOOM = "zoom";
         private static final String KEY_MAX_ZOOM = "max-zoom";
         private static final String KEY_ZOOM_RATIOS = "zoom-ratios";
         private static final String KEY_ZOOM_SUPPORTED = "zoom-supported";
@@ -205,12 +208,12 @@ public abstract class Camera {
         private static final String KEY_PREFERRED_PREVIEW_SIZE_FOR_VIDEO = "preferred-preview-size-for-video";
         private static final String KEY_MAX_NUM_DETECTED_FACES_HW = "max-num-detected-faces-hw";
         private static final String KEY_MAX_NUM_DETECTED_FACES_SW = "max-num-detected-faces-sw";
-        private static final String KEY_RECORDING_HINT = "recording-hint";
+        static final String KEY_RECORDING_HINT = "recording-hint";
         private static final String KEY_VIDEO_SNAPSHOT_SUPPORTED = "video-snapshot-supported";
-        private static final String KEY_VIDEO_STABILIZATION = "video-stabilization";
+        static final String KEY_VIDEO_STABILIZATION = "video-stabilization";
         private static final String KEY_VIDEO_STABILIZATION_SUPPORTED = "video-stabilization-supported";
 
-        private static final String SUPPORTED_VALUES_SUFFIX = "-values";
+        static final String SUPPORTED_VALUES_SUFFIX = "-values";
 
         private static final String TRUE = "true";
         private static final String FALSE = "false";
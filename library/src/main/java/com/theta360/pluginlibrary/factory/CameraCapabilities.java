@@ -0,0 +1,124 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.factory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * CameraCapabilities
+ * (What the opened camera supports. Read once after open, the values do not change until the
+ * camera is closed)
+ */
+public final class CameraCapabilities {
+    private final List<Camera.Size> mPreviewSizes;
+    private final List<int[]> mPreviewFpsRanges;
+    private final List<Integer> mPreviewFormats;
+    private final List<String> mFlashModes;
+    private final List<String> mShootingModes;
+    private final boolean mZoomSupported;
+    private final int mMaxZoom;
+    private final int mMinExposureCompensation;
+    private final int mMaxExposureCompensation;
+    private final boolean mVideoStabilizationSupported;
+
+    CameraCapabilities(List<Camera.Size> previewSizes, List<int[]> previewFpsRanges,
+            List<Integer> previewFormats, List<String> flashModes, String shootingModes,
+            boolean zoomSupported, int maxZoom, int minExposureCompensation,
+            int maxExposureCompensation, boolean videoStabilizationSupported) {
+        mPreviewSizes = copyOf(previewSizes);
+        List<int[]> fpsRanges = new ArrayList<>();
+        if (previewFpsRanges != null) {
+            for (int[] range : previewFpsRanges) {
+                fpsRanges.add(range.clone());
+            }
+        }
+        mPreviewFpsRanges = Collections.unmodifiableList(fpsRanges);
+        mPreviewFormats = copyOf(previewFormats);
+        mFlashModes = copyOf(flashModes);
+        mShootingModes = (shootingModes == null || shootingModes.isEmpty())
+                ? Collections.<String>emptyList()
+                : Collections.unmodifiableList(Arrays.asList(shootingModes.split(",")));
+        mZoomSupported = zoomSupported;
+        mMaxZoom = maxZoom;
+        mMinExposureCompensation = minExposureCompensation;
+        mMaxExposureCompensation = maxExposureCompensation;
+        mVideoStabilizationSupported = videoStabilizationSupported;
+    }
+
+    public List<Camera.Size> getPreviewSizes() {
+        return mPreviewSizes;
+    }
+
+    /**
+     * @return {min, max} fps ranges scaled by 1000. The arrays must not be modified
+     */
+    public List<int[]> getPreviewFpsRanges() {
+        return mPreviewFpsRanges;
+    }
+
+    public List<Integer> getPreviewFormats() {
+        return mPreviewFormats;
+    }
+
+    /**
+     * @return Flash modes (empty : no flash)
+     */
+    public List<String> getFlashModes() {
+        return mFlashModes;
+    }
+
+    /**
+     * @return Values of RIC_SHOOTING_MODE (empty : not reported by the camera)
+     */
+    public List<String> getShootingModes() {
+        return mShootingModes;
+    }
+
+    public boolean isShootingModeSupported(String shootingMode) {
+        return mShootingModes.contains(shootingMode);
+    }
+
+    public boolean isZoomSupported() {
+        return mZoomSupported;
+    }
+
+    public int getMaxZoom() {
+        return mMaxZoom;
+    }
+
+    public int getMinExposureCompensation() {
+        return mMinExposureCompensation;
+    }
+
+    public int getMaxExposureCompensation() {
+        return mMaxExposureCompensation;
+    }
+
+    public boolean isVideoStabilizationSupported() {
+        return mVideoStabilizationSupported;
+    }
+
+    private static <T> List<T> copyOf(List<T> list) {
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(new ArrayList<>(list));
+    }
+}
@@ -0,0 +1,401 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.factory;
+
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * CaptureLatencyTracker
+ * (Records when each capture passes the stages from the key event to the file on disk, and
+ * keeps the last captures for percentiles of every step)
+ */
+public class CaptureLatencyTracker {
+    public static final int DEFAULT_WINDOW_SIZE = 100;
+    private static final String TAG = "CaptureLatency";
+
+    /**
+     * Stage
+     */
+    public enum Stage {
+        KEY_EVENT("key"),
+        TAKE_PICTURE("takePicture"),
+        SHUTTER("onShutter"),
+        SHUTTER_END("onShutterend"),
+        PICTURE_TAKEN("onPictureTaken"),
+        EXIF_DONE("exif"),
+        XMP_DONE("xmp"),
+        FILE_SYNCED("fsync"),;
+
+        private final String mLabel;
+
+        Stage(String label) {
+            mLabel = label;
+        }
+
+        @Override
+        public String toString() {
+            return mLabel;
+        }
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    /**
+     * Capture
+     * (Times of one capture. Stages may be marked from any thread)
+     */
+    public class Capture {
+        private final int mId;
+        private final long[] mNanos = new long[STAGES.length];
+        private boolean isFinished = false;
+
+        private Capture(int id) {
+            mId = id;
+            Arrays.fill(mNanos, -1);
+        }
+
+        public int getId() {
+            return mId;
+        }
+
+        /**
+         * Record the current time for a stage. Only the first mark of a stage is kept
+         *
+         * @param stage Stage
+         */
+        public void mark(@NonNull Stage stage) {
+            long now = SystemClock.elapsedRealtimeNanos();
+            synchronized (this) {
+                if (mNanos[stage.ordinal()] < 0) {
+                    mNanos[stage.ordinal()] = now;
+                }
+            }
+        }
+
+        /**
+         * @return Time of the stage (SystemClock.elapsedRealtimeNanos), or -1 when not marked
+         */
+        public synchronized long getNanos(@NonNull Stage stage) {
+            return mNanos[stage.ordinal()];
+        }
+
+        /**
+         * @return Time between two stages, or -1 when one of them is not marked
+         */
+        public synchronized double getMillis(@NonNull Stage from, @NonNull Stage to) {
+            long start = mNanos[from.ordinal()];
+            long end = mNanos[to.ordinal()];
+            return (start < 0 || end < 0) ? -1 : (end - start) / 1000000.0;
+        }
+
+        /**
+         * Mark FILE_SYNCED after flushing the file to the storage
+         *
+         * @param os Stream of the saved file
+         * @throws IOException when sync failed
+         */
+        public void sync(@NonNull FileOutputStream os) throws IOException {
+            os.flush();
+            os.getFD().sync();
+            mark(Stage.FILE_SYNCED);
+        }
+
+        /**
+         * Wrap a ShutterCallback to mark SHUTTER and SHUTTER_END
+         *
+         * @param callback Callback of the plugin (null : only mark)
+         * @return Callback to pass to takePicture
+         */
+        public Camera.ShutterCallback wrap(final Camera.ShutterCallback callback) {
+            return new Camera.ShutterCallback() {
+                @Override
+                public void onShutter() {
+                    mark(Stage.SHUTTER);
+                    if (callback != null) {
+                        callback.onShutter();
+                    }
+                }
+
+                @Override
+                public void onLongShutter() {
+                    if (callback != null) {
+                        callback.onLongShutter();
+                    }
+                }
+
+                @Override
+                public void onShutterend() {
+                    mark(Stage.SHUTTER_END);
+                    if (callback != null) {
+                        callback.onShutterend();
+                    }
+                }
+            };
+        }
+
+        /**
+         * Wrap a PictureCallback to mark PICTURE_TAKEN
+         *
+         * @param callback Callback of the plugin (null : only mark)
+         * @return Callback to pass to takePicture
+         */
+        public Camera.PictureCallback wrap(final Camera.PictureCallback callback) {
+            return new Camera.PictureCallback() {
+                @Override
+                public void onPictureTaken(byte[] data, theta360.hardware.Camera camera) {
+                    mark(Stage.PICTURE_TAKEN);
+                    if (callback != null) {
+                        callback.onPictureTaken(data, camera);
+                    }
+                }
+
+                @Override
+                public void onPictureTaken(byte[] data, android.hardware.Camera camera) {
+                    mark(Stage.PICTURE_TAKEN);
+                    if (callback != null) {
+                        callback.onPictureTaken(data, camera);
+                    }
+                }
+            };
+        }
+
+        /**
+         * Mark TAKE_PICTURE and call takePicture with wrapped callbacks
+         *
+         * @param camera Camera
+         * @param shutter ShutterCallback
+         * @param raw PictureCallback for raw data (not timed)
+         * @param jpeg PictureCallback for JPEG data
+         */
+        public void takePicture(@NonNull Camera camera, Camera.ShutterCallback shutter,
+                Camera.PictureCallback raw, Camera.PictureCallback jpeg) {
+            mark(Stage.TAKE_PICTURE);
+            camera.takePicture(wrap(shutter), raw, wrap(jpeg));
+        }
+
+        /**
+         * Add the capture to the statistics. Call when the file is saved
+         */
+        public void finish() {
+            synchronized (this) {
+                if (isFinished) {
+                    return;
+                }
+                isFinished = true;
+            }
+            onFinished(this);
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder builder = new StringBuilder("capture ").append(mId);
+            int previous = -1;
+            for (int i = 0; i < STAGES.length; i++) {
+                if (mNanos[i] < 0) {
+                    continue;
+                }
+                if (previous >= 0) {
+                    builder.append(String.format(", %s>%s %.1f ms", STAGES[previous], STAGES[i],
+                            (mNanos[i] - mNanos[previous]) / 1000000.0));
+                }
+                previous = i;
+            }
+            double total = getTotalMillis(mNanos);
+            if (total >= 0) {
+                builder.append(String.format(", total %.1f ms", total));
+            }
+            return builder.toString();
+        }
+    }
+
+    private final long[][] mWindow;
+    private int mWindowCount;
+    private int mWindowNext;
+    private int mNextId;
+    private boolean isLogEnabled = false;
+
+    public CaptureLatencyTracker() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param windowSize Number of last captures used for percentiles
+     */
+    public CaptureLatencyTracker(int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("windowSize must be positive");
+        }
+        mWindow = new long[windowSize][];
+    }
+
+    /**
+     * Log every finished capture with Log.d
+     *
+     * @param logEnabled true : log / false : do not log
+     */
+    public synchronized void setLogEnabled(boolean logEnabled) {
+        isLogEnabled = logEnabled;
+    }
+
+    /**
+     * Start a capture and mark KEY_EVENT
+     *
+     * @return Capture
+     */
+    public Capture begin() {
+        Capture capture;
+        synchronized (this) {
+            capture = new Capture(mNextId++);
+        }
+        capture.mark(Stage.KEY_EVENT);
+        return capture;
+    }
+
+    /**
+     * @return Number of finished captures in the window
+     */
+    public synchronized int getCount() {
+        return mWindowCount;
+    }
+
+    /**
+     * Percentile of the time between two stages over the window
+     *
+     * @param from Start stage
+     * @param to End stage
+     * @param percentile Percentile from 0 to 100
+     * @return Time in ms, or -1 when no capture has both stages
+     */
+    public synchronized double getPercentileMillis(@NonNull Stage from, @NonNull Stage to,
+            double percentile) {
+        long[] values = new long[mWindowCount];
+        int count = 0;
+        for (int i = 0; i < mWindowCount; i++) {
+            long start = mWindow[i][from.ordinal()];
+            long end = mWindow[i][to.ordinal()];
+            if (start >= 0 && end >= 0) {
+                values[count++] = end - start;
+            }
+        }
+        return percentile(values, count, percentile);
+    }
+
+    /**
+     * Percentile of the time from the earliest to the latest mark over the window
+     *
+     * @param percentile Percentile from 0 to 100
+     * @return Time in ms, or -1 when there is no capture
+     */
+    public synchronized double getTotalPercentileMillis(double percentile) {
+        long[] values = new long[mWindowCount];
+        int count = 0;
+        for (int i = 0; i < mWindowCount; i++) {
+            double total = getTotalMillis(mWindow[i]);
+            if (total >= 0) {
+                values[count++] = (long) (total * 1000000);
+            }
+        }
+        return percentile(values, count, percentile);
+    }
+
+    /**
+     * Forget the finished captures
+     */
+    public synchronized void reset() {
+        Arrays.fill(mWindow, null);
+        mWindowCount = 0;
+        mWindowNext = 0;
+    }
+
+    /**
+     * p50/p95/p99 of each step between consecutive stages and of the total
+     *
+     * @return Summary, one line per step
+     */
+    public synchronized String getSummary() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%d captures", mWindowCount));
+        for (int i = 1; i < STAGES.length; i++) {
+            double p50 = getPercentileMillis(STAGES[i - 1], STAGES[i], 50);
+            if (p50 < 0) {
+                continue;
+            }
+            builder.append(String.format("\n%s>%s p50 %.1f p95 %.1f p99 %.1f ms",
+                    STAGES[i - 1], STAGES[i], p50,
+                    getPercentileMillis(STAGES[i - 1], STAGES[i], 95),
+                    getPercentileMillis(STAGES[i - 1], STAGES[i], 99)));
+        }
+        if (mWindowCount > 0) {
+            builder.append(String.format("\ntotal p50 %.1f p95 %.1f p99 %.1f ms",
+                    getTotalPercentileMillis(50), getTotalPercentileMillis(95),
+                    getTotalPercentileMillis(99)));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Log getSummary() with Log.d
+     */
+    public void dump() {
+        for (String line : getSummary().split("\n")) {
+            Log.d(TAG, line);
+        }
+    }
+
+    private void onFinished(Capture capture) {
+        long[] nanos;
+        synchronized (capture) {
+            nanos = capture.mNanos.clone();
+        }
+        boolean logEnabled;
+        synchronized (this) {
+            mWindow[mWindowNext] = nanos;
+            mWindowNext = (mWindowNext + 1) % mWindow.length;
+            mWindowCount = Math.min(mWindowCount + 1, mWindow.length);
+            logEnabled = isLogEnabled;
+        }
+        if (logEnabled) {
+            Log.d(TAG, capture.toString());
+        }
+    }
+
+    private static double getTotalMillis(long[] nanos) {
+        long first = Long.MAX_VALUE;
+        long last = -1;
+        for (long value : nanos) {
+            if (value >= 0) {
+                first = Math.min(first, value);
+                last = Math.max(last, value);
+            }
+        }
+        return (last < 0) ? -1 : (last - first) / 1000000.0;
+    }
+
+    private static double percentile(long[] values, int count, double percentile) {
+        if (count == 0) {
+            return -1;
+        }
+        Arrays.sort(values, 0, count);
+        int rank = (int) Math.ceil(percentile / 100 * count);
+        return values[Math.max(0, Math.min(count - 1, rank - 1))] / 1000000.0;
+    }
+}
@@ -0,0 +1,296 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.factory;
+
+import androidx.annotation.NonNull;
+import com.theta360.pluginlibrary.exif.Exif;
+import com.theta360.pluginlibrary.exif.values.SphereType;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * EquirectReprojector
+ * (Renders perspective views and cubemap faces from ARGB equirectangular images. The source
+ * position of every output pixel is computed once per geometry and kept in an LRU cache, so
+ * rendering the same view again only samples the image)
+ */
+public class EquirectReprojector {
+    public static final long DEFAULT_CACHE_BYTES = 32L * 1024 * 1024;
+    private static final int MIN_ROWS_PER_TASK = 16;
+
+    /**
+     * CubeFace
+     */
+    public enum CubeFace {
+        FRONT(0, 0),
+        RIGHT(90, 0),
+        BACK(180, 0),
+        LEFT(-90, 0),
+        UP(0, 90),
+        DOWN(0, -90),;
+
+        private final int mYaw;
+        private final int mPitch;
+
+        CubeFace(int yaw, int pitch) {
+            mYaw = yaw;
+            mPitch = pitch;
+        }
+    }
+
+    /**
+     * Attitude
+     * (Camera tilt of an image that is not zenith corrected)
+     */
+    public static class Attitude {
+        public static final Attitude LEVEL = new Attitude(0, 0);
+
+        private final double mPitch;
+        private final double mRoll;
+
+        /**
+         * @param pitch Pitch in degrees
+         * @param roll Roll in degrees
+         */
+        public Attitude(double pitch, double roll) {
+            mPitch = pitch;
+            mRoll = roll;
+        }
+
+        /**
+         * Attitude recorded in the image. Zenith corrected images are level
+         *
+         * @param exif Exif of the image
+         * @return Attitude
+         * @throws IllegalArgumentException when the image is not equirectangular
+         */
+        public static Attitude fromExif(@NonNull Exif exif) {
+            SphereType sphereType = exif.getSphereType();
+            if (sphereType != null && sphereType != SphereType.EQUIRECTANGULAR) {
+                throw new IllegalArgumentException("Not an equirectangular image: " + sphereType);
+            }
+            double[] pitchRoll = exif.getSpherePitchRoll();
+            return (pitchRoll == null) ? LEVEL : new Attitude(pitchRoll[0], pitchRoll[1]);
+        }
+
+        public double getPitch() {
+            return mPitch;
+        }
+
+        public double getRoll() {
+            return mRoll;
+        }
+    }
+
+    private static class LutKey {
+        private final int[] mSizes;
+        private final double[] mAngles;
+
+        private LutKey(int srcWidth, int srcHeight, int dstWidth, int dstHeight, double fov,
+                double yaw, double pitch, double roll, Attitude attitude) {
+            mSizes = new int[]{srcWidth, srcHeight, dstWidth, dstHeight};
+            mAngles = new double[]{fov, yaw, pitch, roll, attitude.mPitch, attitude.mRoll};
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof LutKey)) {
+                return false;
+            }
+            LutKey other = (LutKey) o;
+            return Arrays.equals(mSizes, other.mSizes) && Arrays.equals(mAngles, other.mAngles);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(mSizes) + Arrays.hashCode(mAngles);
+        }
+    }
+
+    private final ForkJoinPool mPool;
+    private final long mCacheBytes;
+    private final LinkedHashMap<LutKey, int[]> mCache = new LinkedHashMap<>(16, 0.75f, true);
+    private long mCachedBytes;
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * Reprojector running on the common ForkJoinPool with DEFAULT_CACHE_BYTES
+     */
+    public EquirectReprojector() {
+        this(ForkJoinPool.commonPool(), DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * @param pool Pool running the row bands (null : render on the calling thread)
+     * @param cacheBytes Memory for lookup tables, 8 bytes per output pixel
+     */
+    public EquirectReprojector(ForkJoinPool pool, long cacheBytes) {
+        mPool = pool;
+        mCacheBytes = cacheBytes;
+    }
+
+    /**
+     * Render a perspective view
+     *
+     * @param src ARGB equirectangular image
+     * @param srcWidth Image width
+     * @param srcHeight Image height
+     * @param attitude Camera tilt of the image (Attitude.LEVEL : zenith corrected)
+     * @param dst ARGB output
+     * @param dstWidth Output width
+     * @param dstHeight Output height
+     * @param fov Horizontal field of view in degrees (less than 180)
+     * @param yaw View direction to the right in degrees
+     * @param pitch View direction upward in degrees
+     * @param roll View rotation counterclockwise in degrees
+     */
+    public void renderPerspective(@NonNull int[] src, int srcWidth, int srcHeight,
+            @NonNull Attitude attitude, @NonNull int[] dst, int dstWidth, int dstHeight,
+            double fov, double yaw, double pitch, double roll) {
+        if (fov <= 0 || fov >= 180) {
+            throw new IllegalArgumentException("fov must be between 0 and 180");
+        }
+        if (src.length < srcWidth * srcHeight || dst.length < dstWidth * dstHeight) {
+            throw new IllegalArgumentException("Image is shorter than its size");
+        }
+        int[] lut = getLut(new LutKey(srcWidth, srcHeight, dstWidth, dstHeight, fov, yaw, pitch,
+                roll, attitude));
+        apply(src, srcWidth, srcHeight, lut, dst, dstWidth, dstHeight);
+    }
+
+    /**
+     * Render a cubemap face
+     *
+     * @param src ARGB equirectangular image
+     * @param srcWidth Image width
+     * @param srcHeight Image height
+     * @param attitude Camera tilt of the image (Attitude.LEVEL : zenith corrected)
+     * @param face Face
+     * @param dst ARGB output
+     * @param faceSize Output width and height
+     */
+    public void renderCubeFace(@NonNull int[] src, int srcWidth, int srcHeight,
+            @NonNull Attitude attitude, @NonNull CubeFace face, @NonNull int[] dst,
+            int faceSize) {
+        renderPerspective(src, srcWidth, srcHeight, attitude, dst, faceSize, faceSize, 90,
+                face.mYaw, face.mPitch, 0);
+    }
+
+    /**
+     * Drop all cached lookup tables
+     */
+    public synchronized void clearCache() {
+        mCache.clear();
+        mCachedBytes = 0;
+    }
+
+    public synchronized long getCachedBytes() {
+        return mCachedBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    private int[] getLut(LutKey key) {
+        synchronized (this) {
+            int[] lut = mCache.get(key);
+            if (lut != null) {
+                mHitCount++;
+                return lut;
+            }
+            mMissCount++;
+        }
+
+        // Built outside the lock, two threads may build the same table once
+        int[] lut = buildLut(key);
+        long bytes = lut.length * 4L;
+        synchronized (this) {
+            if (bytes <= mCacheBytes && mCache.put(key, lut) == null) {
+                mCachedBytes += bytes;
+                Iterator<Map.Entry<LutKey, int[]>> iterator = mCache.entrySet().iterator();
+                while (mCachedBytes > mCacheBytes && iterator.hasNext()) {
+                    Map.Entry<LutKey, int[]> eldest = iterator.next();
+                    if (eldest.getValue() == lut) {
+                        break;
+                    }
+                    mCachedBytes -= eldest.getValue().length * 4L;
+                    iterator.remove();
+                }
+            }
+        }
+        return lut;
+    }
+
+    private int[] buildLut(LutKey key) {
+        final int srcWidth = key.mSizes[0];
+        final int srcHeight = key.mSizes[1];
+        final int dstWidth = key.mSizes[2];
+        int dstHeight = key.mSizes[3];
+        final double halfWidth = dstWidth / 2.0;
+        final double halfHeight = dstHeight / 2.0;
+        final double focal = halfWidth / Math.tan(Math.toRadians(key.mAngles[0]) / 2);
+        final double[] m = SphereRotation.multiply(
+                SphereRotation.fromCameraTilt(key.mAngles[4], key.mAngles[5]),
+                SphereRotation.fromYawPitchRoll(key.mAngles[1], key.mAngles[2],
+                        key.mAngles[3]));
+        final int[] lut = new int[dstWidth * dstHeight * 2];
+
+        YuvConverter.runStripes(mPool, dstHeight, MIN_ROWS_PER_TASK,
+                new YuvConverter.RowTask() {
+                    @Override
+                    public void run(int fromRow, int toRow) {
+                        for (int row = fromRow; row < toRow; row++) {
+                            double y = (halfHeight - row - 0.5) / focal;
+                            int index = row * dstWidth * 2;
+                            for (int col = 0; col < dstWidth; col++, index += 2) {
+                                double x = (col + 0.5 - halfWidth) / focal;
+                                SphereRotation.toEquirect(
+                                        m[0] * x + m[1] * y + m[2],
+                                        m[3] * x + m[4] * y + m[5],
+                                        m[6] * x + m[7] * y + m[8],
+                                        srcWidth, srcHeight, lut, index);
+                            }
+                        }
+                    }
+                });
+        return lut;
+    }
+
+    private void apply(final int[] src, final int srcWidth, final int srcHeight,
+            final int[] lut, final int[] dst, final int dstWidth, int dstHeight) {
+        YuvConverter.runStripes(mPool, dstHeight, MIN_ROWS_PER_TASK,
+                new YuvConverter.RowTask() {
+                    @Override
+                    public void run(int fromRow, int toRow) {
+                        int index = fromRow * dstWidth;
+                        for (int end = toRow * dstWidth; index < end; index++) {
+                            dst[index] = SphereRotation.sample(src, srcWidth, srcHeight,
+                                    lut[2 * index], lut[2 * index + 1]);
+                        }
+                    }
+                });
+    }
+}
@@ -0,0 +1,411 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.factory;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import androidx.annotation.NonNull;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * IntervalScheduler
+ * (Runs interval shooting on fixed deadlines start + n x interval, so that the error of one
+ * shot does not move the following ones. A slot that comes while the previous capture is still
+ * running is skipped or run late, and counted. Finalizing a shot (Exif, saving) runs on a
+ * background thread while the next shot is captured)
+ */
+public class IntervalScheduler {
+    public enum MissPolicy {
+        SKIP,       // Drop the slot
+        RUN_LATE,   // Capture as soon as the previous capture ends
+    }
+
+    public interface Task {
+        /**
+         * Start capturing a shot, e.g. call takePicture. Call Shot.captured() when the picture
+         * data has arrived. Called on the scheduler thread
+         *
+         * @param shot Shot
+         */
+        void onCapture(Shot shot);
+
+        /**
+         * Finalize a captured shot, e.g. edit Exif and save the file. Called on the background
+         * thread, one shot at a time in capture order
+         *
+         * @param shot Shot
+         * @throws Exception counted as a failed shot
+         */
+        void onFinalize(Shot shot) throws Exception;
+
+        /**
+         * Callback when all slots are done and finalized, or after stop(). Called on the
+         * scheduler thread
+         *
+         * @param stats Statistics
+         */
+        void onCompleted(Stats stats);
+    }
+
+    /**
+     * Shot
+     */
+    public class Shot {
+        private final int mSlot;
+        private final long mPlannedMillis;
+        private final long mStartedMillis;
+        private volatile Object mData;
+
+        private Shot(int slot, long plannedMillis, long startedMillis) {
+            mSlot = slot;
+            mPlannedMillis = plannedMillis;
+            mStartedMillis = startedMillis;
+        }
+
+        /**
+         * @return Slot number from 0
+         */
+        public int getSlot() {
+            return mSlot;
+        }
+
+        /**
+         * @return Deadline of the slot (SystemClock.uptimeMillis)
+         */
+        public long getPlannedMillis() {
+            return mPlannedMillis;
+        }
+
+        /**
+         * @return Time onCapture was called (SystemClock.uptimeMillis)
+         */
+        public long getStartedMillis() {
+            return mStartedMillis;
+        }
+
+        /**
+         * @return Data given to captured()
+         */
+        public Object getData() {
+            return mData;
+        }
+
+        /**
+         * Notify that the capture ended, from any thread. The shot is finalized in the
+         * background and the next slot may start capturing
+         *
+         * @param data Data passed to onFinalize through getData(), e.g. the picture
+         */
+        public void captured(Object data) {
+            mData = data;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onCaptured(Shot.this);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stats
+     */
+    public static class Stats {
+        private final int mSlotCount;
+        private final int mCapturedCount;
+        private final int mMissedCount;
+        private final int mLateCount;
+        private final int mFailedCount;
+        private final long mTotalLatenessMillis;
+        private final long mMaxLatenessMillis;
+        private final long mTotalFinalizeMillis;
+        private final long mMaxFinalizeMillis;
+
+        private Stats(int slotCount, int capturedCount, int missedCount, int lateCount,
+                int failedCount, long totalLatenessMillis, long maxLatenessMillis,
+                long totalFinalizeMillis, long maxFinalizeMillis) {
+            mSlotCount = slotCount;
+            mCapturedCount = capturedCount;
+            mMissedCount = missedCount;
+            mLateCount = lateCount;
+            mFailedCount = failedCount;
+            mTotalLatenessMillis = totalLatenessMillis;
+            mMaxLatenessMillis = maxLatenessMillis;
+            mTotalFinalizeMillis = totalFinalizeMillis;
+            mMaxFinalizeMillis = maxFinalizeMillis;
+        }
+
+        /**
+         * @return Slots whose deadline has passed
+         */
+        public int getSlotCount() {
+            return mSlotCount;
+        }
+
+        public int getCapturedCount() {
+            return mCapturedCount;
+        }
+
+        /**
+         * @return Slots skipped because the previous capture was still running
+         */
+        public int getMissedCount() {
+            return mMissedCount;
+        }
+
+        /**
+         * @return Slots captured half an interval or more after their deadline
+         */
+        public int getLateCount() {
+            return mLateCount;
+        }
+
+        /**
+         * @return Shots whose onFinalize threw
+         */
+        public int getFailedCount() {
+            return mFailedCount;
+        }
+
+        /**
+         * @return Average delay from the slot deadline to onCapture
+         */
+        public long getAverageLatenessMillis() {
+            return (mCapturedCount == 0) ? 0 : mTotalLatenessMillis / mCapturedCount;
+        }
+
+        public long getMaxLatenessMillis() {
+            return mMaxLatenessMillis;
+        }
+
+        public long getAverageFinalizeMillis() {
+            return (mCapturedCount == 0) ? 0 : mTotalFinalizeMillis / mCapturedCount;
+        }
+
+        public long getMaxFinalizeMillis() {
+            return mMaxFinalizeMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d slots, %d captured, %d missed, %d late, %d failed, "
+                            + "lateness avg %d ms max %d ms, finalize avg %d ms max %d ms",
+                    mSlotCount, mCapturedCount, mMissedCount, mLateCount, mFailedCount,
+                    getAverageLatenessMillis(), mMaxLatenessMillis, getAverageFinalizeMillis(),
+                    mMaxFinalizeMillis);
+        }
+    }
+
+    private final long mIntervalMillis;
+    private final int mShotCount;
+    private final MissPolicy mMissPolicy;
+    private final Task mTask;
+    private final Handler mHandler;
+    private ExecutorService mExecutor;
+
+    private long mStartMillis;
+    private int mNextSlot;
+    private Shot mCapturingShot;
+    private int mPendingSlot = -1;
+    private int mFinalizingCount;
+    private boolean isRunning = false;
+
+    private int mSlotCount;
+    private int mCapturedCount;
+    private int mMissedCount;
+    private int mLateCount;
+    private int mFailedCount;
+    private long mTotalLatenessMillis;
+    private long mMaxLatenessMillis;
+    private long mTotalFinalizeMillis;
+    private long mMaxFinalizeMillis;
+
+    private final Runnable mSlotRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onSlot();
+        }
+    };
+
+    /**
+     * Scheduler running on the thread of the current Looper
+     *
+     * @param intervalMillis Interval between slot deadlines
+     * @param shotCount Number of slots (0 : until stop())
+     * @param missPolicy What to do with a slot that comes while capturing
+     * @param task Task
+     */
+    public IntervalScheduler(long intervalMillis, int shotCount, @NonNull MissPolicy missPolicy,
+            @NonNull Task task) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("intervalMillis must be positive");
+        }
+        mIntervalMillis = intervalMillis;
+        mShotCount = shotCount;
+        mMissPolicy = missPolicy;
+        mTask = task;
+        Looper looper = Looper.myLooper();
+        mHandler = new Handler((looper != null) ? looper : Looper.getMainLooper());
+    }
+
+    /**
+     * Start the slots
+     *
+     * @param delayMillis Delay to the first slot
+     */
+    public void start(long delayMillis) {
+        if (isRunning) {
+            throw new IllegalStateException("Scheduler already started");
+        }
+        mStartMillis = SystemClock.uptimeMillis() + delayMillis;
+        mNextSlot = 0;
+        mCapturingShot = null;
+        mPendingSlot = -1;
+        mFinalizingCount = 0;
+        mSlotCount = 0;
+        mCapturedCount = 0;
+        mMissedCount = 0;
+        mLateCount = 0;
+        mFailedCount = 0;
+        mTotalLatenessMillis = 0;
+        mMaxLatenessMillis = 0;
+        mTotalFinalizeMillis = 0;
+        mMaxFinalizeMillis = 0;
+        mExecutor = Executors.newSingleThreadExecutor();
+        isRunning = true;
+        mHandler.postAtTime(mSlotRunnable, mStartMillis);
+    }
+
+    /**
+     * Stop scheduling slots. The running capture and the queued finalizations complete first
+     */
+    public void stop() {
+        if (!isRunning) {
+            return;
+        }
+        mHandler.removeCallbacks(mSlotRunnable);
+        mNextSlot = Integer.MAX_VALUE;
+        mPendingSlot = -1;
+        maybeComplete();
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * @return Deadline of a slot (SystemClock.uptimeMillis)
+     */
+    public long getPlannedMillis(int slot) {
+        return mStartMillis + slot * mIntervalMillis;
+    }
+
+    private boolean hasMoreSlots() {
+        return mShotCount <= 0 ? mNextSlot != Integer.MAX_VALUE : mNextSlot < mShotCount;
+    }
+
+    private void onSlot() {
+        int slot = mNextSlot++;
+        mSlotCount++;
+        if (hasMoreSlots()) {
+            mHandler.postAtTime(mSlotRunnable, getPlannedMillis(mNextSlot));
+        }
+
+        if (mCapturingShot == null) {
+            capture(slot);
+        } else if (mMissPolicy == MissPolicy.RUN_LATE && mPendingSlot < 0) {
+            mPendingSlot = slot;
+        } else {
+            mMissedCount++;
+            maybeComplete();
+        }
+    }
+
+    private void capture(int slot) {
+        long plannedMillis = getPlannedMillis(slot);
+        long now = SystemClock.uptimeMillis();
+        long latenessMillis = Math.max(0, now - plannedMillis);
+        mTotalLatenessMillis += latenessMillis;
+        mMaxLatenessMillis = Math.max(mMaxLatenessMillis, latenessMillis);
+        if (latenessMillis >= mIntervalMillis / 2) {
+            mLateCount++;
+        }
+        mCapturingShot = new Shot(slot, plannedMillis, now);
+        mTask.onCapture(mCapturingShot);
+    }
+
+    private void onCaptured(final Shot shot) {
+        if (shot != mCapturingShot) {
+            return;
+        }
+        mCapturingShot = null;
+        mCapturedCount++;
+        mFinalizingCount++;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.uptimeMillis();
+                boolean failed = false;
+                try {
+                    mTask.onFinalize(shot);
+                } catch (Exception e) {
+                    failed = true;
+                }
+                final long finalizeMillis = SystemClock.uptimeMillis() - start;
+                final boolean finalizeFailed = failed;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onFinalized(finalizeMillis, finalizeFailed);
+                    }
+                });
+            }
+        });
+
+        if (mPendingSlot >= 0) {
+            int slot = mPendingSlot;
+            mPendingSlot = -1;
+            capture(slot);
+        } else {
+            maybeComplete();
+        }
+    }
+
+    private void onFinalized(long finalizeMillis, boolean failed) {
+        mFinalizingCount--;
+        mTotalFinalizeMillis += finalizeMillis;
+        mMaxFinalizeMillis = Math.max(mMaxFinalizeMillis, finalizeMillis);
+        if (failed) {
+            mFailedCount++;
+        }
+        maybeComplete();
+    }
+
+    private void maybeComplete() {
+        if (!isRunning || hasMoreSlots() || mCapturingShot != null || mPendingSlot >= 0
+                || mFinalizingCount > 0) {
+            return;
+        }
+        isRunning = false;
+        mExecutor.shutdown();
+        mTask.onCompleted(new Stats(mSlotCount, mCapturedCount, mMissedCount, mLateCount,
+                mFailedCount, mTotalLatenessMillis, mMaxLatenessMillis, mTotalFinalizeMillis,
+                mMaxFinalizeMillis));
+    }
+}
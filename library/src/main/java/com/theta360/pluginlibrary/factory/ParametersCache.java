@@ -0,0 +1,147 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.factory;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * ParametersCache
+ * (Keeps the camera parameters between getParameters() and setParameters(), so that they are
+ * only fetched from the camera service after open or invalidation, and pushed back only when
+ * a key has changed)
+ */
+public class ParametersCache<P> {
+    interface Source<P> {
+        P fetch();
+
+        void commit(P parameters);
+    }
+
+    private final Source<P> mSource;
+    private final Set<String> mDirtyKeys = new LinkedHashSet<>();
+    private P mParameters;
+
+    private int mFetchCount;
+    private int mCommitCount;
+    private int mSkippedCommitCount;
+    private long mFetchNanos;
+    private long mCommitNanos;
+
+    ParametersCache(Source<P> source) {
+        mSource = source;
+    }
+
+    /**
+     * @return Cached parameters, fetched from the camera if not cached
+     */
+    synchronized P get() {
+        if (mParameters == null) {
+            long start = System.nanoTime();
+            mParameters = mSource.fetch();
+            mFetchNanos += System.nanoTime() - start;
+            mFetchCount++;
+        }
+        return mParameters;
+    }
+
+    /**
+     * Get the parameters to change a key
+     *
+     * @param key Parameter key to be committed
+     * @return Cached parameters
+     */
+    synchronized P edit(String key) {
+        P parameters = get();
+        mDirtyKeys.add(key);
+        return parameters;
+    }
+
+    /**
+     * Push the changed parameters to the camera in one call. Nothing is pushed without changes
+     * A failed commit drops the cache, so that the next get() reads the camera state again.
+     */
+    synchronized void commit() {
+        if (mParameters == null || mDirtyKeys.isEmpty()) {
+            mSkippedCommitCount++;
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            mSource.commit(mParameters);
+        } catch (RuntimeException e) {
+            invalidate();
+            throw e;
+        }
+        mCommitNanos += System.nanoTime() - start;
+        mCommitCount++;
+        mDirtyKeys.clear();
+    }
+
+    /**
+     * Drop the cache and uncommitted changes. Call when the parameters may have been changed
+     * outside this cache, e.g. through getXCamera() / getVCamera()
+     */
+    public synchronized void invalidate() {
+        mParameters = null;
+        mDirtyKeys.clear();
+    }
+
+    /**
+     * @return Keys changed since the last commit
+     */
+    public synchronized Set<String> getDirtyKeys() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(mDirtyKeys));
+    }
+
+    /**
+     * @return Number of getParameters() calls to the camera service
+     */
+    public synchronized int getFetchCount() {
+        return mFetchCount;
+    }
+
+    /**
+     * @return Number of setParameters() calls to the camera service
+     */
+    public synchronized int getCommitCount() {
+        return mCommitCount;
+    }
+
+    /**
+     * @return Number of commits without changes, which did not call the camera service
+     */
+    public synchronized int getSkippedCommitCount() {
+        return mSkippedCommitCount;
+    }
+
+    /**
+     * @return Total time spent in getParameters() of the camera service
+     */
+    public synchronized long getFetchNanos() {
+        return mFetchNanos;
+    }
+
+    /**
+     * @return Total time spent in setParameters() of the camera service
+     */
+    public synchronized long getCommitNanos() {
+        return mCommitNanos;
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.factory;
+
+import android.os.SystemClock;
+import androidx.annotation.NonNull;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * PreparedMediaRecorder
+ * (Builds and prepares a MediaRecorder from a saved configuration before the recording is
+ * requested, so that starting a recording only calls start())
+ */
+public class PreparedMediaRecorder {
+    public interface Configuration {
+        /**
+         * Apply the settings to a new recorder (camera, sources, encoders, listeners...) except
+         * the output file
+         *
+         * @param mediaRecorder Recorder
+         */
+        void configure(MediaRecorder mediaRecorder);
+    }
+
+    public interface OutputPathProvider {
+        /**
+         * Called when a recorder is prepared
+         *
+         * @return Path of the next file
+         */
+        String nextOutputPath();
+    }
+
+    /**
+     * Recording
+     */
+    public static class Recording {
+        private final MediaRecorder mMediaRecorder;
+        private final String mOutputPath;
+        private final boolean isWarm;
+        private final long mStartNanos;
+
+        private Recording(MediaRecorder mediaRecorder, String outputPath, boolean warm,
+                long startNanos) {
+            mMediaRecorder = mediaRecorder;
+            mOutputPath = outputPath;
+            isWarm = warm;
+            mStartNanos = startNanos;
+        }
+
+        public MediaRecorder getMediaRecorder() {
+            return mMediaRecorder;
+        }
+
+        public String getOutputPath() {
+            return mOutputPath;
+        }
+
+        /**
+         * @return true : started from a prepared recorder / false : prepared on start
+         */
+        public boolean isWarm() {
+            return isWarm;
+        }
+
+        /**
+         * @return Time from the start request to the end of start()
+         */
+        public double getStartMillis() {
+            return mStartNanos / 1000000.0;
+        }
+
+        /**
+         * Stop and release the recorder
+         */
+        public void stop() {
+            try {
+                mMediaRecorder.stop();
+            } finally {
+                mMediaRecorder.reset();
+                mMediaRecorder.release();
+            }
+        }
+    }
+
+    private final FactoryBase.CameraModel mCameraModel;
+    private final Configuration mConfiguration;
+    private final OutputPathProvider mOutputPathProvider;
+    private final FactoryBase mFactory = new FactoryBase();
+
+    private MediaRecorder mReadyRecorder;
+    private String mReadyPath;
+
+    private int mColdCount;
+    private long mColdNanos;
+    private int mWarmCount;
+    private long mWarmNanos;
+    private int mPrepareCount;
+    private long mPrepareNanos;
+
+    /**
+     * @param cameraModel Camera model of the recorders
+     * @param configuration Settings applied to every recorder
+     * @param outputPathProvider Output file of every recorder
+     */
+    public PreparedMediaRecorder(@NonNull FactoryBase.CameraModel cameraModel,
+            @NonNull Configuration configuration, @NonNull OutputPathProvider outputPathProvider) {
+        mCameraModel = cameraModel;
+        mConfiguration = configuration;
+        mOutputPathProvider = outputPathProvider;
+    }
+
+    /**
+     * Prepare a recorder for the next start(), if none is ready
+     *
+     * @throws IOException when prepare() failed
+     */
+    public synchronized void warmUp() throws IOException {
+        if (mReadyRecorder != null) {
+            return;
+        }
+        long start = SystemClock.elapsedRealtimeNanos();
+        String outputPath = mOutputPathProvider.nextOutputPath();
+        mReadyRecorder = prepare(outputPath);
+        mReadyPath = outputPath;
+        mPrepareCount++;
+        mPrepareNanos += SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    public synchronized boolean isReady() {
+        return mReadyRecorder != null;
+    }
+
+    /**
+     * Start recording with the prepared recorder, or prepare one now when none is ready
+     *
+     * @return Recording
+     * @throws IOException when prepare() failed
+     */
+    public synchronized Recording start() throws IOException {
+        long start = SystemClock.elapsedRealtimeNanos();
+        MediaRecorder mediaRecorder = mReadyRecorder;
+        String outputPath = mReadyPath;
+        boolean isWarm = mediaRecorder != null;
+        mReadyRecorder = null;
+        mReadyPath = null;
+        if (!isWarm) {
+            outputPath = mOutputPathProvider.nextOutputPath();
+            mediaRecorder = prepare(outputPath);
+        }
+
+        try {
+            mediaRecorder.start();
+        } catch (RuntimeException e) {
+            mediaRecorder.reset();
+            mediaRecorder.release();
+            throw e;
+        }
+        long nanos = SystemClock.elapsedRealtimeNanos() - start;
+        if (isWarm) {
+            mWarmCount++;
+            mWarmNanos += nanos;
+        } else {
+            mColdCount++;
+            mColdNanos += nanos;
+        }
+        return new Recording(mediaRecorder, outputPath, isWarm, nanos);
+    }
+
+    /**
+     * Release the prepared recorder and delete its empty output file
+     */
+    public synchronized void cancel() {
+        if (mReadyRecorder == null) {
+            return;
+        }
+        mReadyRecorder.reset();
+        mReadyRecorder.release();
+        File file = new File(mReadyPath);
+        if (file.exists() && file.length() == 0) {
+            file.delete();
+        }
+        mReadyRecorder = null;
+        mReadyPath = null;
+    }
+
+    public synchronized int getColdStartCount() {
+        return mColdCount;
+    }
+
+    /**
+     * @return Average time of start() without a prepared recorder
+     */
+    public synchronized double getAverageColdStartMillis() {
+        return (mColdCount == 0) ? 0 : mColdNanos / 1000000.0 / mColdCount;
+    }
+
+    public synchronized int getWarmStartCount() {
+        return mWarmCount;
+    }
+
+    /**
+     * @return Average time of start() with a prepared recorder
+     */
+    public synchronized double getAverageWarmStartMillis() {
+        return (mWarmCount == 0) ? 0 : mWarmNanos / 1000000.0 / mWarmCount;
+    }
+
+    /**
+     * @return Average time of warmUp(), moved off the start request
+     */
+    public synchronized double getAverageWarmUpMillis() {
+        return (mPrepareCount == 0) ? 0 : mPrepareNanos / 1000000.0 / mPrepareCount;
+    }
+
+    private MediaRecorder prepare(String outputPath) throws IOException {
+        MediaRecorder mediaRecorder = mFactory.abstractMediaRecorder(mCameraModel);
+        if (mediaRecorder == null) {
+            throw new IllegalArgumentException("No MediaRecorder for " + mCameraModel);
+        }
+        mediaRecorder.newMediaRecorder();
+        try {
+            mConfiguration.configure(mediaRecorder);
+            mediaRecorder.setOutputFile(outputPath);
+            mediaRecorder.prepare();
+        } catch (IOException | RuntimeException e) {
+            mediaRecorder.reset();
+            mediaRecorder.release();
+            throw e;
+        }
+        return mediaRecorder;
+    }
+}
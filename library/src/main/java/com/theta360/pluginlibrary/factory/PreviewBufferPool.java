@@ -0,0 +1,297 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.factory;
+
+import android.graphics.ImageFormat;
+import androidx.annotation.NonNull;
+
+/**
+ * PreviewBufferPool
+ * (Keeps a fixed set of preview buffers queued to the camera with
+ * setPreviewCallbackWithBuffer. A frame goes back to the camera when its handle is released.
+ * Every delivery has its own handle, so a late release of an earlier frame of the same buffer
+ * is ignored)
+ */
+public class PreviewBufferPool {
+    public static final int DEFAULT_BUFFER_COUNT = 3;
+
+    public interface FrameCallback {
+        /**
+         * Callback when a preview frame arrives. Call Frame.release() when the data is no longer
+         * used, the frame may be released later from another thread
+         *
+         * @param frame Frame handle
+         */
+        void onFrame(Frame frame);
+    }
+
+    private static class Buffer {
+        private final byte[] mData;
+        private boolean isInUse = false;
+        private long mSequence;
+
+        private Buffer(byte[] data) {
+            mData = data;
+        }
+    }
+
+    /**
+     * Frame
+     * (Handle of one delivery of a pooled buffer)
+     */
+    public class Frame {
+        private final Buffer mBuffer;
+        private final long mSequence;
+        private final long mTimestampNanos;
+
+        private Frame(Buffer buffer, long sequence, long timestampNanos) {
+            mBuffer = buffer;
+            mSequence = sequence;
+            mTimestampNanos = timestampNanos;
+        }
+
+        /**
+         * @return Frame data, valid until release()
+         */
+        public byte[] getData() {
+            return mBuffer.mData;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public int getFormat() {
+            return mFormat;
+        }
+
+        /**
+         * @return Number of the frame since start()
+         */
+        public long getSequence() {
+            return mSequence;
+        }
+
+        /**
+         * @return System.nanoTime() when the frame arrived from the camera
+         */
+        public long getTimestampNanos() {
+            return mTimestampNanos;
+        }
+
+        /**
+         * Return the buffer to the camera. Calls after the first one are ignored
+         */
+        public void release() {
+            recycle(mBuffer, mSequence);
+        }
+    }
+
+    private final Camera mCamera;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFormat;
+    private final Buffer[] mBuffers;
+    private FrameCallback mFrameCallback;
+    private boolean isRunning = false;
+
+    private long mDeliveredCount;
+    private long mRecycledCount;
+    private long mDroppedCount;
+    private long mStarvedCount;
+
+    private final Camera.PreviewCallback mPreviewCallback = new Camera.PreviewCallback() {
+        @Override
+        public void onPreviewFrame(byte[] data, theta360.hardware.Camera camera) {
+            deliver(data);
+        }
+
+        @Override
+        public void onPreviewFrame(byte[] data, android.hardware.Camera camera) {
+            deliver(data);
+        }
+    };
+
+    /**
+     * @param camera Opened camera
+     * @param width Preview width set to the camera
+     * @param height Preview height set to the camera
+     * @param format Preview format set to the camera (ImageFormat)
+     * @param bufferCount Number of buffers, frames held by the consumer included
+     */
+    public PreviewBufferPool(@NonNull Camera camera, int width, int height, int format,
+            int bufferCount) {
+        if (bufferCount < 1) {
+            throw new IllegalArgumentException("bufferCount must be 1 or more");
+        }
+        mCamera = camera;
+        mWidth = width;
+        mHeight = height;
+        mFormat = format;
+        int bufferSize = getBufferSize(width, height, format);
+        mBuffers = new Buffer[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            mBuffers[i] = new Buffer(new byte[bufferSize]);
+        }
+    }
+
+    /**
+     * @param width Preview width
+     * @param height Preview height
+     * @param format Preview format (ImageFormat)
+     * @return Bytes of one preview frame
+     */
+    public static int getBufferSize(int width, int height, int format) {
+        if (format == ImageFormat.YV12) {
+            // Y and chroma rows are aligned to 16 bytes
+            int yStride = align16(width);
+            int uvStride = align16(yStride / 2);
+            return yStride * height + uvStride * (height / 2) * 2;
+        }
+        int bitsPerPixel = ImageFormat.getBitsPerPixel(format);
+        if (bitsPerPixel <= 0) {
+            throw new IllegalArgumentException("Unsupported preview format " + format);
+        }
+        return width * height * bitsPerPixel / 8;
+    }
+
+    /**
+     * Queue all buffers that are not held by the consumer and start delivering frames
+     *
+     * @param frameCallback Frame callback
+     */
+    public synchronized void start(@NonNull FrameCallback frameCallback) {
+        mFrameCallback = frameCallback;
+        isRunning = true;
+        mCamera.setPreviewCallbackWithBuffer(mPreviewCallback);
+        for (Buffer buffer : mBuffers) {
+            if (!buffer.isInUse) {
+                mCamera.addCallbackBuffer(buffer.mData);
+            }
+        }
+    }
+
+    /**
+     * Stop delivering frames. Call after stopPreview(), the buffers queued to the camera are
+     * given back when preview restarts with start()
+     */
+    public synchronized void stop() {
+        isRunning = false;
+        mFrameCallback = null;
+        mCamera.setPreviewCallbackWithBuffer(null);
+    }
+
+    public int getBufferCount() {
+        return mBuffers.length;
+    }
+
+    /**
+     * @return Frames passed to FrameCallback
+     */
+    public synchronized long getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    /**
+     * @return Frames released and queued to the camera again
+     */
+    public synchronized long getRecycledCount() {
+        return mRecycledCount;
+    }
+
+    /**
+     * @return Frames the camera could not fill (buffer too small) or that arrived while stopped
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * @return Times the consumer held every buffer, so that the camera skipped frames until
+     * one was released
+     */
+    public synchronized long getStarvedCount() {
+        return mStarvedCount;
+    }
+
+    /**
+     * @return Frames currently held by the consumer
+     */
+    public synchronized int getInUseCount() {
+        int count = 0;
+        for (Buffer buffer : mBuffers) {
+            if (buffer.isInUse) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void deliver(byte[] data) {
+        long timestampNanos = System.nanoTime();
+        FrameCallback frameCallback;
+        Buffer delivered = null;
+        long sequence;
+        synchronized (this) {
+            frameCallback = mFrameCallback;
+            if (data != null) {
+                for (Buffer buffer : mBuffers) {
+                    if (buffer.mData == data) {
+                        delivered = buffer;
+                        break;
+                    }
+                }
+            }
+            if (delivered == null) {
+                mDroppedCount++;
+                return;
+            }
+            if (!isRunning || frameCallback == null) {
+                mDroppedCount++;
+                mCamera.addCallbackBuffer(data);
+                return;
+            }
+            sequence = mDeliveredCount++;
+            delivered.isInUse = true;
+            delivered.mSequence = sequence;
+            if (getInUseCount() == mBuffers.length) {
+                mStarvedCount++;
+            }
+        }
+        frameCallback.onFrame(new Frame(delivered, sequence, timestampNanos));
+    }
+
+    private synchronized void recycle(Buffer buffer, long sequence) {
+        // The buffer may already hold a later frame
+        if (!buffer.isInUse || buffer.mSequence != sequence) {
+            return;
+        }
+        buffer.isInUse = false;
+        mRecycledCount++;
+        if (isRunning) {
+            mCamera.addCallbackBuffer(buffer.mData);
+        }
+    }
+
+    private static int align16(int value) {
+        return (value + 15) & ~15;
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.factory;
+
+import androidx.annotation.NonNull;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * PreviewDownscaler
+ * (Reduces NV21 equirectangular preview frames by an integer ratio, e.g. RIC_PREVIEW_3840 to
+ * 640x320. Each output pixel is the average of the ratio x ratio source pixels, computed on the
+ * Y and VU planes without RGB conversion. The output is NV21 as well)
+ */
+public class PreviewDownscaler {
+    public static final int DEFAULT_POOL_SIZE = 2;
+    private static final int MIN_ROWS_PER_TASK = 4;
+
+    private final int mSrcWidth;
+    private final int mSrcHeight;
+    private final int mRatio;
+    private final int mDstWidth;
+    private final int mDstHeight;
+    private final ForkJoinPool mPool;
+    private final int mPoolSize;
+    private final ArrayDeque<byte[]> mFreeBuffers = new ArrayDeque<>();
+
+    /**
+     * Downscaler running on the common ForkJoinPool
+     *
+     * @param srcWidth Preview width
+     * @param srcHeight Preview height
+     * @param dstWidth Output width, srcWidth must be a multiple of it
+     */
+    public PreviewDownscaler(int srcWidth, int srcHeight, int dstWidth) {
+        this(srcWidth, srcHeight, dstWidth, ForkJoinPool.commonPool(), DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * @param srcWidth Preview width
+     * @param srcHeight Preview height
+     * @param dstWidth Output width, srcWidth must be a multiple of it
+     * @param pool Pool running the row bands (null : scale on the calling thread)
+     * @param poolSize Output buffers kept for reuse
+     */
+    public PreviewDownscaler(int srcWidth, int srcHeight, int dstWidth, ForkJoinPool pool,
+            int poolSize) {
+        if (dstWidth <= 0 || srcWidth % dstWidth != 0) {
+            throw new IllegalArgumentException("Width " + srcWidth + " is not a multiple of "
+                    + dstWidth);
+        }
+        mRatio = srcWidth / dstWidth;
+        if (srcHeight % (2 * mRatio) != 0 || dstWidth % 2 != 0) {
+            throw new IllegalArgumentException("Output of " + srcWidth + "x" + srcHeight
+                    + " / " + mRatio + " is not an even size");
+        }
+        mSrcWidth = srcWidth;
+        mSrcHeight = srcHeight;
+        mDstWidth = dstWidth;
+        mDstHeight = srcHeight / mRatio;
+        mPool = pool;
+        mPoolSize = poolSize;
+    }
+
+    public int getWidth() {
+        return mDstWidth;
+    }
+
+    public int getHeight() {
+        return mDstHeight;
+    }
+
+    public int getRatio() {
+        return mRatio;
+    }
+
+    /**
+     * Scale into a buffer taken from the pool. Give it back with recycle() when no longer used
+     *
+     * @param nv21 NV21 preview frame
+     * @return NV21 frame of getWidth() x getHeight()
+     */
+    public byte[] scale(@NonNull byte[] nv21) {
+        byte[] dst;
+        synchronized (mFreeBuffers) {
+            dst = mFreeBuffers.poll();
+        }
+        if (dst == null) {
+            dst = new byte[YuvConverter.getNv21Size(mDstWidth, mDstHeight)];
+        }
+        scale(nv21, dst);
+        return dst;
+    }
+
+    /**
+     * Scale into a buffer given by the caller
+     *
+     * @param nv21 NV21 preview frame
+     * @param dst Output of getWidth() x getHeight() NV21
+     */
+    public void scale(@NonNull final byte[] nv21, @NonNull final byte[] dst) {
+        if (nv21.length < YuvConverter.getNv21Size(mSrcWidth, mSrcHeight)) {
+            throw new IllegalArgumentException("NV21 data is shorter than " + mSrcWidth + "x"
+                    + mSrcHeight);
+        }
+        if (dst.length < YuvConverter.getNv21Size(mDstWidth, mDstHeight)) {
+            throw new IllegalArgumentException("Output is shorter than " + mDstWidth + "x"
+                    + mDstHeight);
+        }
+
+        // A band is one VU output row and the two Y output rows sharing it
+        YuvConverter.runStripes(mPool, mDstHeight / 2, MIN_ROWS_PER_TASK,
+                new YuvConverter.RowTask() {
+                    @Override
+                    public void run(int fromRow, int toRow) {
+                        int[] sums = YuvConverter.getRowBuffer(mDstWidth);
+                        for (int row = fromRow; row < toRow; row++) {
+                            scaleY(nv21, dst, 2 * row, sums);
+                            scaleY(nv21, dst, 2 * row + 1, sums);
+                            scaleVU(nv21, dst, row, sums);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Give back a buffer returned by scale(byte[])
+     */
+    public void recycle(@NonNull byte[] dst) {
+        if (dst.length != YuvConverter.getNv21Size(mDstWidth, mDstHeight)) {
+            return;
+        }
+        synchronized (mFreeBuffers) {
+            if (mFreeBuffers.size() < mPoolSize) {
+                mFreeBuffers.add(dst);
+            }
+        }
+    }
+
+    private void scaleY(byte[] src, byte[] dst, int dstRow, int[] sums) {
+        Arrays.fill(sums, 0, mDstWidth, 0);
+        int srcIndex = dstRow * mRatio * mSrcWidth;
+        for (int y = 0; y < mRatio; y++) {
+            for (int x = 0; x < mDstWidth; x++) {
+                int sum = 0;
+                for (int i = 0; i < mRatio; i++) {
+                    sum += src[srcIndex++] & 0xff;
+                }
+                sums[x] += sum;
+            }
+        }
+        writeAverages(sums, dst, dstRow * mDstWidth);
+    }
+
+    /**
+     * VU samples are interleaved, so one row holds mDstWidth / 2 pairs as mDstWidth values
+     */
+    private void scaleVU(byte[] src, byte[] dst, int dstRow, int[] sums) {
+        Arrays.fill(sums, 0, mDstWidth, 0);
+        int srcIndex = mSrcWidth * mSrcHeight + dstRow * mRatio * mSrcWidth;
+        for (int y = 0; y < mRatio; y++) {
+            for (int x = 0; x < mDstWidth; x += 2) {
+                int sumV = 0;
+                int sumU = 0;
+                for (int i = 0; i < mRatio; i++) {
+                    sumV += src[srcIndex++] & 0xff;
+                    sumU += src[srcIndex++] & 0xff;
+                }
+                sums[x] += sumV;
+                sums[x + 1] += sumU;
+            }
+        }
+        writeAverages(sums, dst, mDstWidth * mDstHeight + dstRow * mDstWidth);
+    }
+
+    private void writeAverages(int[] sums, byte[] dst, int dstIndex) {
+        int area = mRatio * mRatio;
+        int half = area / 2;
+        for (int x = 0; x < mDstWidth; x++) {
+            dst[dstIndex + x] = (byte) ((sums[x] + half) / area);
+        }
+    }
+}
@@ -0,0 +1,382 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.factory;
+
+import androidx.annotation.NonNull;
+import com.theta360.pluginlibrary.factory.PreviewBufferPool.Frame;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * PreviewPipeline
+ * (Runs preview frames from PreviewBufferPool through stages on worker threads, so that the
+ * camera callback thread only queues the frame. When a stage falls behind, its oldest queued
+ * frames are dropped and only the latest frames are processed)
+ */
+public class PreviewPipeline {
+    public static final int DEFAULT_QUEUE_CAPACITY = 1;
+
+    public interface Stage {
+        /**
+         * Process a frame on the worker thread of the stage. The frame data must not be used
+         * after returning, the frame is passed to the next stage or released by the pipeline
+         *
+         * @param frame Frame
+         * @return true : pass the frame to the next stage / false : release the frame
+         */
+        boolean process(Frame frame);
+    }
+
+    /**
+     * StageStats
+     * (Counters of a stage since start())
+     */
+    public static class StageStats {
+        private final String mName;
+        private final long mProcessedCount;
+        private final long mDroppedCount;
+        private final long mErrorCount;
+        private final long mProcessNanos;
+        private final long mMaxProcessNanos;
+        private final long mLatencyNanos;
+        private final long mElapsedNanos;
+
+        private StageStats(String name, long processedCount, long droppedCount, long errorCount,
+                long processNanos, long maxProcessNanos, long latencyNanos, long elapsedNanos) {
+            mName = name;
+            mProcessedCount = processedCount;
+            mDroppedCount = droppedCount;
+            mErrorCount = errorCount;
+            mProcessNanos = processNanos;
+            mMaxProcessNanos = maxProcessNanos;
+            mLatencyNanos = latencyNanos;
+            mElapsedNanos = elapsedNanos;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getProcessedCount() {
+            return mProcessedCount;
+        }
+
+        /**
+         * @return Frames replaced by a newer frame while waiting in the queue
+         */
+        public long getDroppedCount() {
+            return mDroppedCount;
+        }
+
+        /**
+         * @return Frames whose process() threw a RuntimeException
+         */
+        public long getErrorCount() {
+            return mErrorCount;
+        }
+
+        /**
+         * @return Average time in process()
+         */
+        public long getAverageProcessNanos() {
+            return (mProcessedCount == 0) ? 0 : mProcessNanos / mProcessedCount;
+        }
+
+        public long getMaxProcessNanos() {
+            return mMaxProcessNanos;
+        }
+
+        /**
+         * @return Average time from the camera callback to the end of this stage
+         */
+        public long getAverageLatencyNanos() {
+            return (mProcessedCount == 0) ? 0 : mLatencyNanos / mProcessedCount;
+        }
+
+        /**
+         * @return Processed frames per second
+         */
+        public double getThroughput() {
+            return (mElapsedNanos == 0) ? 0 : mProcessedCount * 1e9 / mElapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d processed, %d dropped, %d errors, %.1f fps, "
+                            + "process avg %.2f ms max %.2f ms, latency avg %.2f ms",
+                    mName, mProcessedCount, mDroppedCount, mErrorCount, getThroughput(),
+                    getAverageProcessNanos() / 1e6, mMaxProcessNanos / 1e6,
+                    getAverageLatencyNanos() / 1e6);
+        }
+    }
+
+    private class StageWorker {
+        private final String mName;
+        private final Stage mStage;
+        private final int mQueueCapacity;
+        private final ArrayDeque<Frame> mQueue = new ArrayDeque<>();
+        private StageWorker mNext;
+        private ExecutorService mExecutor;
+        private boolean isRunning = false;
+
+        private long mProcessedCount;
+        private long mDroppedCount;
+        private long mErrorCount;
+        private long mProcessNanos;
+        private long mMaxProcessNanos;
+        private long mLatencyNanos;
+
+        private StageWorker(String name, Stage stage, int queueCapacity) {
+            mName = name;
+            mStage = stage;
+            mQueueCapacity = queueCapacity;
+        }
+
+        private void offer(Frame frame) {
+            Frame dropped = null;
+            synchronized (this) {
+                if (mExecutor == null) {
+                    dropped = frame;
+                } else {
+                    if (mQueue.size() >= mQueueCapacity) {
+                        dropped = mQueue.poll();
+                        mDroppedCount++;
+                    }
+                    mQueue.add(frame);
+                }
+            }
+            if (dropped != null) {
+                dropped.release();
+            }
+            scheduleNext();
+        }
+
+        private void scheduleNext() {
+            final Frame frame;
+            ExecutorService executor;
+            synchronized (this) {
+                if (isRunning || mExecutor == null || mQueue.isEmpty()) {
+                    return;
+                }
+                frame = mQueue.poll();
+                executor = mExecutor;
+                isRunning = true;
+            }
+
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            runStage(frame);
+                        } finally {
+                            synchronized (StageWorker.this) {
+                                isRunning = false;
+                            }
+                            scheduleNext();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    isRunning = false;
+                }
+                frame.release();
+            }
+        }
+
+        private void runStage(Frame frame) {
+            long start = System.nanoTime();
+            boolean passed = false;
+            boolean failed = false;
+            try {
+                passed = mStage.process(frame);
+            } catch (RuntimeException e) {
+                failed = true;
+            }
+            long end = System.nanoTime();
+
+            synchronized (this) {
+                if (failed) {
+                    mErrorCount++;
+                } else {
+                    long processNanos = end - start;
+                    mProcessedCount++;
+                    mProcessNanos += processNanos;
+                    mMaxProcessNanos = Math.max(mMaxProcessNanos, processNanos);
+                    mLatencyNanos += end - frame.getTimestampNanos();
+                }
+            }
+
+            if (passed && mNext != null) {
+                mNext.offer(frame);
+            } else {
+                frame.release();
+            }
+        }
+
+        private synchronized void start() {
+            mProcessedCount = 0;
+            mDroppedCount = 0;
+            mErrorCount = 0;
+            mProcessNanos = 0;
+            mMaxProcessNanos = 0;
+            mLatencyNanos = 0;
+            mExecutor = Executors.newSingleThreadExecutor();
+        }
+
+        private void stop() {
+            ExecutorService executor;
+            Frame[] frames;
+            synchronized (this) {
+                executor = mExecutor;
+                mExecutor = null;
+                frames = mQueue.toArray(new Frame[0]);
+                mQueue.clear();
+            }
+            if (executor != null) {
+                executor.shutdown();
+            }
+            for (Frame frame : frames) {
+                frame.release();
+            }
+        }
+
+        private synchronized StageStats getStats(long elapsedNanos) {
+            return new StageStats(mName, mProcessedCount, mDroppedCount, mErrorCount,
+                    mProcessNanos, mMaxProcessNanos, mLatencyNanos, elapsedNanos);
+        }
+    }
+
+    private final PreviewBufferPool mBufferPool;
+    private final List<StageWorker> mStages = new ArrayList<>();
+    private boolean isStarted = false;
+    private long mStartNanos;
+    private long mStopNanos;
+
+    private final PreviewBufferPool.FrameCallback mFrameCallback =
+            new PreviewBufferPool.FrameCallback() {
+                @Override
+                public void onFrame(Frame frame) {
+                    StageWorker first;
+                    synchronized (PreviewPipeline.this) {
+                        first = isStarted ? mStages.get(0) : null;
+                    }
+                    if (first == null) {
+                        frame.release();
+                    } else {
+                        first.offer(frame);
+                    }
+                }
+            };
+
+    /**
+     * @param bufferPool Buffer pool of the preview. Frames held in the stage queues count
+     * against its buffers, so allocate at least (number of stages + 1) buffers
+     */
+    public PreviewPipeline(@NonNull PreviewBufferPool bufferPool) {
+        mBufferPool = bufferPool;
+    }
+
+    /**
+     * Add a stage with DEFAULT_QUEUE_CAPACITY. Stages run in the order they are added
+     *
+     * @param name Stage name used in StageStats
+     * @param stage Stage
+     */
+    public void addStage(@NonNull String name, @NonNull Stage stage) {
+        addStage(name, stage, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Add a stage. Stages run in the order they are added
+     *
+     * @param name Stage name used in StageStats
+     * @param stage Stage
+     * @param queueCapacity Frames waiting for the stage, the oldest one is dropped beyond it
+     */
+    public synchronized void addStage(@NonNull String name, @NonNull Stage stage,
+            int queueCapacity) {
+        if (isStarted) {
+            throw new IllegalStateException("Stages cannot be added while started");
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be 1 or more");
+        }
+        StageWorker worker = new StageWorker(name, stage, queueCapacity);
+        if (!mStages.isEmpty()) {
+            mStages.get(mStages.size() - 1).mNext = worker;
+        }
+        mStages.add(worker);
+    }
+
+    /**
+     * Start the stage threads and the buffer pool
+     */
+    public void start() {
+        synchronized (this) {
+            if (mStages.isEmpty()) {
+                throw new IllegalStateException("No stage added");
+            }
+            if (isStarted) {
+                return;
+            }
+            for (StageWorker worker : mStages) {
+                worker.start();
+            }
+            mStartNanos = System.nanoTime();
+            mStopNanos = mStartNanos;
+            isStarted = true;
+        }
+        mBufferPool.start(mFrameCallback);
+    }
+
+    /**
+     * Stop the buffer pool and the stage threads. Queued frames are released, frames in
+     * process() are released when it returns
+     */
+    public void stop() {
+        synchronized (this) {
+            if (!isStarted) {
+                return;
+            }
+            isStarted = false;
+            mStopNanos = System.nanoTime();
+        }
+        mBufferPool.stop();
+        for (StageWorker worker : mStages) {
+            worker.stop();
+        }
+    }
+
+    /**
+     * @return Counters of each stage in pipeline order
+     */
+    public synchronized List<StageStats> getStageStats() {
+        long elapsedNanos = (isStarted ? System.nanoTime() : mStopNanos) - mStartNanos;
+        List<StageStats> stats = new ArrayList<>();
+        for (StageWorker worker : mStages) {
+            stats.add(worker.getStats(elapsedNanos));
+        }
+        return Collections.unmodifiableList(stats);
+    }
+}
@@ -0,0 +1,366 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.factory;
+
+import android.os.Handler;
+import android.os.Looper;
+import androidx.annotation.NonNull;
+import com.theta360.pluginlibrary.exif.Box;
+import com.theta360.pluginlibrary.exif.BoxProcessor;
+import com.theta360.pluginlibrary.exif.values.box.FinalizationMode;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * SegmentedRecorder
+ * (Records continuously as a series of files. The recorder of the next segment is prepared
+ * while the current one records, the recording moves to it when the current one reaches its
+ * limit, and Box data of the finished segment is formed on a BoxProcessor.
+ * Preparing a recorder while another one records is not verified on every model. When it
+ * fails, Callback.onWarmUpFailed() is called and the next segment prepares its recorder at the
+ * change, leaving a gap as a plain MediaRecorder would)
+ */
+public class SegmentedRecorder {
+    private static final int INFO_MAX_DURATION_REACHED =
+            android.media.MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED;
+    private static final int INFO_MAX_FILESIZE_REACHED =
+            android.media.MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED;
+    // MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING of API 26, minSdk is 25
+    private static final int INFO_MAX_FILESIZE_APPROACHING = 802;
+    private static final long WARM_UP_LEAD_MILLIS = 5000;
+
+    public interface PathProvider extends PreparedMediaRecorder.OutputPathProvider {
+        /**
+         * @param outputPath Output file of a segment
+         * @return WAV file of the segment given to Box
+         */
+        String getWavPath(String outputPath);
+    }
+
+    public interface Callback {
+        /**
+         * Callback when a segment starts recording
+         *
+         * @param index Segment number from 0
+         * @param outputPath Output file
+         */
+        void onSegmentStarted(int index, String outputPath);
+
+        /**
+         * Callback when Box data of a segment is formed
+         *
+         * @param index Segment number from 0
+         * @param fileUrls param[0]:MP4 file path param[1]:WAV file path
+         */
+        void onSegmentCompleted(int index, String[] fileUrls);
+
+        /**
+         * Callback when a segment could not be finalized. Its files are left as recorded
+         *
+         * @param index Segment number from 0
+         * @param fileUrls param[0]:MP4 file path param[1]:WAV file path
+         */
+        void onSegmentError(int index, String[] fileUrls);
+
+        /**
+         * Callback when the recorder of the next segment could not be prepared in advance.
+         * Recording goes on, the next segment starts without a prepared recorder
+         *
+         * @param index Segment number being recorded
+         * @param e Error
+         */
+        void onWarmUpFailed(int index, Exception e);
+
+        /**
+         * Callback when the recording stopped because the next segment could not start, or the
+         * recorder reported an error
+         *
+         * @param e Error
+         */
+        void onError(Exception e);
+    }
+
+    private final PreparedMediaRecorder mPreparedRecorder;
+    private final PathProvider mPathProvider;
+    private final BoxProcessor mBoxProcessor;
+    private final FinalizationMode mFinalizationMode;
+    private final int mMaxDurationMillis;
+    private final long mMaxFileSize;
+    private final Handler mHandler;
+    private final ExecutorService mWarmUpExecutor = Executors.newSingleThreadExecutor();
+
+    private Callback mCallback;
+    private PreparedMediaRecorder.Recording mRecording;
+    private int mSegmentIndex;
+    private int mWarmUpFailureCount;
+    private boolean isRecording = false;
+
+    private final Runnable mWarmUpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            warmUpNext();
+        }
+    };
+
+    /**
+     * Recorder calling Callback on the thread of the current Looper
+     *
+     * @param cameraModel Camera model of the recorders
+     * @param configuration Settings applied to every segment, without limits and listeners
+     * @param pathProvider Files of every segment
+     * @param boxProcessor Processor forming Box data of the finished segments
+     * @param finalizationMode PROGRESSIVE or FRAGMENTED
+     * @param maxDurationMillis Length of a segment (0 : no limit)
+     * @param maxFileSize Size of a segment (0 : no limit)
+     */
+    public SegmentedRecorder(@NonNull FactoryBase.CameraModel cameraModel,
+            @NonNull final PreparedMediaRecorder.Configuration configuration,
+            @NonNull PathProvider pathProvider, @NonNull BoxProcessor boxProcessor,
+            @NonNull FinalizationMode finalizationMode, int maxDurationMillis, long maxFileSize) {
+        if (maxDurationMillis <= 0 && maxFileSize <= 0) {
+            throw new IllegalArgumentException("A segment needs a duration or size limit");
+        }
+        mPathProvider = pathProvider;
+        mBoxProcessor = boxProcessor;
+        mFinalizationMode = finalizationMode;
+        mMaxDurationMillis = maxDurationMillis;
+        mMaxFileSize = maxFileSize;
+        Looper looper = Looper.myLooper();
+        mHandler = new Handler((looper != null) ? looper : Looper.getMainLooper());
+        mPreparedRecorder = new PreparedMediaRecorder(cameraModel,
+                new PreparedMediaRecorder.Configuration() {
+                    @Override
+                    public void configure(MediaRecorder mediaRecorder) {
+                        configuration.configure(mediaRecorder);
+                        if (mMaxDurationMillis > 0) {
+                            mediaRecorder.setMaxDuration(mMaxDurationMillis);
+                        }
+                        if (mMaxFileSize > 0) {
+                            mediaRecorder.setMaxFileSize(mMaxFileSize);
+                        }
+                        setListeners(mediaRecorder);
+                    }
+                }, pathProvider);
+    }
+
+    /**
+     * Start the first segment
+     *
+     * @param callback Callback
+     * @throws IOException when the recorder could not be prepared
+     */
+    public void start(@NonNull Callback callback) throws IOException {
+        if (isRecording) {
+            throw new IllegalStateException("Recording already started");
+        }
+        mCallback = callback;
+        mSegmentIndex = 0;
+        mRecording = mPreparedRecorder.start();
+        isRecording = true;
+        onSegmentStarted();
+    }
+
+    /**
+     * Stop recording and finalize the last segment
+     */
+    public void stop() {
+        if (!isRecording) {
+            return;
+        }
+        isRecording = false;
+        mHandler.removeCallbacks(mWarmUpRunnable);
+        PreparedMediaRecorder.Recording recording = mRecording;
+        mRecording = null;
+        finishSegment(recording, mSegmentIndex);
+        mWarmUpExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mPreparedRecorder.cancel();
+            }
+        });
+    }
+
+    /**
+     * Stop recording and the warm-up thread
+     */
+    public void release() {
+        stop();
+        mWarmUpExecutor.shutdown();
+    }
+
+    public boolean isRecording() {
+        return isRecording;
+    }
+
+    /**
+     * @return Number of the segment being recorded
+     */
+    public int getSegmentIndex() {
+        return mSegmentIndex;
+    }
+
+    /**
+     * @return Number of times the next recorder could not be prepared in advance
+     */
+    public int getWarmUpFailureCount() {
+        return mWarmUpFailureCount;
+    }
+
+    /**
+     * @return Recorder statistics, warm starts are the segment changes without a gap for prepare
+     */
+    public PreparedMediaRecorder getPreparedRecorder() {
+        return mPreparedRecorder;
+    }
+
+    private void setListeners(final MediaRecorder mediaRecorder) {
+        mediaRecorder.setOnInfoListener(new MediaRecorder.OnInfoListener() {
+            @Override
+            public void onInfo(android.media.MediaRecorder mr, int what, int extra) {
+                postInfo(mediaRecorder, what);
+            }
+
+            @Override
+            public void onInfo(theta360.media.MediaRecorder mr, int what, int extra) {
+                postInfo(mediaRecorder, what);
+            }
+        });
+        mediaRecorder.setOnErrorListener(new MediaRecorder.OnErrorListener() {
+            @Override
+            public void onError(android.media.MediaRecorder mr, int what, int extra) {
+                postError(mediaRecorder, what, extra);
+            }
+
+            @Override
+            public void onError(theta360.media.MediaRecorder mr, int what, int extra) {
+                postError(mediaRecorder, what, extra);
+            }
+        });
+    }
+
+    private void postInfo(final MediaRecorder mediaRecorder, final int what) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isRecording || mRecording.getMediaRecorder() != mediaRecorder) {
+                    return;
+                }
+                if (what == INFO_MAX_FILESIZE_APPROACHING) {
+                    mHandler.removeCallbacks(mWarmUpRunnable);
+                    warmUpNext();
+                } else if (what == INFO_MAX_DURATION_REACHED
+                        || what == INFO_MAX_FILESIZE_REACHED) {
+                    rollOver();
+                }
+            }
+        });
+    }
+
+    private void postError(final MediaRecorder mediaRecorder, final int what, final int extra) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isRecording || mRecording.getMediaRecorder() != mediaRecorder) {
+                    return;
+                }
+                stop();
+                mCallback.onError(new IOException(
+                        "MediaRecorder error what=" + what + " extra=" + extra));
+            }
+        });
+    }
+
+    private void onSegmentStarted() {
+        // Only the size limit announces itself, the duration limit is anticipated here
+        if (mMaxDurationMillis > 0) {
+            mHandler.postDelayed(mWarmUpRunnable,
+                    Math.max(0, mMaxDurationMillis - WARM_UP_LEAD_MILLIS));
+        }
+        mCallback.onSegmentStarted(mSegmentIndex, mRecording.getOutputPath());
+    }
+
+    private void warmUpNext() {
+        final int index = mSegmentIndex;
+        mWarmUpExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mPreparedRecorder.warmUp();
+                } catch (IOException | RuntimeException e) {
+                    // start() prepares the recorder again at the change
+                    postWarmUpFailed(index, e);
+                }
+            }
+        });
+    }
+
+    private void postWarmUpFailed(final int index, final Exception e) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mWarmUpFailureCount++;
+                if (isRecording) {
+                    mCallback.onWarmUpFailed(index, e);
+                }
+            }
+        });
+    }
+
+    private void rollOver() {
+        mHandler.removeCallbacks(mWarmUpRunnable);
+        // The finished recorder still holds the camera and the encoder, release it first
+        finishSegment(mRecording, mSegmentIndex);
+        mRecording = null;
+        try {
+            mRecording = mPreparedRecorder.start();
+        } catch (IOException | RuntimeException e) {
+            isRecording = false;
+            mCallback.onError(e);
+            return;
+        }
+        mSegmentIndex++;
+        onSegmentStarted();
+    }
+
+    private void finishSegment(PreparedMediaRecorder.Recording recording, final int index) {
+        try {
+            recording.stop();
+        } catch (RuntimeException e) {
+            // The recorder already stopped itself at the limit
+        }
+
+        String outputPath = recording.getOutputPath();
+        final String[] fileUrls = {outputPath, mPathProvider.getWavPath(outputPath)};
+        try {
+            mBoxProcessor.submit(fileUrls[0], fileUrls[1], mFinalizationMode, new Box.Callback() {
+                @Override
+                public void onCompleted(String[] completedFileUrls) {
+                    mCallback.onSegmentCompleted(index, completedFileUrls);
+                }
+
+                @Override
+                public void onError() {
+                    mCallback.onSegmentError(index, fileUrls);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mCallback.onSegmentError(index, fileUrls);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.factory;
+
+/**
+ * SphereRotation
+ * (3x3 rotation matrices in row-major order. Directions are x : right, y : up, z : front,
+ * and equirectangular images have longitude 0 at the center column)
+ */
+final class SphereRotation {
+    static final double[] IDENTITY = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+
+    private SphereRotation() {
+    }
+
+    /**
+     * @param yaw Turn to the right around y in degrees
+     * @param pitch Turn upward around x in degrees
+     * @param roll Turn counterclockwise around z in degrees
+     * @return Ry(yaw) * Rx(pitch) * Rz(roll)
+     */
+    static double[] fromYawPitchRoll(double yaw, double pitch, double roll) {
+        return multiply(multiply(rotateY(yaw), rotateX(pitch)), rotateZ(roll));
+    }
+
+    /**
+     * Rotation from the level world into the image of a tilted camera
+     *
+     * @param pitch Camera pitch in degrees, as in Exif.getSpherePitchRoll()
+     * @param roll Camera roll in degrees, as in Exif.getSpherePitchRoll()
+     */
+    static double[] fromCameraTilt(double pitch, double roll) {
+        return transpose(multiply(rotateX(pitch), rotateZ(roll)));
+    }
+
+    static double[] rotateX(double degrees) {
+        double c = Math.cos(Math.toRadians(degrees));
+        double s = Math.sin(Math.toRadians(degrees));
+        return new double[]{1, 0, 0, 0, c, s, 0, -s, c};
+    }
+
+    static double[] rotateY(double degrees) {
+        double c = Math.cos(Math.toRadians(degrees));
+        double s = Math.sin(Math.toRadians(degrees));
+        return new double[]{c, 0, s, 0, 1, 0, -s, 0, c};
+    }
+
+    static double[] rotateZ(double degrees) {
+        double c = Math.cos(Math.toRadians(degrees));
+        double s = Math.sin(Math.toRadians(degrees));
+        return new double[]{c, -s, 0, s, c, 0, 0, 0, 1};
+    }
+
+    static double[] multiply(double[] a, double[] b) {
+        double[] m = new double[9];
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 3; col++) {
+                m[row * 3 + col] = a[row * 3] * b[col] + a[row * 3 + 1] * b[3 + col]
+                        + a[row * 3 + 2] * b[6 + col];
+            }
+        }
+        return m;
+    }
+
+    static double[] transpose(double[] a) {
+        return new double[]{a[0], a[3], a[6], a[1], a[4], a[7], a[2], a[5], a[8]};
+    }
+
+    /**
+     * Map a direction to equirectangular pixel coordinates in 24.8 fixed point
+     *
+     * @param x Direction x
+     * @param y Direction y
+     * @param z Direction z
+     * @param width Image width
+     * @param height Image height
+     * @param lut Output
+     * @param index Index in lut of {x, y}
+     */
+    static void toEquirect(double x, double y, double z, int width, int height, int[] lut,
+            int index) {
+        double longitude = Math.atan2(x, z);
+        double latitude = Math.atan2(y, Math.sqrt(x * x + z * z));
+        // Pixel centers are at +0.5, the LUT holds the top-left sample of the 2x2 used
+        double u = (longitude / (2 * Math.PI) + 0.5) * width - 0.5;
+        double v = (0.5 - latitude / Math.PI) * height - 0.5;
+        if (u < 0) {
+            u += width;
+        }
+        v = Math.max(0, Math.min(height - 1, v));
+        lut[index] = (int) Math.round(u * 256) % (width << 8);
+        lut[index + 1] = (int) Math.round(v * 256);
+    }
+
+    /**
+     * Bilinear sample of an ARGB equirectangular image, wrapping horizontally
+     *
+     * @param src Image
+     * @param width Image width
+     * @param height Image height
+     * @param u x in 24.8 fixed point
+     * @param v y in 24.8 fixed point
+     * @return ARGB
+     */
+    static int sample(int[] src, int width, int height, int u, int v) {
+        int x0 = u >> 8;
+        int y0 = v >> 8;
+        int fx = u & 0xff;
+        int fy = v & 0xff;
+        int x1 = (x0 + 1 == width) ? 0 : x0 + 1;
+        int y1 = (y0 + 1 == height) ? y0 : y0 + 1;
+        int p00 = src[y0 * width + x0];
+        int p01 = src[y0 * width + x1];
+        int p10 = src[y1 * width + x0];
+        int p11 = src[y1 * width + x1];
+
+        int argb = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int top = ((p00 >>> shift) & 0xff) * (256 - fx) + ((p01 >>> shift) & 0xff) * fx;
+            int bottom = ((p10 >>> shift) & 0xff) * (256 - fx) + ((p11 >>> shift) & 0xff) * fx;
+            int value = (top * (256 - fy) + bottom * fy + 32768) >> 16;
+            argb |= value << shift;
+        }
+        return argb;
+    }
+}
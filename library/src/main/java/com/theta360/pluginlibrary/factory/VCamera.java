@@ -28,8 +28,20 @@ import java.util.List;
 
 public class VCamera extends Camera {
     private android.hardware.Camera mCamera;
-    private android.hardware.Camera.Parameters mParameters;
+    private final ParametersCache<android.hardware.Camera.Parameters> mParametersCache =
+            new ParametersCache<>(new ParametersCache.Source<android.hardware.Camera.Parameters>() {
+                @Override
+                public android.hardware.Camera.Parameters fetch() {
+                    return mCamera.getParameters();
+                }
+
+                @Override
+                public void commit(android.hardware.Camera.Parameters parameters) {
+                    mCamera.setParameters(parameters);
+                }
+            });
     private android.hardware.Camera.CameraInfo mCameraInfo;
+    private CameraCapabilities mCapabilities;
     private Parameters vParameters;
     private ErrorCallback eCallback;
     private ShutterCallback sCallback;
@@ -46,12 +58,10 @@ public class VCamera extends Camera {
      */
     private List<Size> conversionCameraSize (List<android.hardware.Camera.Size> list) {
         List<Size> returnList = new ArrayList<>();
-        FactoryBase factory = new FactoryBase();
-        Camera fCamera = factory.abstractCamera(FactoryBase.CameraModel.VCamera);
         android.hardware.Camera.Size vCameraSize;
         for (int i = 1; i < list.size(); i++) {
             vCameraSize = list.get(i);
-            Size size = fCamera.new Size(0, 0);
+            Size size = new Size(0, 0);
             size.height = vCameraSize.height;
             size.width = vCameraSize.width;
             returnList.add(size);
@@ -62,143 +72,138 @@ public class VCamera extends Camera {
     public class VParameters extends Parameters {
         @Override
         public String get(String key) {
-            return mParameters.get(key);
+            return mParametersCache.get().get(key);
         }
 
         @Override
         public void set(String key, String value) {
-            if(mParameters == null){
-                mParameters = mCamera.getParameters();
-            }
-            mParameters.set(key, value);
+            mParametersCache.edit(key).set(key, value);
         }
 
         @Override
         public void set(String key, int value) {
-            if(mParameters == null){
-                mParameters = mCamera.getParameters();
-            }
-            mParameters.set(key, value);
+            mParametersCache.edit(key).set(key, value);
         }
 
         @Override
         public void setPreviewSize(int width, int height) {
-            mParameters.setPreviewSize(width, height);
+            mParametersCache.edit(KEY_PREVIEW_SIZE).setPreviewSize(width, height);
         }
 
         @Override
         public int getPictureSizeWidth() {
-            return mParameters.getPictureSize().width;
+            return mParametersCache.get().getPictureSize().width;
         }
 
         @Override
         public int getPictureSizeHeight() {
-            return mParameters.getPictureSize().height;
+            return mParametersCache.get().getPictureSize().height;
         }
 
         @Override
         public void setPictureSize(int width, int height) {
-            mParameters.setPictureSize(width, height);
+            mParametersCache.edit(KEY_PICTURE_SIZE).setPictureSize(width, height);
         }
 
         @Override
         public void setJpegThumbnailSize(int width, int height) {
-            mParameters.setJpegThumbnailSize(width, height);
+            mParametersCache.edit(KEY_JPEG_THUMBNAIL_HEIGHT);
+            mParametersCache.edit(KEY_JPEG_THUMBNAIL_WIDTH).setJpegThumbnailSize(width, height);
         }
 
         @Override
         public void setExposureCompensation(int value) {
-            mParameters.setExposureCompensation(value);
+            mParametersCache.edit(KEY_EXPOSURE_COMPENSATION).setExposureCompensation(value);
         }
         @Override
         public int getExposureCompensation() {
-            return mParameters.getExposureCompensation();
+            return mParametersCache.get().getExposureCompensation();
         }
 
         @Override
         public int getMaxExposureCompensation() {
-            return mParameters.getMaxExposureCompensation();
+            return getCapabilities().getMaxExposureCompensation();
         }
 
         @Override
         public int getMinExposureCompensation() {
-            return mParameters.getMinExposureCompensation();
+            return getCapabilities().getMinExposureCompensation();
         }
 
         @Override
         public int getMaxZoom() {
-            return mParameters.getMaxZoom();
+            return getCapabilities().getMaxZoom();
         }
 
         @Override
         public void setZoom(int var1) {
-            mParameters.setZoom(var1);
+            mParametersCache.edit(KEY_ZOOM).setZoom(var1);
         }
 
         @Override
         public int getZoom() {
-            return mParameters.getZoom();
+            return mParametersCache.get().getZoom();
         }
 
         @Override
         public List<Size> getSupportedPreviewSizes() {
-            List<android.hardware.Camera.Size> list = mParameters.getSupportedPreviewSizes();
-            return conversionCameraSize(list);
+            return getCapabilities().getPreviewSizes();
         }
 
         @Override
         public List<int[]> getSupportedPreviewFpsRange() {
-            return mParameters.getSupportedPreviewFpsRange();
+            return getCapabilities().getPreviewFpsRanges();
         }
 
         @Override
         public void setPreviewFormat(int var1) {
-            mParameters.setPreviewFormat(var1);
+            mParametersCache.edit(KEY_PREVIEW_FORMAT).setPreviewFormat(var1);
         }
 
         @Override
         public List<Integer> getSupportedPreviewFormats() {
-            return mParameters.getSupportedPreviewFormats();
+            return getCapabilities().getPreviewFormats();
         }
 
         @Override
         public void setPreviewFrameRate(int value) {
-            mParameters.setPreviewFrameRate(value);
+            mParametersCache.edit(KEY_PREVIEW_FRAME_RATE).setPreviewFrameRate(value);
         }
 
         @Override
         public void setPreviewFpsRange(int min, int max) {
-            mParameters.setPreviewFpsRange(min, max);
+            mParametersCache.edit(KEY_PREVIEW_FPS_RANGE).setPreviewFpsRange(min, max);
         }
 
         @Override
         public List<String> getSupportedFlashModes() {
-            return mParameters.getSupportedFlashModes();
+            List<String> flashModes = getCapabilities().getFlashModes();
+            return flashModes.isEmpty() ? null : flashModes;
         }
 
         @Override
         public void setFlashMode(String var1) {
-            mParameters.setFlashMode(var1);
+            mParametersCache.edit(KEY_FLASH_MODE).setFlashMode(var1);
         }
 
         @Override
         public void setRecordingHint(boolean hint) {
-            mParameters.setRecordingHint(hint);
+            mParametersCache.edit(KEY_RECORDING_HINT).setRecordingHint(hint);
         }
 
         @Override
         public boolean isVideoStabilizationSupported() {
-            return mParameters.isVideoStabilizationSupported();
+            return getCapabilities().isVideoStabilizationSupported();
         }
 
         @Override
         public void setVideoStabilization(boolean toggle) {
-            mParameters.setVideoStabilization(toggle);
+            mParametersCache.edit(KEY_VIDEO_STABILIZATION).setVideoStabilization(toggle);
         }
 
         @Override
         public boolean isZoomSupported() {
-            return mParameters.isZoomSupported();
+            return getCapabilities().isZoomSupported();
         }
     }
 
@@ -311,6 +316,8 @@ public class VCamera extends Camera {
 
     @Override
     public void initializationCamera() {
+        mParametersCache.invalidate();
+        mCapabilities = null;
         if (mCamera != null) {
             mCamera = null;
         }
@@ -318,6 +325,8 @@ public class VCamera extends Camera {
 
     @Override
     public void reconnect() throws IOException {
+        mParametersCache.invalidate();
+        mCapabilities = null;
         mCamera.reconnect();
     }
 
@@ -357,10 +366,40 @@ public class VCamera extends Camera {
         if(vParameters == null) {
             vParameters = new VParameters();
         }
-        mParameters = mCamera.getParameters();
+        mParametersCache.get();
         return vParameters;
     }
 
+    @Override
+    public void invalidateParameters() {
+        mParametersCache.invalidate();
+    }
+
+    @Override
+    public ParametersCache<?> getParametersCache() {
+        return mParametersCache;
+    }
+
+    @Override
+    public CameraCapabilities getCapabilities() {
+        if (mCapabilities == null) {
+            android.hardware.Camera.Parameters parameters = mParametersCache.get();
+            mCapabilities = new CameraCapabilities(
+                    conversionCameraSize(parameters.getSupportedPreviewSizes()),
+                    parameters.getSupportedPreviewFpsRange(),
+                    parameters.getSupportedPreviewFormats(),
+                    parameters.getSupportedFlashModes(),
+                    parameters.get(Parameters.RIC_SHOOTING_MODE
+                            + Parameters.SUPPORTED_VALUES_SUFFIX),
+                    parameters.isZoomSupported(),
+                    parameters.getMaxZoom(),
+                    parameters.getMinExposureCompensation(),
+                    parameters.getMaxExposureCompensation(),
+                    parameters.isVideoStabilizationSupported());
+        }
+        return mCapabilities;
+    }
+
     @Override
     public CameraInfo getNewCameraInfo() {
         CameraInfo cameraInfo = new VCameraInfo();
@@ -370,7 +409,7 @@ public class VCamera extends Camera {
 
     @Override
     public void setParameters() {
-        mCamera.setParameters(mParameters);
+        mParametersCache.commit();
     }
 
     @Override
@@ -448,6 +487,8 @@ public class VCamera extends Camera {
 
     @Override
     public void release() {
+        mParametersCache.invalidate();
+        mCapabilities = null;
         mCamera.release();
     }
 
@@ -514,6 +555,8 @@ public class VCamera extends Camera {
     }
 
     public void close() {
+        mParametersCache.invalidate();
+        mCapabilities = null;
         if(mCamera != null) {
             mCamera.stopPreview();
             mCamera.setPreviewCallback(null);
@@ -18,17 +18,22 @@ package com.theta360.pluginlibrary.factory;
 
 import android.content.Context;
 import android.media.CamcorderProfile;
+import android.util.Log;
 import android.view.Surface;
 
 import com.theta360.pluginlibrary.ThetaModelException;
 
 import java.io.IOException;
+import java.util.Set;
 
 public class VMediaRecorder extends MediaRecorder {
+    private static final String TAG = "VMediaRecorder";
+
     private android.hardware.Camera mCamera;
     private android.media.MediaRecorder mMediaRecorder;
-    private android.media.MediaRecorder.OnInfoListener infoListener;
-    private android.media.MediaRecorder.OnErrorListener errorListener;
+    private Camera mFactoryCamera;
+    private OnInfoListener infoListener;
+    private OnErrorListener errorListener;
 
     private android.media.MediaRecorder.OnInfoListener onInfoListener = new android.media.MediaRecorder.OnInfoListener() {
         @Override
@@ -53,6 +58,10 @@ public class VMediaRecorder extends MediaRecorder {
     @Override
     public void setCamera(Camera camera) {
         newMediaRecorder();
+        mFactoryCamera = camera;
+        // The recorder reconfigures the camera natively, push pending edits before it does
+        commitCameraParameters();
+        camera.invalidateParameters();
         mCamera = camera.getVCamera();
         mMediaRecorder.setCamera(mCamera);
     }
@@ -196,12 +205,14 @@ public class VMediaRecorder extends MediaRecorder {
 
     @Override
     public void setOnErrorListener(OnErrorListener listener) {
-        mMediaRecorder.setOnErrorListener(errorListener);
+        errorListener = listener;
+        mMediaRecorder.setOnErrorListener((listener != null) ? onErrorListener : null);
     }
 
     @Override
     public void setOnInfoListener(OnInfoListener listener) {
-        mMediaRecorder.setOnInfoListener(infoListener);
+        infoListener = listener;
+        mMediaRecorder.setOnInfoListener((listener != null) ? onInfoListener : null);
     }
 
     @Override
@@ -216,7 +227,12 @@ public class VMediaRecorder extends MediaRecorder {
 
     @Override
     public void prepare() throws IOException {
-        mMediaRecorder.prepare();
+        commitCameraParameters();
+        try {
+            mMediaRecorder.prepare();
+        } finally {
+            invalidateCameraParameters();
+        }
     }
 
     @Override
@@ -226,7 +242,12 @@ public class VMediaRecorder extends MediaRecorder {
 
     @Override
     public void stop() {
-        mMediaRecorder.stop();
+        commitCameraParameters();
+        try {
+            mMediaRecorder.stop();
+        } finally {
+            invalidateCameraParameters();
+        }
     }
 
     @Override
@@ -243,4 +264,25 @@ public class VMediaRecorder extends MediaRecorder {
     public void setAudioChannels(int channels) {
         mMediaRecorder.setAudioChannels(channels);
     }
+
+    private void commitCameraParameters() {
+        if (mFactoryCamera == null) {
+            return;
+        }
+        Set<String> dirtyKeys = mFactoryCamera.getParametersCache().getDirtyKeys();
+        if (dirtyKeys.isEmpty()) {
+            return;
+        }
+        try {
+            mFactoryCamera.setParameters();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Uncommitted camera parameters " + dirtyKeys + " were rejected", e);
+        }
+    }
+
+    private void invalidateCameraParameters() {
+        if (mFactoryCamera != null) {
+            mFactoryCamera.invalidateParameters();
+        }
+    }
 }
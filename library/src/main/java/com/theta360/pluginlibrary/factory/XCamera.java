@@ -12,8 +12,20 @@ import java.util.List;
 
 public class XCamera extends Camera {
     private theta360.hardware.Camera mCamera;
-    private theta360.hardware.Camera.Parameters mParameters;
+    private final ParametersCache<theta360.hardware.Camera.Parameters> mParametersCache =
+            new ParametersCache<>(new ParametersCache.Source<theta360.hardware.Camera.Parameters>() {
+                @Override
+                public theta360.hardware.Camera.Parameters fetch() {
+                    return mCamera.getParameters();
+                }
+
+                @Override
+                public void commit(theta360.hardware.Camera.Parameters parameters) {
+                    mCamera.setParameters(parameters);
+                }
+            });
     private theta360.hardware.Camera.CameraInfo mCameraInfo;
+    private CameraCapabilities mCapabilities;
     private Parameters xParameters;
     private ErrorCallback eCallback;
     private ShutterCallback sCallback;
@@ -29,12 +41,10 @@ public class XCamera extends Camera {
      */
     private List<Size> conversionCameraSize (List<theta360.hardware.Camera.Size> list) {
         List<Size> returnList = new ArrayList<>();
-        FactoryBase factory = new FactoryBase();
-        Camera fCamera = factory.abstractCamera(FactoryBase.CameraModel.XCamera);
         theta360.hardware.Camera.Size xCameraSize;
         for (int i = 1; i < list.size(); i++) {
             xCameraSize = list.get(i);
-            Size size = fCamera.new Size(0, 0);
+            Size size = new Size(0, 0);
             size.height = xCameraSize.height;
             size.width = xCameraSize.width;
             returnList.add(size);
@@ -46,138 +56,139 @@ public class XCamera extends Camera {
 
         @Override
         public String get(String key) {
-            return mParameters.get(key);
+            return mParametersCache.get().get(key);
         }
 
         @Override
         public void set(String key, String value) {
-            mParameters.set(key, value);
+            mParametersCache.edit(key).set(key, value);
         }
 
         @Override
         public void set(String key, int value) {
-            mParameters.set(key, value);
+            mParametersCache.edit(key).set(key, value);
         }
 
         @Override
         public void setPreviewSize(int width, int height) {
-            mParameters.setPreviewSize(width, height);
+            mParametersCache.edit(KEY_PREVIEW_SIZE).setPreviewSize(width, height);
         }
 
         @Override
         public void setPictureSize(int width, int height) {
-            mParameters.setPictureSize(width, height);
+            mParametersCache.edit(KEY_PICTURE_SIZE).setPictureSize(width, height);
         }
 
         @Override
         public int getPictureSizeWidth() {
-            return mParameters.getPictureSize().width;
+            return mParametersCache.get().getPictureSize().width;
         }
 
         @Override
         public int getPictureSizeHeight() {
-            return mParameters.getPictureSize().height;
+            return mParametersCache.get().getPictureSize().height;
         }
 
         @Override
         public void setJpegThumbnailSize(int width, int height) {
-            mParameters.setJpegThumbnailSize(width, height);
+            mParametersCache.edit(KEY_JPEG_THUMBNAIL_HEIGHT);
+            mParametersCache.edit(KEY_JPEG_THUMBNAIL_WIDTH).setJpegThumbnailSize(width, height);
         }
 
         @Override
         public void setExposureCompensation(int value) {
-            mParameters.setExposureCompensation(value);
+            mParametersCache.edit(KEY_EXPOSURE_COMPENSATION).setExposureCompensation(value);
         }
 
         @Override
         public int getExposureCompensation() {
-            return mParameters.getExposureCompensation();
+            return mParametersCache.get().getExposureCompensation();
         }
 
         @Override
         public int getMaxExposureCompensation() {
-            return mParameters.getMaxExposureCompensation();
+            return getCapabilities().getMaxExposureCompensation();
         }
 
         @Override
         public int getMinExposureCompensation() {
-            return mParameters.getMinExposureCompensation();
+            return getCapabilities().getMinExposureCompensation();
         }
 
         @Override
         public int getMaxZoom() {
-            return mParameters.getMaxZoom();
+            return getCapabilities().getMaxZoom();
         }
 
         @Override
         public void setZoom(int var1) {
-            mParameters.setZoom(var1);
+            mParametersCache.edit(KEY_ZOOM).setZoom(var1);
         }
 
         @Override
         public int getZoom() {
-            return mParameters.getZoom();
+            return mParametersCache.get().getZoom();
         }
 
         @Override
         public List<Size> getSupportedPreviewSizes() {
-            List<theta360.hardware.Camera.Size> list = mParameters.getSupportedPreviewSizes();
-            return conversionCameraSize(list);
+            return getCapabilities().getPreviewSizes();
         }
 
         @Override
         public List<int[]> getSupportedPreviewFpsRange() {
-            return mParameters.getSupportedPreviewFpsRange();
+            return getCapabilities().getPreviewFpsRanges();
         }
 
         @Override
         public void setPreviewFormat(int var1) {
-            mParameters.setPreviewFormat(var1);
+            mParametersCache.edit(KEY_PREVIEW_FORMAT).setPreviewFormat(var1);
         }
 
         @Override
         public List<Integer> getSupportedPreviewFormats() {
-            return mParameters.getSupportedPreviewFormats();
+            return getCapabilities().getPreviewFormats();
         }
 
         @Override
         public void setPreviewFrameRate(int value) {
-            mParameters.setPreviewFrameRate(value);
+            mParametersCache.edit(KEY_PREVIEW_FRAME_RATE).setPreviewFrameRate(value);
         }
 
         @Override
         public void setPreviewFpsRange(int min, int max) {
-            mParameters.setPreviewFpsRange(min, max);
+            mParametersCache.edit(KEY_PREVIEW_FPS_RANGE).setPreviewFpsRange(min, max);
         }
 
         @Override
         public List<String> getSupportedFlashModes() {
-            return mParameters.getSupportedFlashModes();
+            List<String> flashModes = getCapabilities().getFlashModes();
+            return flashModes.isEmpty() ? null : flashModes;
         }
 
         @Override
         public void setFlashMode(String var1) {
-            mParameters.setFlashMode(var1);
+            mParametersCache.edit(KEY_FLASH_MODE).setFlashMode(var1);
         }
 
         @Override
         public void setRecordingHint(boolean hint) {
-            mParameters.setRecordingHint(hint);
+            mParametersCache.edit(KEY_RECORDING_HINT).setRecordingHint(hint);
         }
 
         @Override
         public boolean isVideoStabilizationSupported() {
-            return mParameters.isVideoStabilizationSupported();
+            return getCapabilities().isVideoStabilizationSupported();
         }
 
         @Override
         public void setVideoStabilization(boolean toggle) {
-            mParameters.setVideoStabilization(toggle);
+            mParametersCache.edit(KEY_VIDEO_STABILIZATION).setVideoStabilization(toggle);
         }
 
         @Override
         public boolean isZoomSupported() {
-            return mParameters.isZoomSupported();
+            return getCapabilities().isZoomSupported();
         }
     }
 
@@ -301,6 +312,8 @@ public class XCamera extends Camera {
 
     @Override
     public void initializationCamera() {
+        mParametersCache.invalidate();
+        mCapabilities = null;
         if (mCamera != null) {
             mCamera = null;
         }
@@ -308,6 +321,8 @@ public class XCamera extends Camera {
 
     @Override
     public void reconnect() throws IOException {
+        mParametersCache.invalidate();
+        mCapabilities = null;
         mCamera.reconnect();
     }
 
@@ -347,10 +362,40 @@ public class XCamera extends Camera {
         if(xParameters == null) {
             xParameters = new XParameters();
         }
-        mParameters = mCamera.getParameters();
+        mParametersCache.get();
         return xParameters;
     }
 
+    @Override
+    public void invalidateParameters() {
+        mParametersCache.invalidate();
+    }
+
+    @Override
+    public ParametersCache<?> getParametersCache() {
+        return mParametersCache;
+    }
+
+    @Override
+    public CameraCapabilities getCapabilities() {
+        if (mCapabilities == null) {
+            theta360.hardware.Camera.Parameters parameters = mParametersCache.get();
+            mCapabilities = new CameraCapabilities(
+                    conversionCameraSize(parameters.getSupportedPreviewSizes()),
+                    parameters.getSupportedPreviewFpsRange(),
+                    parameters.getSupportedPreviewFormats(),
+                    parameters.getSupportedFlashModes(),
+                    parameters.get(Parameters.RIC_SHOOTING_MODE
+                            + Parameters.SUPPORTED_VALUES_SUFFIX),
+                    parameters.isZoomSupported(),
+                    parameters.getMaxZoom(),
+                    parameters.getMinExposureCompensation(),
+                    parameters.getMaxExposureCompensation(),
+                    parameters.isVideoStabilizationSupported());
+        }
+        return mCapabilities;
+    }
+
     @Override
     public CameraInfo getNewCameraInfo() {
         CameraInfo cameraInfo = new XCameraInfo();
@@ -360,10 +405,7 @@ public class XCamera extends Camera {
 
     @Override
     public void setParameters() {
-        if (mParameters == null) {
-            mParameters = mCamera.getParameters();
-        }
-        mCamera.setParameters(mParameters);
+        mParametersCache.commit();
     }
 
     @Override
@@ -414,6 +456,8 @@ public class XCamera extends Camera {
 
     @Override
     public void release() {
+        mParametersCache.invalidate();
+        mCapabilities = null;
         mCamera.release();
     }
 
@@ -479,6 +523,8 @@ public class XCamera extends Camera {
     }
 
     public void close() {
+        mParametersCache.invalidate();
+        mCapabilities = null;
         if(mCamera != null) {
             mCamera.stopPreview();
             mCamera.setPreviewCallback(null);
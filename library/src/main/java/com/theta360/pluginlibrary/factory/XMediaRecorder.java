@@ -2,17 +2,22 @@ package com.theta360.pluginlibrary.factory;
 
 import android.content.Context;
 import android.media.CamcorderProfile;
+import android.util.Log;
 import android.view.Surface;
 
 import com.theta360.pluginlibrary.ThetaModelException;
 
 import java.io.IOException;
+import java.util.Set;
 
 public class XMediaRecorder extends MediaRecorder {
+    private static final String TAG = "XMediaRecorder";
+
     private theta360.hardware.Camera mCamera;
     private theta360.media.MediaRecorder mMediaRecorder;
-    private theta360.media.MediaRecorder.OnInfoListener infoListener;
-    private theta360.media.MediaRecorder.OnErrorListener errorListener;
+    private Camera mFactoryCamera;
+    private OnInfoListener infoListener;
+    private OnErrorListener errorListener;
 
     private theta360.media.MediaRecorder.OnInfoListener onInfoListener = new theta360.media.MediaRecorder.OnInfoListener() {
         @Override
@@ -37,6 +42,10 @@ public class XMediaRecorder extends MediaRecorder {
     @Override
     public void setCamera(Camera camera) {
         newMediaRecorder();
+        mFactoryCamera = camera;
+        // The recorder reconfigures the camera natively, push pending edits before it does
+        commitCameraParameters();
+        camera.invalidateParameters();
         mCamera = camera.getXCamera();
         mMediaRecorder.setCamera(mCamera);
     }
@@ -152,12 +161,14 @@ public class XMediaRecorder extends MediaRecorder {
 
     @Override
     public void setOnErrorListener(OnErrorListener listener) {
-        mMediaRecorder.setOnErrorListener(errorListener);
+        errorListener = listener;
+        mMediaRecorder.setOnErrorListener((listener != null) ? onErrorListener : null);
     }
 
     @Override
     public void setOnInfoListener(OnInfoListener listener) {
-        mMediaRecorder.setOnInfoListener(infoListener);
+        infoListener = listener;
+        mMediaRecorder.setOnInfoListener((listener != null) ? onInfoListener : null);
     }
 
     @Override
@@ -167,7 +178,12 @@ public class XMediaRecorder extends MediaRecorder {
 
     @Override
     public void prepare() throws IOException {
-        mMediaRecorder.prepare();
+        commitCameraParameters();
+        try {
+            mMediaRecorder.prepare();
+        } finally {
+            invalidateCameraParameters();
+        }
     }
 
     @Override
@@ -177,7 +193,12 @@ public class XMediaRecorder extends MediaRecorder {
 
     @Override
     public void stop() {
-        mMediaRecorder.stop();
+        commitCameraParameters();
+        try {
+            mMediaRecorder.stop();
+        } finally {
+            invalidateCameraParameters();
+        }
     }
 
     @Override
@@ -194,4 +215,25 @@ public class XMediaRecorder extends MediaRecorder {
     public void setAudioChannels(int channels) {
         mMediaRecorder.setAudioChannels(channels);
     }
+
+    private void commitCameraParameters() {
+        if (mFactoryCamera == null) {
+            return;
+        }
+        Set<String> dirtyKeys = mFactoryCamera.getParametersCache().getDirtyKeys();
+        if (dirtyKeys.isEmpty()) {
+            return;
+        }
+        try {
+            mFactoryCamera.setParameters();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Uncommitted camera parameters " + dirtyKeys + " were rejected", e);
+        }
+    }
+
+    private void invalidateCameraParameters() {
+        if (mFactoryCamera != null) {
+            mFactoryCamera.invalidateParameters();
+        }
+    }
 }
@@ -0,0 +1,313 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.factory;
+
+import androidx.annotation.NonNull;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * YuvConverter
+ * (Converts NV21 (YUV420SP) preview frames into arrays or buffers given by the caller. The rows
+ * are split into stripes processed in parallel on a ForkJoinPool, no frame sized memory is
+ * allocated)
+ */
+public class YuvConverter {
+    public static final int DEFAULT_MIN_ROWS_PER_TASK = 32;
+
+    private static final ThreadLocal<int[]> sRowBuffer = new ThreadLocal<>();
+
+    /**
+     * RowTask
+     * (Rows [fromRow, toRow) of one stripe, called from pool threads)
+     */
+    interface RowTask {
+        void run(int fromRow, int toRow);
+    }
+
+    private static class StripeAction extends RecursiveAction {
+        private final RowTask mRowTask;
+        private final int mFromRow;
+        private final int mToRow;
+        private final int mMinRows;
+
+        private StripeAction(RowTask rowTask, int fromRow, int toRow, int minRows) {
+            mRowTask = rowTask;
+            mFromRow = fromRow;
+            mToRow = toRow;
+            mMinRows = minRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (mToRow - mFromRow <= mMinRows) {
+                mRowTask.run(mFromRow, mToRow);
+                return;
+            }
+            int midRow = (mFromRow + mToRow) >>> 1;
+            invokeAll(new StripeAction(mRowTask, mFromRow, midRow, mMinRows),
+                    new StripeAction(mRowTask, midRow, mToRow, mMinRows));
+        }
+    }
+
+    private final ForkJoinPool mPool;
+    private final int mMinRowsPerTask;
+
+    /**
+     * Converter running on the common ForkJoinPool
+     */
+    public YuvConverter() {
+        this(ForkJoinPool.commonPool(), DEFAULT_MIN_ROWS_PER_TASK);
+    }
+
+    /**
+     * @param pool Pool running the stripes (null : convert on the calling thread)
+     * @param minRowsPerTask Rows below which a stripe is not split further
+     */
+    public YuvConverter(ForkJoinPool pool, int minRowsPerTask) {
+        if (minRowsPerTask < 1) {
+            throw new IllegalArgumentException("minRowsPerTask must be 1 or more");
+        }
+        mPool = pool;
+        mMinRowsPerTask = minRowsPerTask;
+    }
+
+    /**
+     * @return Bytes of an NV21 frame
+     */
+    public static int getNv21Size(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    /**
+     * Convert to ARGB_8888 pixels (BT.601 video range)
+     *
+     * @param nv21 NV21 frame
+     * @param width Frame width (even)
+     * @param height Frame height (even)
+     * @param argb Output of width x height pixels
+     */
+    public void nv21ToArgb(@NonNull final byte[] nv21, final int width, int height,
+            @NonNull final int[] argb) {
+        checkFrame(nv21, width, height);
+        checkLength(argb.length, width * height);
+        run(height, new RowTask() {
+            @Override
+            public void run(int fromRow, int toRow) {
+                for (int row = fromRow; row < toRow; row++) {
+                    convertRow(nv21, width, height, row, argb, row * width);
+                }
+            }
+        });
+    }
+
+    /**
+     * Convert to ARGB_8888 pixels (BT.601 video range) into a buffer, e.g. a direct buffer
+     * copied to a Bitmap with copyPixelsFromBuffer
+     *
+     * @param nv21 NV21 frame
+     * @param width Frame width (even)
+     * @param height Frame height (even)
+     * @param argb Output of width x height pixels from index 0, the position is not changed
+     */
+    public void nv21ToArgb(@NonNull final byte[] nv21, final int width, final int height,
+            @NonNull final IntBuffer argb) {
+        checkFrame(nv21, width, height);
+        checkLength(argb.capacity(), width * height);
+        if (argb.hasArray()) {
+            final int[] array = argb.array();
+            final int arrayOffset = argb.arrayOffset();
+            run(height, new RowTask() {
+                @Override
+                public void run(int fromRow, int toRow) {
+                    for (int row = fromRow; row < toRow; row++) {
+                        convertRow(nv21, width, height, row, array, arrayOffset + row * width);
+                    }
+                }
+            });
+            return;
+        }
+
+        run(height, new RowTask() {
+            @Override
+            public void run(int fromRow, int toRow) {
+                int[] rowPixels = getRowBuffer(width);
+                IntBuffer out = argb.duplicate();
+                out.clear();
+                out.position(fromRow * width);
+                for (int row = fromRow; row < toRow; row++) {
+                    convertRow(nv21, width, height, row, rowPixels, 0);
+                    out.put(rowPixels, 0, width);
+                }
+            }
+        });
+    }
+
+    /**
+     * Copy the Y plane (grayscale)
+     *
+     * @param nv21 NV21 frame
+     * @param width Frame width (even)
+     * @param height Frame height (even)
+     * @param luma Output of width x height bytes
+     */
+    public void extractLuma(@NonNull byte[] nv21, int width, int height, @NonNull byte[] luma) {
+        checkFrame(nv21, width, height);
+        checkLength(luma.length, width * height);
+        // A single copy is bound by memory bandwidth, splitting does not help
+        System.arraycopy(nv21, 0, luma, 0, width * height);
+    }
+
+    /**
+     * Copy the Y plane (grayscale) into a buffer, the position is not changed
+     *
+     * @param nv21 NV21 frame
+     * @param width Frame width (even)
+     * @param height Frame height (even)
+     * @param luma Output of width x height bytes from index 0
+     */
+    public void extractLuma(@NonNull byte[] nv21, int width, int height,
+            @NonNull ByteBuffer luma) {
+        checkFrame(nv21, width, height);
+        checkLength(luma.capacity(), width * height);
+        ByteBuffer out = luma.duplicate();
+        out.clear();
+        out.put(nv21, 0, width * height);
+    }
+
+    /**
+     * Average the Y plane over factor x factor blocks. Rows and columns not filling a block are
+     * ignored
+     *
+     * @param nv21 NV21 frame
+     * @param width Frame width (even)
+     * @param height Frame height (even)
+     * @param factor Reduction factor
+     * @param luma Output of (width / factor) x (height / factor) bytes
+     */
+    public void downsampleLuma(@NonNull final byte[] nv21, final int width, int height,
+            final int factor, @NonNull final byte[] luma) {
+        checkFrame(nv21, width, height);
+        if (factor < 1) {
+            throw new IllegalArgumentException("factor must be 1 or more");
+        }
+        final int outWidth = width / factor;
+        int outHeight = height / factor;
+        checkLength(luma.length, outWidth * outHeight);
+        final int area = factor * factor;
+        run(outHeight, new RowTask() {
+            @Override
+            public void run(int fromRow, int toRow) {
+                int[] sums = getRowBuffer(outWidth);
+                for (int outRow = fromRow; outRow < toRow; outRow++) {
+                    Arrays.fill(sums, 0, outWidth, 0);
+                    int rowOffset = outRow * factor * width;
+                    for (int y = 0; y < factor; y++, rowOffset += width) {
+                        int index = rowOffset;
+                        for (int outX = 0; outX < outWidth; outX++) {
+                            int sum = 0;
+                            for (int x = 0; x < factor; x++) {
+                                sum += nv21[index++] & 0xff;
+                            }
+                            sums[outX] += sum;
+                        }
+                    }
+                    int outIndex = outRow * outWidth;
+                    for (int outX = 0; outX < outWidth; outX++) {
+                        luma[outIndex + outX] = (byte) ((sums[outX] + area / 2) / area);
+                    }
+                }
+            }
+        });
+    }
+
+    private void run(int rows, RowTask rowTask) {
+        runStripes(mPool, rows, mMinRowsPerTask, rowTask);
+    }
+
+    /**
+     * Run rows [0, rows) split into stripes on the pool
+     *
+     * @param pool Pool (null : run on the calling thread)
+     * @param rows Number of rows
+     * @param minRows Rows below which a stripe is not split further
+     * @param rowTask Task of one stripe
+     */
+    static void runStripes(ForkJoinPool pool, int rows, int minRows, RowTask rowTask) {
+        if (pool == null || pool.getParallelism() <= 1 || rows <= minRows) {
+            rowTask.run(0, rows);
+            return;
+        }
+        pool.invoke(new StripeAction(rowTask, 0, rows, minRows));
+    }
+
+    private static void convertRow(byte[] nv21, int width, int height, int row, int[] out,
+            int outOffset) {
+        int yIndex = row * width;
+        int uvIndex = width * height + (row >> 1) * width;
+        int v = 0;
+        int u = 0;
+        for (int x = 0; x < width; x++) {
+            if ((x & 1) == 0) {
+                v = (nv21[uvIndex++] & 0xff) - 128;
+                u = (nv21[uvIndex++] & 0xff) - 128;
+            }
+            int y = (nv21[yIndex++] & 0xff) - 16;
+            if (y < 0) {
+                y = 0;
+            }
+            int c = 1192 * y;
+            int r = clamp(c + 1634 * v);
+            int g = clamp(c - 833 * v - 400 * u);
+            int b = clamp(c + 2066 * u);
+            out[outOffset + x] = 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00)
+                    | ((b >> 10) & 0xff);
+        }
+    }
+
+    private static int clamp(int value) {
+        return (value < 0) ? 0 : (value > 262143) ? 262143 : value;
+    }
+
+    static int[] getRowBuffer(int length) {
+        int[] buffer = sRowBuffer.get();
+        if (buffer == null || buffer.length < length) {
+            buffer = new int[length];
+            sRowBuffer.set(buffer);
+        }
+        return buffer;
+    }
+
+    private static void checkFrame(byte[] nv21, int width, int height) {
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("Invalid NV21 size " + width + "x" + height);
+        }
+        if (nv21.length < getNv21Size(width, height)) {
+            throw new IllegalArgumentException("NV21 data is shorter than " + width + "x"
+                    + height);
+        }
+    }
+
+    private static void checkLength(int length, int required) {
+        if (length < required) {
+            throw new IllegalArgumentException("Output holds " + length + " of " + required);
+        }
+    }
+}
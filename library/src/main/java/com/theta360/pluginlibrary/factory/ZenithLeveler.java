@@ -0,0 +1,330 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginlibrary.factory;
+
+import androidx.annotation.NonNull;
+import com.theta360.pluginlibrary.factory.EquirectReprojector.Attitude;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * ZenithLeveler
+ * (Levels ARGB equirectangular images saved without zenith correction, using the camera tilt
+ * recorded in Exif. The tilt is rounded to a step, and the source positions of a grid of
+ * output pixels are cached for each rounded tilt. The output is produced in row tiles, and only
+ * the source rows a tile needs are requested, so large images are not held twice in memory)
+ */
+public class ZenithLeveler {
+    public static final double DEFAULT_ANGLE_STEP = 0.1;
+    public static final int DEFAULT_TILE_ROWS = 256;
+    public static final int DEFAULT_CACHE_ENTRIES = 4;
+    private static final int GRID_SHIFT = 3;
+    private static final int GRID = 1 << GRID_SHIFT;
+    private static final int MIN_ROWS_PER_TASK = 8;
+    private static final int MAX_CELL_SPREAD = (2 * GRID) << 8;
+
+    public interface RowSource {
+        /**
+         * Read source rows [fromRow, toRow)
+         *
+         * @param fromRow First row
+         * @param toRow End row
+         * @param pixels Output of (toRow - fromRow) x width ARGB pixels
+         */
+        void readRows(int fromRow, int toRow, int[] pixels);
+    }
+
+    public interface TileSink {
+        /**
+         * Receive leveled rows [fromRow, toRow). The array is reused for the next tile
+         *
+         * @param fromRow First row
+         * @param toRow End row
+         * @param pixels (toRow - fromRow) x width ARGB pixels
+         */
+        void writeTile(int fromRow, int toRow, int[] pixels);
+    }
+
+    /**
+     * Grid of source positions in 24.8 fixed point. u is not wrapped along a grid row, so
+     * that it can be interpolated across the image edge. Near the source poles u changes too
+     * fast to be interpolated, the pixels of those cells are computed exactly
+     */
+    private static class Grid {
+        private final int mColumns;
+        private final int mRows;
+        private final int[] mU;
+        private final int[] mV;
+        private final boolean[] mExact;
+        private final double[] mRotation;
+
+        private Grid(int columns, int rows, double[] rotation) {
+            mColumns = columns;
+            mRows = rows;
+            mU = new int[columns * rows];
+            mV = new int[columns * rows];
+            mExact = new boolean[columns * rows];
+            mRotation = rotation;
+        }
+    }
+
+    private final ForkJoinPool mPool;
+    private final double mAngleStep;
+    private final int mTileRows;
+    private final int mCacheEntries;
+    private final LinkedHashMap<String, Grid> mCache = new LinkedHashMap<>(16, 0.75f, true);
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * Leveler running on the common ForkJoinPool with the default step, tile and cache sizes
+     */
+    public ZenithLeveler() {
+        this(ForkJoinPool.commonPool(), DEFAULT_ANGLE_STEP, DEFAULT_TILE_ROWS,
+                DEFAULT_CACHE_ENTRIES);
+    }
+
+    /**
+     * @param pool Pool running the rows of a tile (null : level on the calling thread)
+     * @param angleStep Step in degrees the tilt is rounded to
+     * @param tileRows Output rows per tile
+     * @param cacheEntries Grids kept for reuse
+     */
+    public ZenithLeveler(ForkJoinPool pool, double angleStep, int tileRows, int cacheEntries) {
+        if (angleStep <= 0 || tileRows < 1) {
+            throw new IllegalArgumentException("angleStep and tileRows must be positive");
+        }
+        mPool = pool;
+        mAngleStep = angleStep;
+        mTileRows = tileRows;
+        mCacheEntries = cacheEntries;
+    }
+
+    /**
+     * Level an image held in an array
+     *
+     * @param src ARGB equirectangular image
+     * @param width Image width
+     * @param height Image height
+     * @param attitude Camera tilt, e.g. Attitude.fromExif()
+     * @param dst ARGB output of width x height, must not be src
+     */
+    public void level(@NonNull final int[] src, final int width, int height,
+            @NonNull Attitude attitude, @NonNull final int[] dst) {
+        if (src.length < width * height || dst.length < width * height) {
+            throw new IllegalArgumentException("Image is shorter than its size");
+        }
+        Grid grid = getGrid(width, height, attitude);
+        for (int fromRow = 0; fromRow < height; fromRow += mTileRows) {
+            int toRow = Math.min(height, fromRow + mTileRows);
+            renderTile(grid, src, 0, height, width, height, fromRow, toRow, dst, fromRow * width);
+        }
+    }
+
+    /**
+     * Level an image tile by tile. After leveling, record it with Exif.setZenithCorrected()
+     *
+     * @param width Image width
+     * @param height Image height
+     * @param attitude Camera tilt, e.g. Attitude.fromExif()
+     * @param source Source rows, e.g. read with BitmapRegionDecoder
+     * @param sink Output tiles, in row order
+     */
+    public void level(int width, int height, @NonNull Attitude attitude,
+            @NonNull RowSource source, @NonNull TileSink sink) {
+        Grid grid = getGrid(width, height, attitude);
+        int[] tile = new int[mTileRows * width];
+        int[] band = new int[0];
+        for (int fromRow = 0; fromRow < height; fromRow += mTileRows) {
+            int toRow = Math.min(height, fromRow + mTileRows);
+            int[] bandRows = getSourceRows(grid, height, fromRow, toRow);
+            int bandLength = (bandRows[1] - bandRows[0]) * width;
+            if (band.length < bandLength) {
+                band = new int[bandLength];
+            }
+            source.readRows(bandRows[0], bandRows[1], band);
+            renderTile(grid, band, bandRows[0], bandRows[1], width, height, fromRow, toRow, tile,
+                    0);
+            sink.writeTile(fromRow, toRow, tile);
+        }
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    private Grid getGrid(int width, int height, Attitude attitude) {
+        long pitchSteps = Math.round(attitude.getPitch() / mAngleStep);
+        long rollSteps = Math.round(attitude.getRoll() / mAngleStep);
+        String key = width + "x" + height + ":" + pitchSteps + ":" + rollSteps;
+        synchronized (this) {
+            Grid grid = mCache.get(key);
+            if (grid != null) {
+                mHitCount++;
+                return grid;
+            }
+            mMissCount++;
+        }
+
+        Grid grid = buildGrid(width, height, pitchSteps * mAngleStep, rollSteps * mAngleStep);
+        synchronized (this) {
+            mCache.put(key, grid);
+            while (mCache.size() > mCacheEntries) {
+                String eldest = mCache.keySet().iterator().next();
+                mCache.remove(eldest);
+            }
+        }
+        return grid;
+    }
+
+    private Grid buildGrid(final int width, final int height, double pitch, double roll) {
+        final double[] m = SphereRotation.fromCameraTilt(pitch, roll);
+        final Grid grid = new Grid((width >> GRID_SHIFT) + 2, (height >> GRID_SHIFT) + 2, m);
+        YuvConverter.runStripes(mPool, grid.mRows, MIN_ROWS_PER_TASK,
+                new YuvConverter.RowTask() {
+                    @Override
+                    public void run(int fromRow, int toRow) {
+                        int[] position = new int[2];
+                        for (int row = fromRow; row < toRow; row++) {
+                            int index = row * grid.mColumns;
+                            int previousU = 0;
+                            for (int col = 0; col < grid.mColumns; col++, index++) {
+                                toSource(m, col * GRID, row * GRID, width, height, position);
+                                int u = position[0];
+                                if (col > 0) {
+                                    // Unwrap against the previous node
+                                    int turns = Math.round((float) (previousU - u)
+                                            / (width << 8));
+                                    u += turns * (width << 8);
+                                }
+                                grid.mU[index] = u;
+                                grid.mV[index] = position[1];
+                                previousU = u;
+                            }
+                        }
+                    }
+                });
+
+        for (int row = 0; row < grid.mRows - 1; row++) {
+            for (int col = 0; col < grid.mColumns - 1; col++) {
+                int top = row * grid.mColumns + col;
+                int bottom = top + grid.mColumns;
+                int minU = Math.min(Math.min(grid.mU[top], grid.mU[top + 1]),
+                        Math.min(grid.mU[bottom], grid.mU[bottom + 1]));
+                int maxU = Math.max(Math.max(grid.mU[top], grid.mU[top + 1]),
+                        Math.max(grid.mU[bottom], grid.mU[bottom + 1]));
+                grid.mExact[top] = maxU - minU > MAX_CELL_SPREAD;
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * @return {from, to} source rows used by output rows [fromRow, toRow)
+     */
+    private int[] getSourceRows(Grid grid, int height, int fromRow, int toRow) {
+        int minV = Integer.MAX_VALUE;
+        int maxV = 0;
+        int lastGridRow = Math.min(grid.mRows - 1, ((toRow - 1) >> GRID_SHIFT) + 1);
+        for (int row = fromRow >> GRID_SHIFT; row <= lastGridRow; row++) {
+            for (int col = 0; col < grid.mColumns; col++) {
+                int v = grid.mV[row * grid.mColumns + col];
+                minV = Math.min(minV, v);
+                maxV = Math.max(maxV, v);
+            }
+        }
+        // Margin for the pixels computed exactly, which may fall outside the grid values
+        return new int[]{Math.max(0, (minV >> 8) - GRID),
+                Math.min(height, (maxV >> 8) + 2 + GRID)};
+    }
+
+    /**
+     * Render output rows [fromRow, toRow) from source rows [srcFromRow, srcToRow) of an image of
+     * width x height
+     */
+    private void renderTile(final Grid grid, final int[] src, final int srcFromRow,
+            final int srcToRow, final int width, final int height, final int fromRow, int toRow,
+            final int[] dst, final int dstOffset) {
+        final int wrap = width << 8;
+        final int srcRows = srcToRow - srcFromRow;
+        final int vOffset = srcFromRow << 8;
+        YuvConverter.runStripes(mPool, toRow - fromRow, MIN_ROWS_PER_TASK,
+                new YuvConverter.RowTask() {
+                    @Override
+                    public void run(int from, int to) {
+                        int[] position = new int[2];
+                        for (int row = fromRow + from; row < fromRow + to; row++) {
+                            int gridRow = row >> GRID_SHIFT;
+                            int fy = row & (GRID - 1);
+                            int top = gridRow * grid.mColumns;
+                            int bottom = top + grid.mColumns;
+                            int index = dstOffset + (row - fromRow) * width;
+                            for (int col = 0; col < width; col++, index++) {
+                                int gridCol = col >> GRID_SHIFT;
+                                int u;
+                                int v;
+                                if (grid.mExact[top + gridCol]) {
+                                    toSource(grid.mRotation, col, row, width, height, position);
+                                    u = position[0];
+                                    v = position[1];
+                                } else {
+                                    int fx = col & (GRID - 1);
+                                    u = interpolate(grid.mU, top + gridCol, bottom + gridCol,
+                                            fx, fy);
+                                    v = interpolate(grid.mV, top + gridCol, bottom + gridCol,
+                                            fx, fy);
+                                    u %= wrap;
+                                    if (u < 0) {
+                                        u += wrap;
+                                    }
+                                }
+                                v = Math.max(0, Math.min(((srcRows - 1) << 8),
+                                        v - vOffset));
+                                dst[index] = SphereRotation.sample(src, width, srcRows, u, v);
+                            }
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Source position of an output pixel in 24.8 fixed point
+     */
+    private static void toSource(double[] m, double col, double row, int width, int height,
+            int[] position) {
+        double latitude = Math.PI / 2 - (row + 0.5) / height * Math.PI;
+        double longitude = (col + 0.5) / width * 2 * Math.PI - Math.PI;
+        double cosLatitude = Math.cos(latitude);
+        double x = cosLatitude * Math.sin(longitude);
+        double y = Math.sin(latitude);
+        double z = cosLatitude * Math.cos(longitude);
+        SphereRotation.toEquirect(m[0] * x + m[1] * y + m[2] * z,
+                m[3] * x + m[4] * y + m[5] * z,
+                m[6] * x + m[7] * y + m[8] * z,
+                width, height, position, 0);
+    }
+
+    private static int interpolate(int[] values, int top, int bottom, int fx, int fy) {
+        long upper = (long) values[top] * (GRID - fx) + (long) values[top + 1] * fx;
+        long lower = (long) values[bottom] * (GRID - fx) + (long) values[bottom + 1] * fx;
+        return (int) ((upper * (GRID - fy) + lower * fy) >> (2 * GRID_SHIFT));
+    }
+}
@@ -0,0 +1,211 @@
+package com.theta360.pluginlibrary.exif;
+
+import com.theta360.pluginlibrary.exif.values.box.BoxType;
+import com.theta360.pluginlibrary.exif.values.box.FinalizationMode;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.theta360.pluginlibrary.exif.BoxTestFiles.*;
+import static org.junit.Assert.*;
+
+/**
+ * BoxProcessor jobs run on the calling thread
+ */
+public class BoxProcessorTest {
+    private static final int WAV_DATA_LEN = 2 * 1024 * 1024;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private final List<String> mEvents = new ArrayList<>();
+    private File mMp4;
+    private File mWav;
+
+    @Before
+    public void setUp() throws Exception {
+        mMp4 = mTemporaryFolder.newFile("job.mp4");
+        writeRecording(mMp4, 1024, null);
+        mWav = mTemporaryFolder.newFile("job.wav");
+        try (FileOutputStream out = new FileOutputStream(mWav)) {
+            out.write(new byte[44]);
+            out.write(new byte[WAV_DATA_LEN]);
+        }
+        CameraSettings.initialize();
+        CameraSettings.setDateTimeZone("2018:06:01 12:00:00+09:00");
+    }
+
+    @Test
+    public void cancel_duringWavSplice_completes() throws Exception {
+        final BoxProcessor processor = new TestProcessor();
+        BoxProcessor.Job job = processor.submit(mMp4.getPath(), mWav.getPath(),
+                FinalizationMode.PROGRESSIVE, new RecordingCallback() {
+                    @Override
+                    public void onProgress(String[] fileUrls, long processedBytes,
+                            long totalBytes) {
+                        super.onProgress(fileUrls, processedBytes, totalBytes);
+                        processor.cancelAll();
+                    }
+                });
+
+        assertTrue(job.isDone());
+        assertTrue(job.isCancelled());
+        assertTrue(mEvents.contains("progress"));
+        assertEquals("completed", mEvents.get(mEvents.size() - 1));
+        assertFalse(mEvents.contains("cancelled"));
+
+        BoxVerifier.Result result = BoxVerifier.verify(mMp4.getPath());
+        assertTrue(result.toString(), result.isValid());
+        try (RandomAccessFile raf = new RandomAccessFile(mMp4, "r")) {
+            long moov = findBox(raf, 0, raf.length(), BoxType.MOOV);
+            long udta = findBox(raf, moov + 8, moov + readSize(raf, moov), BoxType.UDTA);
+            long rdt9 = findBox(raf, udta + 8, udta + readSize(raf, udta), BoxType.RDT9);
+            raf.seek(rdt9 + 8);
+            assertNotEquals(0, raf.readLong());
+        }
+    }
+
+    @Test
+    public void cancel_beforeRun_dropsJob() throws Exception {
+        final List<Runnable> pending = new ArrayList<>();
+        BoxProcessor processor = new TestProcessor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                pending.add(command);
+            }
+        });
+        long length = mMp4.length();
+        BoxProcessor.Job running = processor.submit(mMp4.getPath(), mWav.getPath(),
+                FinalizationMode.PROGRESSIVE, new RecordingCallback());
+        BoxProcessor.Job queued = processor.submit(mMp4.getPath(), mWav.getPath(),
+                FinalizationMode.PROGRESSIVE, new RecordingCallback());
+
+        assertTrue(queued.cancel());
+        assertTrue(running.cancel());
+        pending.remove(0).run();
+
+        assertTrue(running.isDone());
+        assertTrue(queued.isDone());
+        assertEquals(length, mMp4.length());
+        assertEquals("[cancelled, cancelled]", mEvents.toString());
+    }
+
+    @Test
+    public void executorRejects_finishesQueuedJobs() throws Exception {
+        final List<Runnable> pending = new ArrayList<>();
+        BoxProcessor processor = new TestProcessor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                // Accept the first job only, as an executor shut down meanwhile would
+                if (pending.size() > 0) {
+                    throw new RejectedExecutionException();
+                }
+                pending.add(command);
+            }
+        });
+        BoxProcessor.Job running = processor.submit(mMp4.getPath(), mWav.getPath(),
+                FinalizationMode.PROGRESSIVE, new RecordingCallback());
+        BoxProcessor.Job queued1 = processor.submit(mMp4.getPath(), mWav.getPath(),
+                FinalizationMode.PROGRESSIVE, new RecordingCallback());
+        BoxProcessor.Job queued2 = processor.submit(mMp4.getPath(), mWav.getPath(),
+                FinalizationMode.PROGRESSIVE, new RecordingCallback());
+
+        assertTrue(running.cancel());
+        pending.get(0).run();
+
+        assertTrue(queued1.isDone());
+        assertTrue(queued2.isDone());
+        assertEquals("[cancelled, error, error]", mEvents.toString());
+    }
+
+    @Test
+    public void shutdown_cancelsQueuedAndRejectsNewJobs() throws Exception {
+        final List<Runnable> pending = new ArrayList<>();
+        BoxProcessor processor = new TestProcessor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                pending.add(command);
+            }
+        });
+        BoxProcessor.Job running = processor.submit(mMp4.getPath(), mWav.getPath(),
+                FinalizationMode.PROGRESSIVE, new RecordingCallback());
+        BoxProcessor.Job queued = processor.submit(mMp4.getPath(), mWav.getPath(),
+                FinalizationMode.PROGRESSIVE, new RecordingCallback());
+
+        processor.shutdown();
+        assertTrue(queued.isDone());
+        assertFalse(running.isDone());
+        try {
+            processor.submit(mMp4.getPath(), mWav.getPath(), FinalizationMode.PROGRESSIVE,
+                    new RecordingCallback());
+            fail();
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+
+        pending.remove(0).run();
+        assertTrue(running.isDone());
+        assertTrue(pending.isEmpty());
+        assertEquals("[cancelled, progress, completed]", mEvents.toString());
+    }
+
+    private class RecordingCallback implements BoxProcessor.Callback {
+        @Override
+        public void onProgress(String[] fileUrls, long processedBytes, long totalBytes) {
+            if (!mEvents.contains("progress")) {
+                mEvents.add("progress");
+            }
+        }
+
+        @Override
+        public void onCancelled(String[] fileUrls) {
+            mEvents.add("cancelled");
+        }
+
+        @Override
+        public void onCompleted(String[] fileUrls) {
+            mEvents.add("completed");
+        }
+
+        @Override
+        public void onError() {
+            mEvents.add("error");
+        }
+    }
+
+    private static class TestProcessor extends BoxProcessor {
+        TestProcessor() {
+            this(DIRECT);
+        }
+
+        TestProcessor(Executor executor) {
+            super(executor, DIRECT, DEFAULT_QUEUE_CAPACITY);
+        }
+
+        @Override
+        Box newBox() {
+            return new Box() {
+                @Override
+                byte[] convertRMKN(byte[] bRMKN) {
+                    // The synthetic maker note is not a valid Exif
+                    return bRMKN;
+                }
+            };
+        }
+    }
+}
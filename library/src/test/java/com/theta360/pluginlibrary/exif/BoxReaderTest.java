@@ -0,0 +1,88 @@
+package com.theta360.pluginlibrary.exif;
+
+import com.theta360.pluginlibrary.exif.values.box.BoxType;
+import java.io.RandomAccessFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * BoxReader
+ */
+public class BoxReaderTest {
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private RandomAccessFile mRandomAccessFile;
+    private BoxReader mBoxReader;
+
+    @Before
+    public void setUp() throws Exception {
+        mRandomAccessFile = new RandomAccessFile(mTemporaryFolder.newFile(), "rw");
+        mBoxReader = new BoxReader(mRandomAccessFile.getChannel());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mRandomAccessFile.close();
+    }
+
+    @Test
+    public void readHeader_compactAndLargesize() throws Exception {
+        mRandomAccessFile.writeInt(16);
+        mRandomAccessFile.write(BoxType.FTYP.getValue());
+        mRandomAccessFile.write(new byte[8]);
+        mRandomAccessFile.writeInt(1);
+        mRandomAccessFile.write(BoxType.MDAT.getValue());
+        mRandomAccessFile.writeLong(24);
+        mRandomAccessFile.write(new byte[8]);
+        long length = mRandomAccessFile.length();
+
+        BoxHeader ftyp = mBoxReader.readHeader(0, length);
+        assertEquals(BoxType.FTYP.getFourCC(), ftyp.getType());
+        assertEquals(0, ftyp.getOffset());
+        assertEquals(8, ftyp.getHeaderLength());
+        assertEquals(16, ftyp.getSize());
+        assertEquals(8, ftyp.getDataLength());
+
+        BoxHeader mdat = mBoxReader.readHeader(ftyp.getEndOffset(), length);
+        assertEquals(BoxType.MDAT.getFourCC(), mdat.getType());
+        assertEquals(16, mdat.getHeaderLength());
+        assertEquals(32, mdat.getDataOffset());
+        assertEquals(length, mdat.getEndOffset());
+        assertTrue(mdat.containsData(32));
+        assertFalse(mdat.containsData(length));
+
+        BoxHeader found = mBoxReader.findBox(0, length, BoxType.MDAT);
+        assertEquals(16, found.getOffset());
+        assertNull(mBoxReader.findBox(0, length, BoxType.MOOV));
+    }
+
+    @Test
+    public void readHeader_sizeZeroExtendsToTheEnd() throws Exception {
+        mRandomAccessFile.writeInt(0);
+        mRandomAccessFile.write(BoxType.MDAT.getValue());
+        mRandomAccessFile.write(new byte[100]);
+
+        BoxHeader mdat = mBoxReader.readHeader(0, mRandomAccessFile.length());
+        assertEquals(mRandomAccessFile.length(), mdat.getSize());
+    }
+
+    @Test
+    public void readHeader_invalidSize() throws Exception {
+        mRandomAccessFile.writeInt(4);
+        mRandomAccessFile.write(BoxType.FREE.getValue());
+        mRandomAccessFile.writeInt(1000);
+        mRandomAccessFile.write(BoxType.FREE.getValue());
+        long length = mRandomAccessFile.length();
+
+        // Smaller than its header, then larger than the parent
+        assertNull(mBoxReader.readHeader(0, length));
+        assertNull(mBoxReader.readHeader(8, length));
+        assertNull(mBoxReader.readHeader(12, length));
+    }
+}
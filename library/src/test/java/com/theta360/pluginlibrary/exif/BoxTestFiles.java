@@ -0,0 +1,134 @@
+package com.theta360.pluginlibrary.exif;
+
+import com.theta360.pluginlibrary.exif.values.box.BoxType;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Builds and reads boxes of synthetic MP4 files for the Box tests
+ */
+final class BoxTestFiles {
+    static final long SIZE_4GB = 0x100000000L;
+    /** mdat data of the large files, left sparse */
+    static final long MDAT_DATA_SIZE = SIZE_4GB + 0x1000;
+
+    static final byte[] UUID_USER_TYPE = {
+            0x28, (byte) 0xF3, 0x11, (byte) 0xE2, (byte) 0xB7, (byte) 0x91, 0x4F, 0x6F,
+            (byte) 0x94, (byte) 0xE2, 0x4F, 0x5D, (byte) 0xEA, (byte) 0xCB, 0x3C, 0x01};
+
+    private BoxTestFiles() {
+    }
+
+    /**
+     * @param type FourCC
+     * @param children Payload, concatenated
+     * @return Box with a 32-bit size
+     */
+    static byte[] box(String type, byte[]... children) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (byte[] child : children) {
+            payload.write(child);
+        }
+        return ByteBuffer.allocate(8 + payload.size())
+                .putInt(8 + payload.size())
+                .put(type.getBytes("ISO-8859-1"))
+                .put(payload.toByteArray())
+                .array();
+    }
+
+    /**
+     * Write ftyp, mdat and a moov with the boxes of a THETA recording, mdat is sparse
+     *
+     * @param file MP4 file
+     * @param mdatDataSize mdat data size
+     * @param rdt5 RDT5 data (null : no RDT5 box)
+     */
+    static void writeRecording(File file, long mdatDataSize, byte[] rdt5) throws IOException {
+        byte[] video = box("trak", box("tkhd", header(84)),
+                box("mdia", box("mdhd", header(24)),
+                        box("minf", box("stbl",
+                                box("stsd", new byte[8], box("avc1", new byte[150]))))));
+        byte[] sound = box("trak", box("tkhd", header(84)),
+                box("mdia", box("mdhd", header(24)), box("minf", box("smhd", new byte[8]))));
+        byte[] udta = box("udta", box("RTHU", new byte[64]), box("RMKN", new byte[128]),
+                box("RDT1", new byte[100]), box("RDT2", new byte[200]), box("RDT3", new byte[48]),
+                box("RDT4", new byte[40]), (rdt5 == null) ? new byte[0] : box("RDT5", rdt5),
+                box("RDT6", new byte[40]), box("RDT7", new byte[40]), box("RDT8", new byte[40]),
+                box("RDT9"), box("RDTA", telemetry(BoxType.RDTA, 1000)),
+                box("RDTB", telemetry(BoxType.RDTB, 300)),
+                box("RDTC", telemetry(BoxType.RDTC, 600)),
+                box("RDTD", telemetry(BoxType.RDTD, 60)),
+                box("RDTI", telemetry(BoxType.RDTI, 160)));
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(box("ftyp", "mp42".getBytes(), new byte[8]));
+            writeLargeMdat(raf, mdatDataSize);
+            raf.write(box("moov", box("mvhd", header(100)), video, sound, udta));
+        }
+    }
+
+    /**
+     * @return Data of a telemetry box, different for each type
+     */
+    static byte[] telemetry(BoxType boxType, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (boxType.ordinal() + i);
+        }
+        return data;
+    }
+
+    private static byte[] header(int length) {
+        // version/flags, creation time, modification time
+        return ByteBuffer.allocate(length).putInt(0).putInt(1000).putInt(1000).array();
+    }
+
+    /**
+     * Write an mdat header with a largesize, and skip its data
+     *
+     * @param raf File positioned at the mdat
+     * @param dataSize mdat data size
+     */
+    static void writeLargeMdat(RandomAccessFile raf, long dataSize) throws IOException {
+        raf.writeInt(1);
+        raf.write(BoxType.MDAT.getValue());
+        raf.writeLong(16 + dataSize);
+        raf.seek(raf.getFilePointer() + dataSize);
+    }
+
+    /**
+     * @return Box size at the offset, largesize included
+     */
+    static long readSize(RandomAccessFile raf, long offset) throws IOException {
+        raf.seek(offset);
+        long size = raf.readInt() & 0xFFFFFFFFL;
+        if (size == 1) {
+            raf.skipBytes(4);
+            size = raf.readLong();
+        }
+        return size;
+    }
+
+    /**
+     * @return Offset of the first box of the type in the range, fails the test if none
+     */
+    static long findBox(RandomAccessFile raf, long start, long end, BoxType boxType)
+            throws IOException {
+        byte[] type = new byte[4];
+        for (long offset = start; offset + 8 <= end; offset += readSize(raf, offset)) {
+            raf.seek(offset + 4);
+            raf.readFully(type);
+            if (Arrays.equals(boxType.getValue(), type)) {
+                return offset;
+            }
+        }
+        fail(boxType + " not found");
+        return -1;
+    }
+}
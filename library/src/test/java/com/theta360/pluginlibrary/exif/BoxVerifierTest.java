@@ -0,0 +1,116 @@
+package com.theta360.pluginlibrary.exif;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.theta360.pluginlibrary.exif.BoxTestFiles.*;
+import static org.junit.Assert.*;
+
+/**
+ * BoxVerifier on small synthetic recordings
+ */
+public class BoxVerifierTest {
+    private static final int MDAT_DATA_LEN = 64;
+    private static final int RADT_DATA_LEN = 32;
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mFile;
+    private long mMdatOffset;
+    private long mStcoEntryOffset;
+    private long mRdt9DataOffset;
+    private long mRadtOffset;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = mTemporaryFolder.newFile("verify.mp4");
+        writeRecording();
+    }
+
+    @Test
+    public void verify_validRecording() throws Exception {
+        BoxVerifier.Result result = BoxVerifier.verify(mFile.getPath());
+        assertTrue(result.toString(), result.isValid());
+    }
+
+    @Test
+    public void verify_corruptedBoxSize() throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.seek(mMdatOffset);
+            raf.writeInt((int) raf.length());
+        }
+        BoxVerifier.Result result = BoxVerifier.verify(mFile.getPath());
+        assertFalse(result.isValid());
+        assertTrue(result.toString(), result.getErrors().get(0).startsWith("Invalid box"));
+    }
+
+    @Test
+    public void verify_chunkOffsetOutOfRange() throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.seek(mStcoEntryOffset + 4);
+            raf.writeInt((int) (mMdatOffset + 8 + MDAT_DATA_LEN));
+        }
+        BoxVerifier.Result result = BoxVerifier.verify(mFile.getPath());
+        assertEquals(result.toString(), 1, result.getErrors().size());
+        assertTrue(result.toString(), result.getErrors().get(0)
+                .startsWith("moov/trak/mdia/minf/stbl/stco: chunk 1 offset"));
+    }
+
+    @Test
+    public void verify_rdt9RadtMismatch() throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.seek(mRdt9DataOffset);
+            raf.writeLong(mRadtOffset + 8);
+        }
+        BoxVerifier.Result result = BoxVerifier.verify(mFile.getPath());
+        assertEquals(1, result.getErrors().size());
+        assertTrue(result.toString(), result.getErrors().get(0)
+                .startsWith("RDT9: RADT offset " + (mRadtOffset + 8)));
+    }
+
+    /**
+     * ftyp, mdat, moov with a chunk offset table and RDT9, and the RICOH uuid with RADT and RATR
+     */
+    private void writeRecording() throws IOException {
+        byte[] ftyp = box("ftyp", "mp42".getBytes(), new byte[8]);
+        mMdatOffset = ftyp.length;
+        byte[] mdat = box("mdat", new byte[MDAT_DATA_LEN]);
+        long mdatDataOffset = mMdatOffset + 8;
+
+        // Placeholders are patched once the offsets are known
+        byte[] stco = box("stco", ByteBuffer.allocate(16).putInt(0).putInt(2)
+                .putInt((int) mdatDataOffset).putInt((int) mdatDataOffset + 32).array());
+        byte[] rdt9 = box("RDT9", new byte[16]);
+        byte[] moov = box("moov",
+                box("trak", box("mdia", box("minf", box("stbl", stco)))),
+                box("udta", rdt9));
+        long moovOffset = mMdatOffset + mdat.length;
+        // moov, trak, mdia, minf and stbl headers, then stco header, version/flags, entry count
+        mStcoEntryOffset = moovOffset + 5 * 8 + 8 + 4 + 4;
+        mRdt9DataOffset = moovOffset + moov.length - rdt9.length + 8;
+
+        long uuidOffset = moovOffset + moov.length;
+        mRadtOffset = uuidOffset + 8 + UUID_USER_TYPE.length;
+        byte[] co64 = box("co64", ByteBuffer.allocate(16).putInt(0).putInt(1)
+                .putLong(mRadtOffset + 8).array());
+        byte[] uuid = box("uuid", UUID_USER_TYPE, box("RADT", new byte[RADT_DATA_LEN]),
+                box("RATR", box("mdia", box("minf", box("stbl", co64)))));
+
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.write(ftyp);
+            raf.write(mdat);
+            raf.write(moov);
+            raf.write(uuid);
+            raf.seek(mRdt9DataOffset);
+            raf.writeLong(mRadtOffset);
+            raf.writeLong(RADT_DATA_LEN);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.theta360.pluginlibrary.exif;
+
+import com.theta360.pluginlibrary.exif.objects.box.BoxSpec;
+import com.theta360.pluginlibrary.exif.objects.box.RATR;
+import com.theta360.pluginlibrary.exif.values.box.BoxType;
+import com.theta360.pluginlibrary.exif.values.box.FinalizationMode;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.theta360.pluginlibrary.exif.BoxTestFiles.*;
+import static org.junit.Assert.*;
+
+/**
+ * Box handling of files and boxes over 4GB (mdat is left sparse)
+ */
+public class LargeFileTest {
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        // Lower case extension : Box does not keep a copy of the original file
+        mFile = mTemporaryFolder.newFile("large.mp4");
+    }
+
+    @Test
+    public void headerLength_usesLargesizeOver4GB() {
+        assertEquals(8, BoxSpec.getHeaderLength(0));
+        assertEquals(8, BoxSpec.getHeaderLength(BoxSpec.MAX_COMPACT_BOX_SIZE - 8));
+        assertEquals(16, BoxSpec.getHeaderLength(BoxSpec.MAX_COMPACT_BOX_SIZE - 7));
+        assertEquals(16, BoxSpec.getHeaderLength(MDAT_DATA_SIZE));
+    }
+
+    @Test
+    public void ratr_co64OffsetsOver4GB() throws Exception {
+        long wavDataSize = SIZE_4GB + 12345;
+        long radtOffset = SIZE_4GB + 0x2000;
+        RATR ratr = new RATR(wavDataSize);
+
+        byte[] data = ratr.getData(radtOffset);
+        assertEquals(ratr.size(), data.length + 8);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ratr.writeTo(Channels.newChannel(out), radtOffset, ByteBuffer.allocate(256));
+        byte[] box = out.toByteArray();
+        assertEquals(ratr.size(), box.length);
+        assertEquals(ratr.size(), ByteBuffer.wrap(box).getInt(0));
+        assertArrayEquals(data, Arrays.copyOfRange(box, 8, box.length));
+
+        // co64 is the last box : size, type, version/flags, entry count, entries
+        int chunkSize = RATR.STSZ_SAMPLE_SIZE * RATR.STSZ_SAMPLE_PER_CHUNK;
+        int count = (int) (wavDataSize / chunkSize) + 1;
+        ByteBuffer co64 = ByteBuffer.wrap(box, box.length - 16 - count * 8, 16 + count * 8);
+        assertEquals(16 + count * 8, co64.getInt());
+        assertArrayEquals(BoxType.RATRco64.getValue(),
+                new byte[]{co64.get(), co64.get(), co64.get(), co64.get()});
+        co64.getInt();
+        assertEquals(count, co64.getInt());
+
+        // RADT holding more than 4GB has a largesize header
+        long first = co64.getLong();
+        assertEquals(radtOffset + 16, first);
+        co64.position(co64.position() + (count - 2) * 8);
+        assertEquals(first + (long) (count - 1) * chunkSize, co64.getLong());
+    }
+
+    @Test
+    public void write_progressiveOver4GB() throws Exception {
+        byte[] wavData = new byte[4096];
+        for (int i = 0; i < wavData.length; i++) {
+            wavData[i] = (byte) (i * 7);
+        }
+        File wav = mTemporaryFolder.newFile("large.wav");
+        try (FileOutputStream out = new FileOutputStream(wav)) {
+            out.write(new byte[44]);
+            out.write(wavData);
+        }
+        writeRecording(mFile, MDAT_DATA_SIZE, null);
+        formBox(wav);
+
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "r")) {
+            long length = raf.length();
+            long mdat = findBox(raf, 0, length, BoxType.MDAT);
+            raf.seek(mdat + 8);
+            assertEquals(16 + MDAT_DATA_SIZE, raf.readLong());
+
+            long moov = findBox(raf, 0, length, BoxType.MOOV);
+            long udta = findBox(raf, moov + 8, moov + readSize(raf, moov), BoxType.UDTA);
+            long rdt9 = findBox(raf, udta + 8, udta + readSize(raf, udta), BoxType.RDT9);
+            raf.seek(rdt9 + 8);
+            long radtOffset = raf.readLong();
+            assertEquals(wavData.length, raf.readLong());
+            assertTrue(radtOffset > SIZE_4GB);
+
+            // RDT9 points at the RADT box holding the WAV data
+            raf.seek(radtOffset + 4);
+            byte[] type = new byte[4];
+            raf.readFully(type);
+            assertArrayEquals(BoxType.RADT.getValue(), type);
+            int radtHeaderLength = BoxSpec.getHeaderLength(wavData.length);
+            assertEquals(radtHeaderLength + wavData.length, readSize(raf, radtOffset));
+            byte[] radtData = new byte[wavData.length];
+            raf.seek(radtOffset + radtHeaderLength);
+            raf.readFully(radtData);
+            assertArrayEquals(wavData, radtData);
+
+            // co64 of RATR is the last box of the file and points at the RADT data
+            raf.seek(length - 24);
+            assertEquals(24, raf.readInt());
+            raf.readFully(type);
+            assertArrayEquals(BoxType.RATRco64.getValue(), type);
+            raf.readInt();
+            assertEquals(1, raf.readInt());
+            assertEquals(radtOffset + radtHeaderLength, raf.readLong());
+        }
+    }
+
+    @Test
+    public void write_udtaShrinks() throws Exception {
+        // RDT5 is dropped, so the new udta is smaller than the old one without WAV
+        writeRecording(mFile, 1024, new byte[64 * 1024]);
+        long oldLength = mFile.length();
+        formBox(new File(mTemporaryFolder.getRoot(), "none.wav"));
+
+        BoxVerifier.Result result = BoxVerifier.verify(mFile.getPath());
+        assertTrue(result.toString(), result.isValid());
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "r")) {
+            long length = raf.length();
+            assertTrue(length < oldLength);
+            long moov = findBox(raf, 0, length, BoxType.MOOV);
+            assertEquals(length, moov + readSize(raf, moov));
+            long udta = findBox(raf, moov + 8, length, BoxType.UDTA);
+            long udtaEnd = udta + readSize(raf, udta);
+            for (BoxType boxType : new BoxType[]{BoxType.RDTA, BoxType.RDTB, BoxType.RDTC,
+                    BoxType.RDTD, BoxType.RDTI}) {
+                long offset = findBox(raf, udta + 8, udtaEnd, boxType);
+                byte[] data = new byte[(int) readSize(raf, offset) - 8];
+                raf.seek(offset + 8);
+                raf.readFully(data);
+                assertArrayEquals(boxType.name(), telemetry(boxType, data.length), data);
+            }
+        }
+    }
+
+    private void formBox(File wav) throws IOException {
+        CameraSettings.initialize();
+        CameraSettings.setDateTimeZone("2018:06:01 12:00:00+09:00");
+        new Box() {
+            @Override
+            byte[] convertRMKN(byte[] bRMKN) {
+                // The synthetic maker note is not a valid Exif
+                return bRMKN;
+            }
+        }.formBoxSync(mFile.getPath(), wav.getPath(), FinalizationMode.PROGRESSIVE, null);
+    }
+}
@@ -0,0 +1,50 @@
+package com.theta360.pluginlibrary.exif;
+
+import com.theta360.pluginlibrary.exif.values.box.BoxType;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.theta360.pluginlibrary.exif.BoxTestFiles.*;
+import static org.junit.Assert.*;
+
+/**
+ * TelemetryReader
+ */
+public class TelemetryReaderTest {
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void findsUdtaAfterLargeMdat() throws Exception {
+        File file = mTemporaryFolder.newFile("telemetry.mp4");
+        byte[] rdta = new byte[4 + 3 * 8];
+        ByteBuffer.wrap(rdta).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(0).putLong(100).putLong(200).putLong(300);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            writeLargeMdat(raf, MDAT_DATA_SIZE);
+            raf.write(box("moov", box("udta", box("RDTA", rdta))));
+        }
+        assertTrue(file.length() > SIZE_4GB);
+
+        try (TelemetryReader reader = new TelemetryReader(file.getPath())) {
+            assertTrue(reader.contains(BoxType.RDTA));
+            assertFalse(reader.contains(BoxType.RDTB));
+            assertEquals(rdta.length, reader.getDataLength(BoxType.RDTA));
+
+            TelemetryReader.Records records = reader.read(BoxType.RDTA,
+                    new TelemetryReader.Layout(4, 8, ByteOrder.LITTLE_ENDIAN));
+            assertEquals(3, records.size());
+            long expected = 100;
+            for (TelemetryReader.Record record : records) {
+                assertEquals(expected, record.getLong(0));
+                expected += 100;
+            }
+        }
+    }
+}
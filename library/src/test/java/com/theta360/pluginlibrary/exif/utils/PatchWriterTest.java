@@ -0,0 +1,40 @@
+package com.theta360.pluginlibrary.exif.utils;
+
+import com.theta360.pluginlibrary.exif.objects.box.BoxSpec;
+import java.io.RandomAccessFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * PatchWriter
+ */
+public class PatchWriterTest {
+    private static final long SIZE_4GB = BoxSpec.MAX_COMPACT_BOX_SIZE + 1;
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void writesOver4GB() throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(mTemporaryFolder.newFile(), "rw")) {
+            raf.setLength(SIZE_4GB + 64);
+
+            PatchWriter patches = new PatchWriter();
+            patches.putInt(SIZE_4GB + 4, 0x01020304);
+            patches.putInt(SIZE_4GB, 0x0A0B0C0D);
+            patches.putLong(SIZE_4GB + 32, SIZE_4GB);
+            patches.put(SIZE_4GB + 6, new byte[]{0x7F});
+            patches.commit(raf.getChannel());
+            assertTrue(patches.isEmpty());
+
+            raf.seek(SIZE_4GB);
+            assertEquals(0x0A0B0C0D, raf.readInt());
+            assertEquals(0x01027F04, raf.readInt());
+            raf.seek(SIZE_4GB + 32);
+            assertEquals(SIZE_4GB, raf.readLong());
+        }
+    }
+}
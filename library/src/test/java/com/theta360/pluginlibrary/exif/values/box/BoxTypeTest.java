@@ -0,0 +1,21 @@
+package com.theta360.pluginlibrary.exif.values.box;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BoxTypeTest {
+    @Test
+    public void getValue_matchesConstantName() {
+        assertEquals(BoxType.MOOVTRAKSOUND, BoxType.getValue("MOOVTRAKSOUND"));
+        assertEquals(BoxType.RATRco64, BoxType.getValue("RATRco64"));
+        assertNull(BoxType.getValue("moov"));
+    }
+
+    @Test
+    public void fromName_matchesBoxName() {
+        assertEquals(BoxType.MOOV, BoxType.fromName("moov"));
+        assertEquals(BoxType.MOOVTRAK, BoxType.fromName("trak"));
+        assertNull(BoxType.fromName("MOOV"));
+    }
+}
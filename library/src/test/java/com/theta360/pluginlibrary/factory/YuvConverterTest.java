@@ -0,0 +1,144 @@
+package com.theta360.pluginlibrary.factory;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * NV21 conversion results, and throughput of the preview sizes (ignored by default)
+ */
+public class YuvConverterTest {
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 960;
+
+    private static byte[] createFrame(int width, int height) {
+        byte[] nv21 = new byte[YuvConverter.getNv21Size(width, height)];
+        new Random(1).nextBytes(nv21);
+        return nv21;
+    }
+
+    @Test
+    public void nv21ToArgb_knownColors() {
+        // 2x2 frames : one chroma sample (V, U) for all pixels
+        byte[] nv21 = {16, (byte) 235, 126, 0, (byte) 128, (byte) 128};
+        int[] argb = new int[4];
+        new YuvConverter(null, 1).nv21ToArgb(nv21, 2, 2, argb);
+        assertEquals(0xff000000, argb[0]);
+        assertEquals(0xfffefefe, argb[1]);
+        assertEquals(0xff808080, argb[2]);
+        assertEquals(0xff000000, argb[3]);
+
+        nv21 = new byte[]{81, 81, 81, 81, (byte) 240, 90};
+        new YuvConverter(null, 1).nv21ToArgb(nv21, 2, 2, argb);
+        assertEquals(0xfffe0000, argb[0]);
+    }
+
+    @Test
+    public void parallel_matchesSequential() {
+        byte[] nv21 = createFrame(WIDTH, HEIGHT);
+        YuvConverter sequential = new YuvConverter(null, 1);
+        YuvConverter parallel = new YuvConverter(new ForkJoinPool(4), 8);
+
+        int[] expected = new int[WIDTH * HEIGHT];
+        int[] actual = new int[WIDTH * HEIGHT];
+        sequential.nv21ToArgb(nv21, WIDTH, HEIGHT, expected);
+        parallel.nv21ToArgb(nv21, WIDTH, HEIGHT, actual);
+        assertArrayEquals(expected, actual);
+
+        IntBuffer direct = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 4).asIntBuffer();
+        parallel.nv21ToArgb(nv21, WIDTH, HEIGHT, direct);
+        assertEquals(0, direct.position());
+        direct.get(actual);
+        assertArrayEquals(expected, actual);
+
+        byte[] small = new byte[(WIDTH / 4) * (HEIGHT / 4)];
+        byte[] smallParallel = new byte[small.length];
+        sequential.downsampleLuma(nv21, WIDTH, HEIGHT, 4, small);
+        parallel.downsampleLuma(nv21, WIDTH, HEIGHT, 4, smallParallel);
+        assertArrayEquals(small, smallParallel);
+    }
+
+    @Test
+    public void downsampleLuma_averagesBlocks() {
+        byte[] nv21 = new byte[YuvConverter.getNv21Size(4, 2)];
+        byte[] y = {0, 10, 100, 101, 20, 30, 102, 103};
+        System.arraycopy(y, 0, nv21, 0, y.length);
+        byte[] luma = new byte[2];
+        new YuvConverter(null, 1).downsampleLuma(nv21, 4, 2, 2, luma);
+        assertEquals(15, luma[0]);
+        assertEquals(102, luma[1]);
+    }
+
+    @Test
+    public void extractLuma_copiesYPlane() {
+        byte[] nv21 = createFrame(WIDTH, HEIGHT);
+        ByteBuffer luma = ByteBuffer.allocateDirect(WIDTH * HEIGHT);
+        new YuvConverter().extractLuma(nv21, WIDTH, HEIGHT, luma);
+        assertEquals(0, luma.position());
+        for (int i = 0; i < WIDTH * HEIGHT; i += 997) {
+            assertEquals(nv21[i], luma.get(i));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nv21ToArgb_rejectsShortOutput() {
+        new YuvConverter().nv21ToArgb(createFrame(WIDTH, HEIGHT), WIDTH, HEIGHT,
+                new int[WIDTH]);
+    }
+
+    /**
+     * Prints MB/s of NV21 input per core for 1 thread and all cores
+     * (Timing only, run it explicitly)
+     */
+    @Ignore("Benchmark")
+    @Test
+    public void benchmark() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] threadCounts = (cores > 1) ? new int[]{1, cores} : new int[]{1};
+        int[][] sizes = {{1920, 960}, {3840, 1920}};
+        for (int[] size : sizes) {
+            byte[] nv21 = createFrame(size[0], size[1]);
+            int[] argb = new int[size[0] * size[1]];
+            byte[] luma = new byte[(size[0] / 4) * (size[1] / 4)];
+            for (int threads : threadCounts) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                YuvConverter converter = new YuvConverter(pool,
+                        YuvConverter.DEFAULT_MIN_ROWS_PER_TASK);
+                double argbRate = measure(converter, nv21, size, argb, null) / threads;
+                double lumaRate = measure(converter, nv21, size, null, luma) / threads;
+                System.out.println(String.format("%dx%d %d threads: nv21ToArgb %.0f MB/s/core, "
+                                + "downsampleLuma(4) %.0f MB/s/core", size[0], size[1], threads,
+                        argbRate, lumaRate));
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static double measure(YuvConverter converter, byte[] nv21, int[] size, int[] argb,
+            byte[] luma) {
+        int iterations = 0;
+        long start = 0;
+        long warmUpEnd = System.nanoTime() + 100_000_000L;
+        long end = warmUpEnd + 200_000_000L;
+        long now;
+        do {
+            if (argb != null) {
+                converter.nv21ToArgb(nv21, size[0], size[1], argb);
+            } else {
+                converter.downsampleLuma(nv21, size[0], size[1], 4, luma);
+            }
+            now = System.nanoTime();
+            if (start == 0 && now >= warmUpEnd) {
+                start = now;
+            } else if (start != 0) {
+                iterations++;
+            }
+        } while (now < end);
+        return (double) nv21.length * iterations / 1e6 / ((now - start) / 1e9);
+    }
+}